@@ -10,9 +10,16 @@ import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.unixsocket.UnixSocketConnector;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.glassfish.jersey.servlet.ServletContainer;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+
 /**
  * Server that handles all user role mapping requests.
  */
@@ -43,8 +50,18 @@ public class UserRoleMappingServer {
         httpConnector.setPort(Constants.JETTY_PORT);
         jettyServer.addConnector(httpConnector);
 
+        String unixSocketPath = applicationConfiguration.getProperty(Constants.ROLE_MAPPING_UNIX_SOCKET_PATH, null);
+        if (unixSocketPath != null) {
+            log.info("Listening on unix socket {}", unixSocketPath);
+            UnixSocketConnector unixSocketConnector = new UnixSocketConnector(jettyServer);
+            unixSocketConnector.setUnixSocket(unixSocketPath);
+            jettyServer.addConnector(unixSocketConnector);
+        }
+
         ServletHolder jerseyServlet = context.addServlet(ServletContainer.class, "/*");
         jerseyServlet.setInitOrder(0);
+        // Credential requests are suspended while STS is called
+        jerseyServlet.setAsyncSupported(true);
 
         // Tells the Jersey Servlet which REST service/class to load.
         jerseyServlet.setInitParameter("jersey.config.server.provider.packages", "com.amazon.emr.api");
@@ -52,7 +69,16 @@ public class UserRoleMappingServer {
 
         try {
             log.info("Starting the user role mapping server");
+            if (unixSocketPath != null) {
+                Path unixSocket = Paths.get(unixSocketPath).toAbsolutePath();
+                Files.createDirectories(unixSocket.getParent());
+                // Left behind if the server was killed
+                Files.deleteIfExists(unixSocket);
+            }
             jettyServer.start();
+            if (unixSocketPath != null) {
+                allowAllUsers(Paths.get(unixSocketPath));
+            }
             jettyServer.join();
         } catch (Exception e) {
             log.error("Error in user role mapping server", e);
@@ -60,4 +86,16 @@ public class UserRoleMappingServer {
             jettyServer.destroy();
         }
     }
+
+    /**
+     * Lets every user connect to the socket. Callers are authenticated with their peer credentials, not with
+     * file permissions.
+     */
+    private static void allowAllUsers(Path unixSocket) {
+        try {
+            Files.setPosixFilePermissions(unixSocket, PosixFilePermissions.fromString("rw-rw-rw-"));
+        } catch (IOException e) {
+            log.error("Could not make {} accessible to all users", unixSocket, e);
+        }
+    }
 }
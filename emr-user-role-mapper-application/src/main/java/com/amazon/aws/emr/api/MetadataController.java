@@ -5,14 +5,14 @@ package com.amazon.aws.emr.api;
 
 import com.amazon.aws.emr.ApplicationConfiguration;
 import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazon.aws.emr.credentials.CredentialsPrewarmer;
 import com.amazon.aws.emr.credentials.MetadataCredentialsProvider;
 import com.amazon.aws.emr.mapping.MappingInvoker;
+import com.amazon.aws.emr.common.system.user.ConnectionIdentityCache;
+import com.amazon.aws.emr.common.system.user.UnixSocketPeerCredentials;
 import com.amazon.aws.emr.common.system.user.UserIdService;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.util.EC2MetadataUtils;
-import com.google.gson.FieldNamingPolicy;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import lombok.extern.slf4j.Slf4j;
 import org.glassfish.jersey.process.internal.RequestScoped;
 
@@ -22,11 +22,17 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * REST controller that poses as IMDS to non privileged users.
@@ -39,11 +45,6 @@ public class MetadataController {
     public static final String LATEST_IAM_CREDENTIALS_ROOT_PATH = "/latest/meta-data/iam/security-credentials/";
     public static final String LATEST_IAM_CREDENTIALS_WITH_IMPERSONATION = LATEST_IAM_CREDENTIALS_ROOT_PATH + "impersonation/";
 
-    private static final Gson GSON = new GsonBuilder()
-            .setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE)
-            .setPrettyPrinting()
-            .create();
-
     @Inject
     private MappingInvoker mappingInvoker;
 
@@ -53,57 +54,98 @@ public class MetadataController {
     @Inject
     private MetadataCredentialsProvider metadataCredentialsProvider;
 
+    @Inject
+    private CredentialsPrewarmer credentialsPrewarmer;
+
     @Inject
     private UserIdService userIdService;
 
+    @Inject
+    private ConnectionIdentityCache connectionIdentityCache;
+
     @Inject
     ApplicationConfiguration applicationConfiguration;
 
     /**
      * Gets credentials for a role name.
      * Empty credentials are returned if the calling user has no mapping defined, or is unauthorized to assume the role.
+     * The request is suspended while the credentials are fetched, so that waiting on STS does not hold a server
+     * thread.
      *
+     * @param asyncResponse      resumed with credentials obtained by serializing
+     *                           {@link EC2MetadataUtils.IAMSecurityCredential}, as UTF-8 JSON
      * @param httpServletRequest the HTTP Request object
      * @param roleName           the role name to assume
-     * @return credentials obtained by serializing {@link EC2MetadataUtils.IAMSecurityCredential}
      */
     @GET
     @Path("{apiVersion}/meta-data/iam/security-credentials/{roleName}")
     @Produces(MediaType.TEXT_PLAIN)
-    public String getUserCredentials(@Context HttpServletRequest httpServletRequest, @PathParam("roleName") String roleName) {
+    public void getUserCredentials(@Suspended AsyncResponse asyncResponse,
+                                   @Context HttpServletRequest httpServletRequest,
+                                   @PathParam("roleName") String roleName) {
         log.debug("Processing a request to get credentials for {}", roleName);
-        Optional<AssumeRoleRequest> assumeRoleRequest = makeUserAssumeRoleRequest(httpServletRequest);
-        return assumeRoleRequest
-                .filter(request -> roleName.equals(getRoleNameFromArn(request.getRoleArn())))
-                .map(request -> metadataCredentialsProvider.getUserCredentials(request))
-                .map(credentials -> {
-                    log.debug("Done with request {}", assumeRoleRequest);
-                    return GSON.toJson(credentials.get());
-                })
-                .orElse(null);
+        Optional<ConnectionIdentityCache.CallerIdentity> caller = identifyCaller(httpServletRequest, true);
+        Optional<AssumeRoleRequest> assumeRoleRequest = caller
+                .flatMap(identity -> mappingInvoker.map(identity.getUid(), identity.getUsername()))
+                .filter(request -> roleName.equals(getRoleNameFromArn(request.getRoleArn())));
+        if (assumeRoleRequest.isPresent()) {
+            credentialsPrewarmer.record(caller.get().getUid(), caller.get().getUsername(),
+                    assumeRoleRequest.get().getRoleArn());
+        }
+        resumeWithCredentials(asyncResponse, assumeRoleRequest);
     }
 
     /**
      * Get credentials for an impersonated user, if allowed
      * Empty credentials are returned if the calling user has no mapping defined, or is unauthorized to assume the role.
      *
+     * @param asyncResponse      resumed with credentials obtained by serializing
+     *                           {@link EC2MetadataUtils.IAMSecurityCredential}, as UTF-8 JSON
      * @param httpServletRequest the HTTP Request object
      * @param username           the name of impersonated user
-     * @return credentials obtained by serializing {@link EC2MetadataUtils.IAMSecurityCredential}
      */
     @GET
     @Path("{apiVersion}/meta-data/iam/security-credentials/impersonation/{username}")
     @Produces(MediaType.TEXT_PLAIN)
-    public String getCredentialsForUser(@Context HttpServletRequest httpServletRequest, @PathParam("username") String username) {
+    public void getCredentialsForUser(@Suspended AsyncResponse asyncResponse,
+                                      @Context HttpServletRequest httpServletRequest,
+                                      @PathParam("username") String username) {
         log.debug("Processing a impersonation request to get credentials for {}", username);
         Optional<AssumeRoleRequest> assumeRoleRequest = makeUserAssumeRoleRequest(httpServletRequest, username);
-        return assumeRoleRequest
-                .map(request -> metadataCredentialsProvider.getUserCredentials(request))
-                .map(credentials -> {
-                    log.debug("Done with request {}", assumeRoleRequest);
-                    return GSON.toJson(credentials.get());
-                })
-                .orElse(null);
+        assumeRoleRequest.ifPresent(request -> credentialsPrewarmer.recordImpersonated(username,
+                request.getRoleArn()));
+        resumeWithCredentials(asyncResponse, assumeRoleRequest);
+    }
+
+    /**
+     * Resumes with the credentials once they are fetched, with no content if there are none, or with a 503 if too
+     * many credentials are being fetched already.
+     */
+    private void resumeWithCredentials(AsyncResponse asyncResponse, Optional<AssumeRoleRequest> assumeRoleRequest) {
+        if (!assumeRoleRequest.isPresent()) {
+            asyncResponse.resume((Object) null);
+            return;
+        }
+        AssumeRoleRequest request = assumeRoleRequest.get();
+        CompletionStage<Optional<byte[]>> response;
+        try {
+            response = metadataCredentialsProvider.getUserCredentialsResponseAsync(request);
+        } catch (RuntimeException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        response.whenComplete((credentials, t) -> {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (cause == null) {
+                log.debug("Done with request {}", request);
+                asyncResponse.resume(credentials.orElse(null));
+            } else if (cause instanceof RejectedExecutionException) {
+                log.warn("Too many STS calls in progress, turning away request {}", request);
+                asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+            } else {
+                asyncResponse.resume(cause);
+            }
+        });
     }
 
     /**
@@ -149,8 +191,8 @@ public class MetadataController {
     }
 
     private Optional<AssumeRoleRequest> makeUserAssumeRoleRequest(HttpServletRequest httpServletRequest) {
-        Optional<String> username = identifyCaller(httpServletRequest, true);
-        return username.flatMap(user -> mappingInvoker.map(user));
+        Optional<ConnectionIdentityCache.CallerIdentity> caller = identifyCaller(httpServletRequest, true);
+        return caller.flatMap(identity -> mappingInvoker.map(identity.getUid(), identity.getUsername()));
     }
 
     private Optional<AssumeRoleRequest> makeUserAssumeRoleRequest(HttpServletRequest httpServletRequest, String username) {
@@ -162,18 +204,31 @@ public class MetadataController {
         return impersonatedUser.flatMap(user -> mappingInvoker.map(user));
     }
 
-    private Optional<String> identifyCaller(HttpServletRequest httpServletRequest,
-                                            boolean isNativeIMDSApi) {
-        OptionalInt uid = userIdService.resolveSystemUID(
-                httpServletRequest.getLocalAddr(),
-                httpServletRequest.getLocalPort(),
-                httpServletRequest.getRemoteAddr(),
-                httpServletRequest.getRemotePort(),
-                isNativeIMDSApi);
+    private Optional<ConnectionIdentityCache.CallerIdentity> identifyCaller(HttpServletRequest httpServletRequest,
+                                                                            boolean isNativeIMDSApi) {
+        Optional<ConnectionIdentityCache.CallerIdentity> identity =
+                connectionIdentityCache.get(httpServletRequest, isNativeIMDSApi);
+        if (identity.isPresent()) {
+            log.debug("User making the call {} (known from connection)", identity.get().getUsername());
+            return identity;
+        }
+        OptionalInt uid = UnixSocketPeerCredentials.getPeerUid(httpServletRequest);
+        if (!uid.isPresent()) {
+            uid = userIdService.resolveSystemUID(
+                    httpServletRequest.getLocalAddr(),
+                    httpServletRequest.getLocalPort(),
+                    httpServletRequest.getRemoteAddr(),
+                    httpServletRequest.getRemotePort(),
+                    isNativeIMDSApi);
+        }
         if (uid.isPresent()) {
-            Optional<String> username = principalResolver.getUsername(uid.getAsInt());
+            int callerUid = uid.getAsInt();
+            Optional<String> username = principalResolver.getUsername(callerUid);
             log.debug("User making the call {}", username);
-            return username;
+            identity = username.map(name -> new ConnectionIdentityCache.CallerIdentity(callerUid, name,
+                    isNativeIMDSApi));
+            identity.ifPresent(callerIdentity -> connectionIdentityCache.put(httpServletRequest, callerIdentity));
+            return identity;
         }
         log.warn("Could not identify the caller using TCP socket info. Local addr {} " +
                         "local port {} remote addr {} remote port {}",
@@ -186,7 +241,8 @@ public class MetadataController {
 
     private boolean isImpersonationAuthorized(HttpServletRequest httpServletRequest,
                                               String impersonatedUser) {
-        Optional<String> caller = identifyCaller(httpServletRequest, false);
+        Optional<String> caller = identifyCaller(httpServletRequest, false)
+                .map(ConnectionIdentityCache.CallerIdentity::getUsername);
         if (caller.isPresent()) {
             if (!applicationConfiguration
                     .getAllowedUsersForImpersonation().contains(caller.get())) {
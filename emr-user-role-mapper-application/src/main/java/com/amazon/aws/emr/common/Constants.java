@@ -52,6 +52,44 @@ final public class Constants {
 
     public static final int ROLE_MAPPING_MIN_REFRESH_INTERVAL_MIN = 1;
 
+    /**
+     * Keep the mapped request of each caller by uid, so that repeat callers skip the user and group lookups.
+     * The table is rebuilt whenever the mapping or the group membership changes. Disabled by default.
+     */
+    public static final String ROLE_MAPPING_UID_TABLE_ENABLED = "rolemapper.uid.table.enabled";
+
+    /**
+     * Seconds after which an entry of the uid table is looked up again, to pick up group membership changes that
+     * the principal resolver cannot report.
+     */
+    public static final String ROLE_MAPPING_UID_TABLE_TTL_SECONDS = "rolemapper.uid.table.ttl.seconds";
+
+    public static final int ROLE_MAPPING_DEFAULT_UID_TABLE_TTL_SECONDS = 300;
+
+    public static final int ROLE_MAPPING_UID_TABLE_MAX_SIZE = 10000;
+
+    /**
+     * Seconds for which a caller without a mapping is remembered by uid, so that its repeat requests skip the user
+     * and group lookups. Cleared whenever the mapping or the group membership changes. 0 disables it.
+     */
+    public static final String ROLE_MAPPING_UNMAPPED_TTL_SECONDS = "rolemapper.unmapped.ttl.seconds";
+
+    public static final int ROLE_MAPPING_DEFAULT_UNMAPPED_TTL_SECONDS = 60;
+
+    /**
+     * What the managed policy mapper hands out to a user that no mapping matched, when it has a no-match policy:
+     * "session" assumes the role with the no-match policy in a session of the user, "shared" assumes it in one
+     * session shared by all such users, so that they share one set of cached credentials, and "none" returns no
+     * credentials at all.
+     */
+    public static final String ROLE_MAPPING_NO_MATCH_MODE = "rolemapper.no.match.mode";
+
+    public static final String NO_MATCH_MODE_SESSION = "session";
+
+    public static final String NO_MATCH_MODE_SHARED = "shared";
+
+    public static final String NO_MATCH_MODE_NONE = "none";
+
     /**
      * Default S3 Mapper Impl for JSON format.
      */
@@ -80,6 +118,47 @@ final public class Constants {
     // Default Principal resolver implementation using native system calls
     public static final String DEFAULT_PRINCIPAL_RESOLVER_STRATEGY = "command";
 
+    // Principal resolver that indexes /etc/passwd and /etc/group, for hosts where all users and groups are local
+    public static final String FILE_PRINCIPAL_RESOLVER_STRATEGY = "file";
+
+    // Principal resolver that keeps one shell helper running getent and id, instead of forking for every lookup
+    public static final String GETENT_PRINCIPAL_RESOLVER_STRATEGY = "getent";
+
+    /**
+     * How many commands the "command" strategy runs at once. Lookups beyond that wait for a free slot, up to their
+     * deadline.
+     */
+    public static final String PRINCIPAL_RESOLVER_COMMAND_CONCURRENCY = "principal.resolver.command.concurrency";
+
+    public static final int DEFAULT_PRINCIPAL_RESOLVER_COMMAND_CONCURRENCY = 4;
+
+    /**
+     * Strategy for identifying the Linux user that owns the caller's TCP socket. Set the below to "proc" to
+     * scan /proc/net/tcp(6) instead of querying the kernel over netlink, or to "snapshot" to scan it once for all
+     * requests arriving within a short window.
+     */
+    public static final String USER_ID_SERVICE_STRATEGY_KEY = "user.id.service.strategy";
+
+    // Default user id service implementation using NETLINK_SOCK_DIAG
+    public static final String DEFAULT_USER_ID_SERVICE_STRATEGY = "netlink";
+
+    public static final String PROC_USER_ID_SERVICE_STRATEGY = "proc";
+
+    public static final String SNAPSHOT_USER_ID_SERVICE_STRATEGY = "snapshot";
+
+    /**
+     * How long a snapshot of /proc/net/tcp(6) is shared between requests, when using the "snapshot" strategy.
+     */
+    public static final String USER_ID_SNAPSHOT_WINDOW_MS = "user.id.service.snapshot.window.ms";
+
+    public static final int DEFAULT_USER_ID_SNAPSHOT_WINDOW_MS = 100;
+
+    /**
+     * Path of a Unix domain socket to serve requests on, in addition to {@link #JETTY_PORT}. Callers on the socket
+     * are identified by their peer credentials instead of their TCP socket. Disabled when not set.
+     */
+    public static final String ROLE_MAPPING_UNIX_SOCKET_PATH = "rolemapper.unix.socket.path";
+
     public static final String IMPERSONATION_ALLOWED_USERS = "rolemapper.impersonation.allowed.users";
 
     // Set the source identity in the Assume Role calls
@@ -89,6 +168,49 @@ final public class Constants {
     // Default value is true.
     public static final String REGIONAL_STS_ENDPOINT_ENABLED = "rolemapper.regional.sts.endpoint.enabled";
 
+    // How many AssumeRole calls are made at once. Up to STS_MAX_QUEUED_CALLS more wait for a free slot, and
+    // requests that need STS beyond that are turned away, instead of holding server threads while STS is slow.
+    public static final String STS_MAX_CONCURRENCY = "rolemapper.sts.max.concurrency";
+
+    public static final int DEFAULT_STS_MAX_CONCURRENCY = 10;
+
+    public static final int STS_MAX_QUEUED_CALLS = 100;
+
+    // How many STS calls are made per second while STS does not throttle. The rate is lowered while it does.
+    public static final String STS_MAX_CALLS_PER_SECOND = "rolemapper.sts.max.calls.per.second";
+
+    public static final int DEFAULT_STS_MAX_CALLS_PER_SECOND = 50;
+
+    // Connections kept open to each STS endpoint. A call holds its connection until it is answered, so more
+    // connections than threads calling the endpoint are never used. By default the primary endpoint gets one for each
+    // of the STS_MAX_CONCURRENCY threads and one for the calls made ahead of time, and the secondary endpoint one
+    // for each of its threads, a quarter as many.
+    public static final String STS_MAX_CONNECTIONS = "rolemapper.sts.max.connections";
+
+    // How long an STS call waits for data on its connection, and how long it may take in all, in milliseconds.
+    // Kept well below the SDK defaults, so that a stuck call is retried instead of holding credentials back.
+    public static final String STS_SOCKET_TIMEOUT_MS = "rolemapper.sts.socket.timeout.ms";
+
+    public static final int DEFAULT_STS_SOCKET_TIMEOUT_MS = 5000;
+
+    public static final String STS_REQUEST_TIMEOUT_MS = "rolemapper.sts.request.timeout.ms";
+
+    public static final int DEFAULT_STS_REQUEST_TIMEOUT_MS = 10000;
+
+    // Sends TCP keep-alives on the connections to STS, so that idle ones are not silently dropped.
+    // Default value is true.
+    public static final String STS_TCP_KEEP_ALIVE = "rolemapper.sts.tcp.keep.alive";
+
+    // Also sends STS calls that are slower than usual to a secondary endpoint, the global one unless
+    // STS_SECONDARY_REGION is set. Default value is true if STS_SECONDARY_REGION is set, else false.
+    public static final String STS_HEDGING_ENABLED = "rolemapper.sts.hedging.enabled";
+
+    public static final String STS_SECONDARY_REGION = "rolemapper.sts.secondary.region";
+
+    // File that the recently active callers are kept in, so that their credentials are fetched again as soon as the
+    // server restarts. Not kept if unset.
+    public static final String PREWARM_FILE = "rolemapper.prewarm.file";
+
     private Constants() {
     }
 
@@ -144,6 +266,18 @@ final public class Constants {
             // Connection state used in /proc/net/tcp and /proc/net/tcp6 files.
             public static final int TCP_STATE_ESTABLISHED = 1;
         }
+
+        // NETLINK_SOCK_DIAG related constants. See linux/netlink.h, linux/sock_diag.h and linux/inet_diag.h
+        public static class Netlink {
+            public static final int NETLINK_SOCK_DIAG = 4;
+            public static final int SOCK_DIAG_BY_FAMILY = 20;
+            public static final int NLMSG_ERROR = 2;
+            public static final int NLMSG_DONE = 3;
+            public static final int NLM_F_REQUEST = 1;
+            public static final int IPPROTO_TCP = 6;
+            // Wildcard cookie for inet_diag_sockid
+            public static final int INET_DIAG_NOCOOKIE = ~0;
+        }
     }
 }
 
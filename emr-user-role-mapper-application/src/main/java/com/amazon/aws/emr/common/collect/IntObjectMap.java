@@ -0,0 +1,149 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.collect;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map from {@code int} keys to objects that does not box its keys, for lookups on the request path.
+ *
+ * <p>
+ * Reads take no lock, while writes are serialized. Entries can be replaced but not removed; a map that needs
+ * clearing is replaced as a whole instead. Keys are kept in an open addressing table with linear probing,
+ * which is at most half full so that every probe ends at an empty slot.
+ */
+public final class IntObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table<V> table;
+    // Guarded by this
+    private int size;
+
+    public IntObjectMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize the number of entries to make room for up front
+     */
+    public IntObjectMap(int expectedSize) {
+        table = new Table<>(capacityFor(expectedSize));
+    }
+
+    /**
+     * Receives the entries of a map.
+     */
+    public interface EntryVisitor<V> {
+        void visit(int key, V value);
+    }
+
+    /**
+     * @return the value for the key, or {@code null} if there is none
+     */
+    public V get(int key) {
+        Table<V> t = table;
+        for (int i = t.slot(key); ; i = (i + 1) & t.mask) {
+            // A slot is taken once its value is set, and its key is written before that
+            V value = t.values.get(i);
+            if (value == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Sets the value for a key, replacing any previous one.
+     *
+     * @return the previous value, or {@code null} if there was none
+     */
+    public synchronized V put(int key, V value) {
+        Objects.requireNonNull(value);
+        Table<V> t = table;
+        int i = t.find(key);
+        V previous = t.values.get(i);
+        if (previous == null && 2 * (size + 1) > t.keys.length) {
+            t = resize(t);
+            i = t.find(key);
+        }
+        t.keys[i] = key;
+        t.values.set(i, value);
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Visits the entries present when the call starts. Entries added during the call may or may not be visited.
+     */
+    public void forEach(EntryVisitor<? super V> visitor) {
+        Table<V> t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            V value = t.values.get(i);
+            if (value != null) {
+                visitor.visit(t.keys[i], value);
+            }
+        }
+    }
+
+    private Table<V> resize(Table<V> t) {
+        Table<V> resized = new Table<>(2 * t.keys.length);
+        for (int i = 0; i < t.keys.length; i++) {
+            V value = t.values.get(i);
+            if (value != null) {
+                int j = resized.find(t.keys[i]);
+                resized.keys[j] = t.keys[i];
+                resized.values.set(j, value);
+            }
+        }
+        table = resized;
+        return resized;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static final class Table<V> {
+        final int[] keys;
+        final AtomicReferenceArray<V> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        int slot(int key) {
+            // Spread consecutive keys such as uids across the table
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        /**
+         * @return the slot of the key, or the empty slot where it would go
+         */
+        int find(int key) {
+            for (int i = slot(key); ; i = (i + 1) & mask) {
+                if (values.get(i) == null || keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+    }
+}
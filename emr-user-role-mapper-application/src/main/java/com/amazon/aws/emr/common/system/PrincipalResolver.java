@@ -5,6 +5,7 @@ package com.amazon.aws.emr.common.system;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalInt;
 
 public interface PrincipalResolver {
     /**
@@ -23,4 +24,37 @@ public interface PrincipalResolver {
      */
     Optional<List<String>> getGroups(String username);
 
+    /**
+     * Get the ids of the groups a username belongs to, in the order {@link #getGroups(String)} lists their names.
+     * Callers that only look for a few known groups can match on ids, and skip turning every id into a name.
+     *
+     * @param username
+     * @return array of group ids, or {@link Optional#empty()} if this resolver cannot list group ids, in which case
+     * callers use {@link #getGroups(String)}
+     */
+    default Optional<int[]> getGroupIds(String username) {
+        return Optional.empty();
+    }
+
+    /**
+     * Gets the group id of a group name, for matching on the ids returned by {@link #getGroupIds(String)}.
+     *
+     * @param groupName
+     * @return the group id, or {@link OptionalInt#empty()} if the group is not found or this resolver cannot list
+     * group ids
+     */
+    default OptionalInt getGroupId(String groupName) {
+        return OptionalInt.empty();
+    }
+
+    /**
+     * A number that changes whenever the groups returned by {@link #getGroups(String)} may have changed, so that
+     * results derived from them can be dropped.
+     * Resolvers that cannot tell when group membership changes return a constant, and callers rely on expiry.
+     *
+     * @return the current group membership version
+     */
+    default long getGroupMembershipVersion() {
+        return 0;
+    }
 }
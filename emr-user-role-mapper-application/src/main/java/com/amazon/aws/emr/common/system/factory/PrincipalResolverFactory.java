@@ -6,7 +6,10 @@ package com.amazon.aws.emr.common.system.factory;
 import com.amazon.aws.emr.ApplicationConfiguration;
 import com.amazon.aws.emr.common.Constants;
 import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazon.aws.emr.common.system.impl.AbstractPrincipalResolver;
 import com.amazon.aws.emr.common.system.impl.CommandBasedPrincipalResolver;
+import com.amazon.aws.emr.common.system.impl.FileBasedPrincipalResolver;
+import com.amazon.aws.emr.common.system.impl.GetentPrincipalResolver;
 import com.amazon.aws.emr.common.system.impl.JniBasedPrincipalResolver;
 import lombok.extern.slf4j.Slf4j;
 import org.glassfish.hk2.api.Factory;
@@ -29,14 +32,33 @@ public class PrincipalResolverFactory implements Factory<PrincipalResolver> {
             .getProperty(Constants.PRINCIPAL_RESOLVER_STRATEGY_KEY, Constants.DEFAULT_PRINCIPAL_RESOLVER_STRATEGY);
 
         log.info("Using principal resolver strategy: {}", principalResolverStrategy);
+        if (Constants.FILE_PRINCIPAL_RESOLVER_STRATEGY.equalsIgnoreCase(principalResolverStrategy)) {
+            FileBasedPrincipalResolver fileBasedPrincipalResolver = new FileBasedPrincipalResolver();
+            fileBasedPrincipalResolver.startWatching();
+            return fileBasedPrincipalResolver;
+        }
+
+        AbstractPrincipalResolver principalResolver;
         if (Constants.DEFAULT_PRINCIPAL_RESOLVER_STRATEGY.equalsIgnoreCase(principalResolverStrategy))
-            return new CommandBasedPrincipalResolver();
+            principalResolver = new CommandBasedPrincipalResolver(appConfig.getProperty(
+                Constants.PRINCIPAL_RESOLVER_COMMAND_CONCURRENCY,
+                Constants.DEFAULT_PRINCIPAL_RESOLVER_COMMAND_CONCURRENCY));
+        else if (Constants.GETENT_PRINCIPAL_RESOLVER_STRATEGY.equalsIgnoreCase(principalResolverStrategy))
+            principalResolver = new GetentPrincipalResolver();
+        else
+            principalResolver = new JniBasedPrincipalResolver();
 
-        return new JniBasedPrincipalResolver();
+        // HK2 does not call @PostConstruct on what a factory provides
+        principalResolver.init();
+        return principalResolver;
     }
 
     @Override
     public void dispose(PrincipalResolver instance) {
-        // noop
+        if (instance instanceof FileBasedPrincipalResolver) {
+            ((FileBasedPrincipalResolver) instance).close();
+        } else if (instance instanceof AbstractPrincipalResolver) {
+            ((AbstractPrincipalResolver) instance).close();
+        }
     }
 }
@@ -0,0 +1,46 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.factory;
+
+import com.amazon.aws.emr.ApplicationConfiguration;
+import com.amazon.aws.emr.common.Constants;
+import com.amazon.aws.emr.common.system.user.LinuxUserIdService;
+import com.amazon.aws.emr.common.system.user.NetlinkUserIdService;
+import com.amazon.aws.emr.common.system.user.ProcNetTcpSnapshotService;
+import com.amazon.aws.emr.common.system.user.UserIdService;
+import lombok.extern.slf4j.Slf4j;
+import org.glassfish.hk2.api.Factory;
+
+import javax.inject.Inject;
+
+/**
+ * Factory to return user id service implementation depending on {@link Constants#USER_ID_SERVICE_STRATEGY_KEY}
+ * value.
+ * By default, it queries the kernel over netlink and only scans /proc when that fails.
+ */
+@Slf4j
+public class UserIdServiceFactory implements Factory<UserIdService> {
+    @Inject
+    private ApplicationConfiguration appConfig;
+
+    @Override
+    public UserIdService provide() {
+        String userIdServiceStrategy = appConfig
+            .getProperty(Constants.USER_ID_SERVICE_STRATEGY_KEY, Constants.DEFAULT_USER_ID_SERVICE_STRATEGY);
+
+        log.info("Using user id service strategy: {}", userIdServiceStrategy);
+        if (Constants.PROC_USER_ID_SERVICE_STRATEGY.equalsIgnoreCase(userIdServiceStrategy))
+            return new LinuxUserIdService();
+        if (Constants.SNAPSHOT_USER_ID_SERVICE_STRATEGY.equalsIgnoreCase(userIdServiceStrategy))
+            return new ProcNetTcpSnapshotService(appConfig.getProperty(Constants.USER_ID_SNAPSHOT_WINDOW_MS,
+                Constants.DEFAULT_USER_ID_SNAPSHOT_WINDOW_MS));
+
+        return new NetlinkUserIdService();
+    }
+
+    @Override
+    public void dispose(UserIdService instance) {
+        // noop
+    }
+}
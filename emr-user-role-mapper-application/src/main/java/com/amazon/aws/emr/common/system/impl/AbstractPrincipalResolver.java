@@ -3,37 +3,78 @@
 
 package com.amazon.aws.emr.common.system.impl;
 
+import com.amazon.aws.emr.common.collect.IntObjectMap;
 import com.amazon.aws.emr.common.system.PrincipalResolver;
 import com.amazon.aws.emr.model.User;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Provides shared caching functionality for concrete implementations.
+ *
+ * <p>
+ * Users in /etc/passwd are kept in a table by uid, which is replaced as a whole whenever the file changes. Other
+ * uids are looked up by the implementation and cached, and uids that are not found at all are cached for
+ * {@value #UNKNOWN_UID_TTL_SECS} seconds, so that repeated requests from an unknown uid do not each look it up.
+ *
+ * <p>
+ * Groups are refreshed in the background once they are older than the group TTL, on the first lookup after that,
+ * and the cached groups are served until the refresh is done. A refresh that fails keeps the cached groups, up to
+ * {@value #GROUP_MAP_MAX_STALENESS_MULTIPLIER} times the TTL, after which the next lookup waits for a load. It is
+ * retried on a lookup after {@value #GROUP_REFRESH_RETRY_SECS} seconds, or the TTL if shorter, rather than on every
+ * lookup.
+ * The group membership version changes when a refresh finds different groups for a user. Refreshes only run on
+ * lookups, so results derived from groups that are no longer looked up still rely on their own expiry.
  */
 @Slf4j
-public abstract class AbstractPrincipalResolver implements PrincipalResolver {
+public abstract class AbstractPrincipalResolver implements PrincipalResolver, Closeable {
     private static final int USER_MAP_MAX_SIZE = 10000;
     private static final String LINUX_USERS_FILE = "/etc/passwd";
+    private static final int UNKNOWN_UID_TTL_SECS = 60;
 
     private static final int GROUP_MAP_MAX_SIZE = 10000;
     private static final int DEFAULT_GROUP_MAP_EXPIRATION_MINS = 15;
+    private static final int GROUP_MAP_MAX_STALENESS_MULTIPLIER = 4;
+    private static final int GROUP_REFRESH_THREADS = 2;
+    // Refreshes that do not fit are dropped, and retried on a later lookup
+    private static final int GROUP_REFRESH_QUEUE_SIZE = 1000;
+    private static final int GROUP_REFRESH_RETRY_SECS = 30;
 
+    // Replaced as a whole when the users file changes
+    private volatile IntObjectMap<String> localUsers = new IntObjectMap<>();
     private final LoadingCache<Integer, Optional<String>> userMap;
-    private final LoadingCache<String, List<String>> groupMap;
+    private final Cache<Integer, Boolean> unknownUids;
+    private FilesWatcher usersFileWatcher;
+    private final GroupCache<List<String>> groupMap;
+    private final GroupCache<int[]> groupIdMap;
+    private final ThreadPoolExecutor groupRefreshExecutor;
+    private final AtomicLong groupMembershipVersion = new AtomicLong();
 
     AbstractPrincipalResolver() {
         this(DEFAULT_GROUP_MAP_EXPIRATION_MINS, TimeUnit.MINUTES);
@@ -47,43 +88,99 @@ public abstract class AbstractPrincipalResolver implements PrincipalResolver {
             }
         };
 
-        CacheLoader<String, List<String>> groupLoader = new CacheLoader<String, List<String>>() {
-            @Override
-            public List<String> load(String username) {
-                return getLinuxGroups(username);
-            }
-        };
+        this.groupRefreshExecutor = new ThreadPoolExecutor(GROUP_REFRESH_THREADS, GROUP_REFRESH_THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(GROUP_REFRESH_QUEUE_SIZE),
+                new ThreadFactoryBuilder().setNameFormat("refresh-groups-%d").setDaemon(true).build());
+        this.groupRefreshExecutor.allowCoreThreadTimeOut(true);
 
         this.userMap = CacheBuilder.newBuilder()
                                    .maximumSize(USER_MAP_MAX_SIZE)
                                    .build(userLoader);
 
-        this.groupMap = CacheBuilder.newBuilder()
-                                    .maximumSize(GROUP_MAP_MAX_SIZE)
-                                    .expireAfterWrite(groupMapTtl, timeUnit)
-                                    .build(groupLoader);
+        this.unknownUids = CacheBuilder.newBuilder()
+                                       .maximumSize(USER_MAP_MAX_SIZE)
+                                       .expireAfterWrite(UNKNOWN_UID_TTL_SECS, TimeUnit.SECONDS)
+                                       .build();
+
+        this.groupMap = new GroupCache<>(groupMapTtl, timeUnit, this::getLinuxGroups, List::isEmpty);
+        this.groupIdMap = new GroupCache<>(groupMapTtl, timeUnit, this::getLinuxGroupIds, ids -> ids.length == 0);
     }
 
+    /**
+     * Reads the users file, and starts watching it for changes.
+     */
     @PostConstruct
-    void init() {
+    public synchronized void init() {
         log.info("Reading all OS users");
-        readOSUsers();
+        reloadOSUsers();
+        if (usersFileWatcher == null) {
+            usersFileWatcher = new FilesWatcher(Collections.singletonList(getSystemUsersFileName()),
+                    this::reloadOSUsers, "users-file-watcher");
+            usersFileWatcher.start();
+        }
     }
 
     /**
-     * We don't employ locks here as we never clear the mapping.
-     * User id once assigned a username by Linux is not reused even if the same username is created again.
-     * <p>
-     * Note the map might contain more entries if users get deleted but that should be an infrequent operation.
+     * Stops watching the users file.
      */
-    private synchronized void readOSUsers() {
-        try (Stream<String> stream = Files.lines(getSystemUsersFileName())) {
-            stream.filter(s -> s.charAt(0) != '#').map(User::createFromPasswdEntry)
-                  .filter(u -> !u.getShell().equals("/usr/sbin/nologin"))
-                  .forEach(user -> userMap.put(user.getUid(), Optional.ofNullable(user.getName())));
+    @Override
+    @PreDestroy
+    public synchronized void close() {
+        if (usersFileWatcher != null) {
+            usersFileWatcher.close();
+        }
+    }
+
+    /**
+     * Replaces the table of local users. Uids that were not found are looked up again, as they may just have been
+     * added.
+     */
+    @VisibleForTesting
+    void reloadOSUsers() {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(getSystemUsersFileName(), StandardCharsets.UTF_8);
         } catch (IOException ioe) {
             log.error("Couldn't parse system users file", ioe);
+            return;
         }
+        IntObjectMap<String> users = new IntObjectMap<>(lines.size());
+        for (String line : lines) {
+            // Skip blank lines, comments and NIS compat entries
+            if (line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '+' || line.charAt(0) == '-') {
+                continue;
+            }
+            try {
+                User user = User.createFromPasswdEntry(line);
+                // Like the C library, the first entry wins when uids repeat
+                if (users.get(user.getUid()) == null) {
+                    users.put(user.getUid(), user.getName());
+                }
+            } catch (IllegalArgumentException e) {
+                log.warn("Skipping an invalid entry in system users file");
+            }
+        }
+        localUsers = users;
+        unknownUids.invalidateAll();
+        log.info("Read {} OS users", users.size());
+    }
+
+    /**
+     * Implementations return no groups when a lookup fails, so no groups for a user that had some is taken as
+     * a failure. Failing the refresh keeps the cached groups without extending how long they are kept.
+     */
+    private <V> V reloadLinuxGroups(String username, V oldGroups, Function<String, V> lookup,
+                                    Predicate<V> isEmpty) {
+        V groups = lookup.apply(username);
+        if (isEmpty.test(groups) && !isEmpty.test(oldGroups)) {
+            log.warn("Couldn't refresh groups for user: {}, keeping the cached groups", username);
+            throw new IllegalStateException("No groups found for user: " + username);
+        }
+        if (!Objects.deepEquals(groups, oldGroups)) {
+            log.debug("Groups of user: {} have changed", username);
+            groupMembershipVersion.incrementAndGet();
+        }
+        return groups;
     }
 
     /**
@@ -91,7 +188,20 @@ public abstract class AbstractPrincipalResolver implements PrincipalResolver {
      */
     @Override
     public Optional<String> getUsername(int uid) {
-        return userMap.getUnchecked(uid);
+        String localUser = localUsers.get(uid);
+        if (localUser != null) {
+            return Optional.of(localUser);
+        }
+        if (unknownUids.getIfPresent(uid) != null) {
+            return Optional.empty();
+        }
+        Optional<String> username = userMap.getUnchecked(uid);
+        if (!username.isPresent()) {
+            // Keep only found users for good, as uids are not reused
+            userMap.invalidate(uid);
+            unknownUids.put(uid, Boolean.TRUE);
+        }
+        return username;
     }
 
     /**
@@ -101,7 +211,27 @@ public abstract class AbstractPrincipalResolver implements PrincipalResolver {
      */
     @Override
     public Optional<List<String>> getGroups(String username) {
-        return Optional.ofNullable(groupMap.getUnchecked(username));
+        return Optional.ofNullable(groupMap.get(username));
+    }
+
+    /**
+     * For implementations that list group ids, in their {@link #getGroupIds(String)}.
+     *
+     * @param username
+     * @return the group ids of the user from {@link #getLinuxGroupIds(String)}, cached like the group names
+     */
+    protected int[] getCachedGroupIds(String username) {
+        return groupIdMap.get(username);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Changes when a refresh finds different groups, by name or by id, for a user.
+     */
+    @Override
+    public long getGroupMembershipVersion() {
+        return groupMembershipVersion.get();
     }
 
     /**
@@ -118,8 +248,88 @@ public abstract class AbstractPrincipalResolver implements PrincipalResolver {
      */
     protected abstract List<String> getLinuxGroups(String username);
 
+    /**
+     * Looks up the group ids behind {@link #getCachedGroupIds(String)}. Implementations that cannot list group ids
+     * keep the default, which finds none, and do not override {@link #getGroupIds(String)}.
+     *
+     * @param username
+     * @return Array containing group ids if mapping is found else empty
+     */
+    protected int[] getLinuxGroupIds(String username) {
+        return new int[0];
+    }
+
     @VisibleForTesting
     protected Path getSystemUsersFileName() {
         return Paths.get(LINUX_USERS_FILE);
     }
+
+    /**
+     * Groups by user, refreshed in the background. Entries expire from their last successful load, so a refresh
+     * that keeps failing does not keep them forever.
+     */
+    private final class GroupCache<V> {
+        private final long ttlNanos;
+        private final long retryNanos;
+        private final Function<String, V> lookup;
+        private final Predicate<V> isEmpty;
+        private final LoadingCache<String, CachedGroups<V>> cache;
+
+        GroupCache(Integer groupMapTtl, TimeUnit timeUnit, Function<String, V> lookup, Predicate<V> isEmpty) {
+            this.ttlNanos = timeUnit.toNanos(groupMapTtl);
+            this.retryNanos = Math.min(ttlNanos, TimeUnit.SECONDS.toNanos(GROUP_REFRESH_RETRY_SECS));
+            this.lookup = lookup;
+            this.isEmpty = isEmpty;
+            this.cache = CacheBuilder.newBuilder()
+                                     .maximumSize(GROUP_MAP_MAX_SIZE)
+                                     .expireAfterWrite((long) groupMapTtl * GROUP_MAP_MAX_STALENESS_MULTIPLIER,
+                                             timeUnit)
+                                     .build(new CacheLoader<String, CachedGroups<V>>() {
+                                         @Override
+                                         public CachedGroups<V> load(String username) {
+                                             return new CachedGroups<>(lookup.apply(username),
+                                                     System.nanoTime() + ttlNanos);
+                                         }
+                                     });
+        }
+
+        V get(String username) {
+            CachedGroups<V> cached = cache.getUnchecked(username);
+            if (System.nanoTime() - cached.refreshAtNanos >= 0 && cached.refreshing.compareAndSet(false, true)) {
+                try {
+                    groupRefreshExecutor.execute(() -> refresh(username, cached));
+                } catch (RejectedExecutionException e) {
+                    log.debug("Too many group refreshes queued, not refreshing groups for user: {}", username);
+                    cached.refreshing.set(false);
+                }
+            }
+            return cached.groups;
+        }
+
+        private void refresh(String username, CachedGroups<V> cached) {
+            try {
+                V groups = reloadLinuxGroups(username, cached.groups, lookup, isEmpty);
+                // Unless the entry expired or was loaded again meanwhile
+                cache.asMap().replace(username, cached, new CachedGroups<>(groups, System.nanoTime() + ttlNanos));
+            } catch (RuntimeException e) {
+                log.debug("Retrying the refresh of groups for user: {} in {} ms", username,
+                        TimeUnit.NANOSECONDS.toMillis(retryNanos), e);
+                cached.refreshAtNanos = System.nanoTime() + retryNanos;
+            } finally {
+                cached.refreshing.set(false);
+            }
+        }
+    }
+
+    private static final class CachedGroups<V> {
+        private final V groups;
+        // Pushed back when a refresh fails, so that every lookup does not retry it
+        private volatile long refreshAtNanos;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedGroups(V groups, long refreshAtNanos) {
+            this.groups = groups;
+            this.refreshAtNanos = refreshAtNanos;
+        }
+    }
 }
@@ -3,8 +3,9 @@
 
 package com.amazon.aws.emr.common.system.impl;
 
+import com.amazon.aws.emr.common.Constants;
 import com.google.common.annotations.VisibleForTesting;
-import lombok.NoArgsConstructor;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedReader;
@@ -14,20 +15,62 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
  * Uses linux commands to gather user and group information.
+ *
+ * <p>
+ * Commands run on a pool of their own rather than on the threads serving requests, with a limit on how many run at
+ * once. Callers asking for the same command share one run, and give up once their deadline has passed.
  */
 @Slf4j
-@NoArgsConstructor
 public class CommandBasedPrincipalResolver extends AbstractPrincipalResolver {
+    private static final long COMMAND_TIMEOUT_MS = 3000;
+    // Commands that are still queued when their deadline passes are not run
+    private static final int MAX_QUEUED_COMMANDS = 1000;
+
+    private final ThreadPoolExecutor commandExecutor;
+    private final ConcurrentMap<List<String>, CompletableFuture<List<String>>> inFlightCommands =
+            new ConcurrentHashMap<>();
+
+    public CommandBasedPrincipalResolver() {
+        this(Constants.DEFAULT_PRINCIPAL_RESOLVER_COMMAND_CONCURRENCY);
+    }
+
+    public CommandBasedPrincipalResolver(int maxConcurrentCommands) {
+        this(maxConcurrentCommands, MAX_QUEUED_COMMANDS);
+    }
+
+    @VisibleForTesting
+    CommandBasedPrincipalResolver(int maxConcurrentCommands, int maxQueuedCommands) {
+        super();
+        this.commandExecutor = newCommandExecutor(maxConcurrentCommands, maxQueuedCommands);
+    }
 
     @VisibleForTesting
     CommandBasedPrincipalResolver(Integer groupMapTtl, TimeUnit timeUnit) {
         super(groupMapTtl, timeUnit);
+        this.commandExecutor = newCommandExecutor(Constants.DEFAULT_PRINCIPAL_RESOLVER_COMMAND_CONCURRENCY,
+                MAX_QUEUED_COMMANDS);
+    }
+
+    private static ThreadPoolExecutor newCommandExecutor(int maxConcurrentCommands, int maxQueuedCommands) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrentCommands, maxConcurrentCommands,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueuedCommands),
+                new ThreadFactoryBuilder().setNameFormat("principal-command-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     @Override
@@ -52,15 +95,62 @@ public class CommandBasedPrincipalResolver extends AbstractPrincipalResolver {
     /**
      * Returns the command output delimited by space
      * In case of any error such as a non zero return code from subprocess, exception etc
-     * returns an empty list.
+     * returns an empty list. So does a command that could not be run within {@value #COMMAND_TIMEOUT_MS} ms,
+     * including the time spent waiting for the pool.
      */
     public List<String> runCommand(List<String> command) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COMMAND_TIMEOUT_MS);
+        CompletableFuture<List<String>> commandOutput = new CompletableFuture<>();
+        CompletableFuture<List<String>> inFlight = inFlightCommands.putIfAbsent(command, commandOutput);
+        if (inFlight != null) {
+            log.debug("Waiting for the command in progress: {}", command);
+            return await(command, inFlight, deadlineNanos);
+        }
+
+        commandOutput.whenComplete((output, t) -> inFlightCommands.remove(command, commandOutput));
+        try {
+            commandExecutor.execute(() -> {
+                if (System.nanoTime() - deadlineNanos >= 0) {
+                    log.warn("Skipping command queued past its deadline: {}", command);
+                    commandOutput.complete(new ArrayList<>());
+                } else {
+                    try {
+                        commandOutput.complete(execute(command));
+                    } catch (RuntimeException e) {
+                        commandOutput.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("Too many commands in progress, not running: {}", command);
+            commandOutput.complete(new ArrayList<>());
+        }
+        return await(command, commandOutput, deadlineNanos);
+    }
+
+    private List<String> await(List<String> command, CompletableFuture<List<String>> commandOutput,
+                               long deadlineNanos) {
+        try {
+            // Copy, as the output is shared by every caller of the command
+            return new ArrayList<>(commandOutput.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS));
+        } catch (TimeoutException e) {
+            log.error("Command didn't finish in time: {}", command);
+        } catch (ExecutionException e) {
+            log.error("Couldn't run command to retrieve user/ groups: {}", command, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted waiting for command to retrieve user/ groups: {}", command);
+        }
+        return new ArrayList<>();
+    }
+
+    private List<String> execute(List<String> command) {
         List<String> commandOutput = new ArrayList<>();
 
         try {
             Process process = new ProcessBuilder(command).start();
 
-            if (!process.waitFor(3, TimeUnit.SECONDS)) {
+            if (!process.waitFor(COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
                 log.error("Command didn't finish: {}", command);
                 process.destroyForcibly();
                 return commandOutput;
@@ -0,0 +1,187 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.impl;
+
+import com.amazon.aws.emr.common.collect.IntObjectMap;
+import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazon.aws.emr.model.Group;
+import com.amazon.aws.emr.model.User;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Answers from an index of /etc/passwd and /etc/group, and never starts a process or makes a native call.
+ *
+ * <p>
+ * The index is built once, and rebuilt and swapped in whenever a {@link FilesWatcher} reports that either file
+ * changed. Only users and groups in the local files are known, so this suits hosts without a directory service.
+ * The groups of a user are listed like {@code id -Gn} lists them: the primary group first, then the groups that name
+ * the user as a member, in file order.
+ */
+@Slf4j
+public class FileBasedPrincipalResolver implements PrincipalResolver, Closeable {
+    private static final String LINUX_USERS_FILE = "/etc/passwd";
+    private static final String LINUX_GROUPS_FILE = "/etc/group";
+
+    private final Path usersFile;
+    private final Path groupsFile;
+    private volatile PrincipalIndex index;
+    // Only the watcher thread writes it
+    private volatile long groupMembershipVersion;
+
+    private final FilesWatcher watcher;
+
+    public FileBasedPrincipalResolver() {
+        this(Paths.get(LINUX_USERS_FILE), Paths.get(LINUX_GROUPS_FILE));
+    }
+
+    @VisibleForTesting
+    FileBasedPrincipalResolver(Path usersFile, Path groupsFile) {
+        this.usersFile = usersFile.toAbsolutePath();
+        this.groupsFile = groupsFile.toAbsolutePath();
+        try {
+            index = PrincipalIndex.load(this.usersFile, this.groupsFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read " + usersFile + " and " + groupsFile, e);
+        }
+        log.info("Indexed {} users", index.groupsByUser.size());
+        watcher = new FilesWatcher(Arrays.asList(this.usersFile, this.groupsFile), this::reload,
+                "principal-index-watcher");
+    }
+
+    /**
+     * Starts a daemon thread that rebuilds the index when the files change.
+     */
+    public void startWatching() {
+        watcher.start();
+    }
+
+    @Override
+    public void close() {
+        watcher.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<String> getUsername(int uid) {
+        return Optional.ofNullable(index.usernames.get(uid));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Users that are not in the index have no groups.
+     */
+    @Override
+    public Optional<List<String>> getGroups(String username) {
+        return Optional.of(index.groupsByUser.getOrDefault(username, Collections.emptyList()));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Changes every time the index is rebuilt.
+     */
+    @Override
+    public long getGroupMembershipVersion() {
+        return groupMembershipVersion;
+    }
+
+    @VisibleForTesting
+    void reload() {
+        long startNanos = System.nanoTime();
+        try {
+            index = PrincipalIndex.load(usersFile, groupsFile);
+            groupMembershipVersion++;
+            log.info("Indexed {} users in {} ms", index.groupsByUser.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (IOException | RuntimeException e) {
+            log.error("Couldn't read {} and {}, keeping the previous index", usersFile, groupsFile, e);
+        }
+    }
+
+    /**
+     * Usernames by uid and groups by username, as of one version of the files.
+     */
+    private static final class PrincipalIndex {
+        private final IntObjectMap<String> usernames;
+        private final Map<String, List<String>> groupsByUser;
+
+        private PrincipalIndex(IntObjectMap<String> usernames, Map<String, List<String>> groupsByUser) {
+            this.usernames = usernames;
+            this.groupsByUser = groupsByUser;
+        }
+
+        static PrincipalIndex load(Path usersFile, Path groupsFile) throws IOException {
+            List<User> users = readEntries(usersFile, User::createFromPasswdEntry);
+            List<Group> groups = readEntries(groupsFile, Group::createFromGroupEntry);
+
+            // Like the C library, the first entry wins when names or ids repeat
+            Map<Integer, String> groupNames = new HashMap<>();
+            Map<String, List<String>> supplementaryGroups = new HashMap<>();
+            for (Group group : groups) {
+                groupNames.putIfAbsent(group.getGid(), group.getName());
+                for (String member : group.getUsers()) {
+                    supplementaryGroups.computeIfAbsent(member, m -> new ArrayList<>()).add(group.getName());
+                }
+            }
+
+            IntObjectMap<String> usernames = new IntObjectMap<>(users.size());
+            Map<String, List<String>> groupsByUser = new HashMap<>();
+            for (User user : users) {
+                if (usernames.get(user.getUid()) == null) {
+                    usernames.put(user.getUid(), user.getName());
+                }
+                if (groupsByUser.containsKey(user.getName())) {
+                    continue;
+                }
+                Set<String> userGroups = new LinkedHashSet<>();
+                String primaryGroup = groupNames.get(user.getGid());
+                if (primaryGroup != null) {
+                    userGroups.add(primaryGroup);
+                }
+                userGroups.addAll(supplementaryGroups.getOrDefault(user.getName(), Collections.emptyList()));
+                groupsByUser.put(user.getName(), Collections.unmodifiableList(new ArrayList<>(userGroups)));
+            }
+            return new PrincipalIndex(usernames, groupsByUser);
+        }
+
+        private static <T> List<T> readEntries(Path file, Function<String, T> parser) throws IOException {
+            List<T> entries = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                // Skip blank lines, comments and NIS compat entries
+                if (line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '+' || line.charAt(0) == '-') {
+                    continue;
+                }
+                try {
+                    entries.add(parser.apply(line));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Skipping an invalid entry in {}", file);
+                }
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task on a daemon thread whenever a {@link WatchService} reports that one of a few files changed.
+ */
+@Slf4j
+class FilesWatcher implements Closeable {
+    // Tools such as useradd write both files, and some write them more than once
+    private static final long QUIET_PERIOD_MS = 200;
+
+    private final List<Path> files = new ArrayList<>();
+    private final Runnable onChange;
+    private final String threadName;
+    private WatchService watchService;
+
+    /**
+     * @param files      the files to watch
+     * @param onChange   runs once a burst of changes is over
+     * @param threadName the name of the watching thread
+     */
+    FilesWatcher(List<Path> files, Runnable onChange, String threadName) {
+        for (Path file : files) {
+            this.files.add(file.toAbsolutePath());
+        }
+        this.onChange = onChange;
+        this.threadName = threadName;
+    }
+
+    /**
+     * Starts watching, unless already started.
+     */
+    synchronized void start() {
+        if (watchService != null) {
+            return;
+        }
+        try {
+            watchService = files.get(0).getFileSystem().newWatchService();
+            // Watch the directories, as the files are usually replaced rather than written in place
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Path file : files) {
+                directories.add(file.getParent());
+            }
+            for (Path directory : directories) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't watch " + files, e);
+        }
+        WatchService watching = watchService;
+        Thread watcher = new Thread(() -> watch(watching), threadName);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("Couldn't stop watching {}", files, e);
+            }
+        }
+    }
+
+    private void watch(WatchService watching) {
+        try {
+            while (true) {
+                boolean changed = isWatchedFileChanged(watching.take());
+                // Take in the rest of a burst of changes before running
+                WatchKey key;
+                while ((key = watching.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= isWatchedFileChanged(key);
+                }
+                if (changed) {
+                    onChange.run();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            log.debug("Stopped watching {}", files);
+        }
+    }
+
+    private boolean isWatchedFileChanged(WatchKey key) {
+        boolean changed = false;
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else {
+                changed |= files.contains(directory.resolve((Path) event.context()));
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
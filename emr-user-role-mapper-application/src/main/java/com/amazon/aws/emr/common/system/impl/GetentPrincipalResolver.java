@@ -0,0 +1,259 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.impl;
+
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Looks users and groups up through a long-lived shell helper, so that the lookups go through NSS like the
+ * "command" strategy, but the JVM forks once instead of once per lookup.
+ *
+ * <p>
+ * Lookups are written to the stdin of the helper one per line, and it answers each with one line on its stdout, in
+ * order. Callers do not wait for each other to write, so many lookups can be in progress at once. The helper is
+ * started again on the next lookup if it dies, or if it does not answer in time. A lookup is only timed from when the
+ * helper gets to it, so that lookups queued behind a slow one are not failed for it, and lookups that the helper did
+ * not get to before it was stopped are sent again to the next one.
+ */
+@Slf4j
+public class GetentPrincipalResolver extends AbstractPrincipalResolver {
+    private static final long LOOKUP_TIMEOUT_MS = 3000;
+    // Once more for the lookups that were still queued when the helper was stopped
+    private static final int MAX_LOOKUP_ATTEMPTS = 2;
+    // Forks getent and id from a small shell, which is cheap compared to forking the JVM
+    @VisibleForTesting
+    static final String HELPER_SCRIPT = String.join("\n",
+            "while read -r op arg; do",
+            "  case \"$op\" in",
+            "    user) out=$(getent passwd \"$arg\") && echo \"ok ${out%%:*}\" || echo none ;;",
+            "    groups) out=$(id -Gn \"$arg\" 2>/dev/null) && echo \"ok $out\" || echo none ;;",
+            "    *) echo none ;;",
+            "  esac",
+            "done");
+    private static final String FOUND = "ok";
+    // Anything else could break the one line per lookup protocol, or be taken as an option
+    private static final Pattern VALID_NAME = Pattern.compile("[^\\s-][^\\s]*");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final List<String> helperCommand;
+    private Helper helper;
+    private boolean closed;
+
+    public GetentPrincipalResolver() {
+        this(Arrays.asList("/bin/sh", "-c", HELPER_SCRIPT));
+    }
+
+    @VisibleForTesting
+    GetentPrincipalResolver(List<String> helperCommand) {
+        this.helperCommand = helperCommand;
+    }
+
+    @Override
+    protected Optional<String> getLinuxUsername(int uid) {
+        log.debug("Finding username for uid: {}", uid);
+        return lookup("user", String.valueOf(uid)).stream().findFirst();
+    }
+
+    @Override
+    protected List<String> getLinuxGroups(String username) {
+        log.debug("Finding groups for user: {}", username);
+        if (!VALID_NAME.matcher(username).matches()) {
+            log.error("Not looking up groups for invalid username: {}", username);
+            return new ArrayList<>();
+        }
+        return lookup("groups", username);
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        closed = true;
+        if (helper != null) {
+            helper.stop();
+            helper = null;
+        }
+    }
+
+    /**
+     * Returns the words the helper answered with, or an empty list if nothing was found or the lookup failed.
+     */
+    private List<String> lookup(String operation, String argument) {
+        for (int attempt = 0; attempt < MAX_LOOKUP_ATTEMPTS; attempt++) {
+            Helper current;
+            Lookup lookup = new Lookup();
+            try {
+                current = send(operation + " " + argument + "\n", lookup);
+            } catch (IOException e) {
+                log.error("Couldn't send lookup to helper: {} {}", operation, argument, e);
+                return new ArrayList<>();
+            }
+
+            try {
+                String line = await(lookup);
+                List<String> words = new ArrayList<>(Arrays.asList(WHITESPACE.split(line.trim())));
+                if (!words.isEmpty() && words.get(0).equals(FOUND)) {
+                    return new ArrayList<>(words.subList(1, words.size()));
+                }
+            } catch (TimeoutException e) {
+                log.error("Helper didn't answer in time, restarting it: {} {}", operation, argument);
+                stop(current);
+            } catch (ExecutionException e) {
+                if (!lookup.isStarted()) {
+                    log.debug("Helper stopped before lookup, sending it again: {} {}", operation, argument);
+                    continue;
+                }
+                log.error("Helper stopped during lookup: {} {}", operation, argument, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted during lookup: {} {}", operation, argument);
+            }
+            return new ArrayList<>();
+        }
+        log.error("Helper stopped before lookup again: {} {}", operation, argument);
+        return new ArrayList<>();
+    }
+
+    /**
+     * Waits for the answer until {@value #LOOKUP_TIMEOUT_MS} ms after the helper got to the lookup.
+     */
+    private static String await(Lookup lookup) throws InterruptedException, ExecutionException, TimeoutException {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(LOOKUP_TIMEOUT_MS);
+        while (true) {
+            boolean started = lookup.isStarted();
+            long waitNanos = started ? lookup.startedNanos + timeoutNanos - System.nanoTime() : timeoutNanos;
+            try {
+                return lookup.answer.get(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (started) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the lookup and writes it in one step, so that answers are matched with lookups in order.
+     */
+    private synchronized Helper send(String request, Lookup lookup) throws IOException {
+        if (closed) {
+            throw new IOException("Resolver is closed");
+        }
+        if (helper == null || !helper.isAlive()) {
+            helper = new Helper(helperCommand);
+        }
+        Helper current = helper;
+        current.pending.add(lookup);
+        // Otherwise started by the reader, once the lookups ahead are answered
+        if (current.pending.peek() == lookup) {
+            lookup.start();
+        }
+        try {
+            current.stdin.write(request);
+            current.stdin.flush();
+        } catch (IOException e) {
+            current.stop();
+            throw e;
+        }
+        return current;
+    }
+
+    private synchronized void stop(Helper stale) {
+        stale.stop();
+        if (helper == stale) {
+            helper = null;
+        }
+    }
+
+    private static final class Lookup {
+        private final CompletableFuture<String> answer = new CompletableFuture<>();
+        private volatile boolean started;
+        private volatile long startedNanos;
+
+        private void start() {
+            if (!started) {
+                startedNanos = System.nanoTime();
+                started = true;
+            }
+        }
+
+        private boolean isStarted() {
+            return started;
+        }
+    }
+
+    /**
+     * One run of the helper, with a daemon thread that hands its answers to the lookups waiting for them.
+     */
+    private static final class Helper {
+        private final Process process;
+        private final Writer stdin;
+        private final Queue<Lookup> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean alive = true;
+
+        private Helper(List<String> command) throws IOException {
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            Thread reader = new Thread(this::readAnswers, "getent-helper-reader");
+            reader.setDaemon(true);
+            reader.start();
+            log.info("Started principal lookup helper");
+        }
+
+        private boolean isAlive() {
+            return alive;
+        }
+
+        private void readAnswers() {
+            try (BufferedReader stdout = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = stdout.readLine()) != null) {
+                    Lookup lookup = pending.poll();
+                    if (lookup != null) {
+                        lookup.answer.complete(line);
+                    }
+                    Lookup next = pending.peek();
+                    if (next != null) {
+                        next.start();
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("Couldn't read from principal lookup helper", e);
+            }
+            stop();
+        }
+
+        private void stop() {
+            if (alive) {
+                alive = false;
+                log.warn("Stopping principal lookup helper");
+            }
+            process.destroyForcibly();
+            IOException stopped = new IOException("Principal lookup helper stopped");
+            Lookup lookup;
+            while ((lookup = pending.poll()) != null) {
+                lookup.answer.completeExceptionally(stopped);
+            }
+        }
+    }
+}
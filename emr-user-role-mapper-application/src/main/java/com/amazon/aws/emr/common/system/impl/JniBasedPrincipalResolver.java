@@ -11,8 +11,10 @@ import org.bytedeco.systems.linux.group;
 import org.bytedeco.systems.linux.passwd;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -25,7 +27,9 @@ import java.util.concurrent.TimeUnit;
 @Slf4j
 @NoArgsConstructor
 public class JniBasedPrincipalResolver extends AbstractPrincipalResolver {
-    private static final int MAX_NUM_GROUPS_FETCH = 100;
+    // Enough for most users. The buffer grows to the size getgrouplist reports for the others.
+    private static final int INITIAL_NUM_GROUPS_FETCH = 64;
+    private static final int MAX_GROUP_LIST_ATTEMPTS = 3;
 
     @VisibleForTesting
     JniBasedPrincipalResolver(Integer groupMapTtl, TimeUnit timeUnit) {
@@ -50,19 +54,65 @@ public class JniBasedPrincipalResolver extends AbstractPrincipalResolver {
     protected List<String> getLinuxGroups(String username) {
         List<String> groups = new ArrayList<>();
 
+        int[] groupIds = getLinuxGroupIds(username);
+        log.debug("Retrieving {} groups for username: {}", groupIds.length, username);
+        for (int groupId : groupIds) {
+            group grp = linux.getgrgid(groupId);
+
+            if (grp == null || grp.gr_name() == null) {
+                log.debug("No group entry found for gid: {} username: {}", groupId, username);
+                continue;
+            }
+            groups.add(grp.gr_name().getString());
+        }
+        return groups;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Cached like the group names.
+     */
+    @Override
+    public Optional<int[]> getGroupIds(String username) {
+        return Optional.of(getCachedGroupIds(username));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Not cached, as callers resolve the few groups they look for once.
+     */
+    @Override
+    public OptionalInt getGroupId(String groupName) {
+        group grp = linux.getgrnam(groupName);
+        if (grp == null) {
+            log.debug("No group entry found for group: {}", groupName);
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of(grp.gr_gid());
+    }
+
+    @Override
+    @VisibleForTesting
+    protected int[] getLinuxGroupIds(String username) {
         log.debug("Finding groups for user: {}", username);
         passwd passwdEntry = linux.getpwnam(username);
 
         if (passwdEntry == null) {
             log.error("Couldn't fetch record from password database for user: {}", username);
-            return groups;
+            return new int[0];
         }
 
         int gid = passwdEntry.pw_gid();
         log.debug("Got group id: {} for username: {}", gid, username);
+        return getLinuxGroupIds(username, gid);
+    }
 
-        int[] numGroups = new int[] { MAX_NUM_GROUPS_FETCH };
-        int[] allGroupIds = new int[MAX_NUM_GROUPS_FETCH];
+    @VisibleForTesting
+    int[] getLinuxGroupIds(String username, int gid) {
+        int[] numGroups = new int[] { INITIAL_NUM_GROUPS_FETCH };
+        int[] allGroupIds = new int[INITIAL_NUM_GROUPS_FETCH];
 
         /* If the number of groups of which user is a member is less than or equal
          * to numGroups, then the value numGroups is returned.
@@ -70,30 +120,23 @@ public class JniBasedPrincipalResolver extends AbstractPrincipalResolver {
          * If the user is a member of more than numGroups groups, then
          * getgrouplist() returns -1.  In this case, the value returned in
          * numGroups can be used to resize the buffer passed to a further call
-         * getgrouplist().
-         */
-        int getGroupsExitCode = linux.getgrouplist(username, gid, allGroupIds, numGroups);
-
-        if (getGroupsExitCode == -1) {
-            log.warn("Some groups may not be fetched, {} has more than {} groups", username, MAX_NUM_GROUPS_FETCH);
-        }
-
-        /* nGroups[0] is always set to actual number of groups a user is part of.
-         * To avoid spending too much time/ putting memory pressure, we will only
-         * fetch minimum of {numGroups[0], MAX_NUM_GROUPS_FETCH}.
-         * As a follow up, we can make this limit configurable.
+         * getgrouplist(). Membership can change between the calls, so retry a few times.
          */
-        int numGroupsToFetch = Math.min(numGroups[0], MAX_NUM_GROUPS_FETCH);
-        log.debug("Retrieving {} groups for username: {}", numGroupsToFetch, username);
-        for (int i = 0; i < numGroupsToFetch; i++) {
-            group grp = linux.getgrgid(allGroupIds[i]);
-
-            if (grp == null || grp.gr_name() == null) {
-                log.debug("No group entry found for gid: {} username: {}", allGroupIds[i], username);
-                continue;
+        for (int attempt = 0; attempt < MAX_GROUP_LIST_ATTEMPTS; attempt++) {
+            if (getGroupList(username, gid, allGroupIds, numGroups) != -1) {
+                return Arrays.copyOf(allGroupIds, numGroups[0]);
             }
-            groups.add(grp.gr_name().getString());
+            log.debug("{} has more than {} groups, retrying with a buffer of {}", username, allGroupIds.length,
+                    numGroups[0]);
+            allGroupIds = new int[Math.max(numGroups[0], allGroupIds.length * 2)];
+            numGroups[0] = allGroupIds.length;
         }
-        return groups;
+        log.error("Couldn't fetch groups for user: {}, the number of groups kept changing", username);
+        return new int[0];
+    }
+
+    @VisibleForTesting
+    int getGroupList(String username, int gid, int[] groupIds, int[] numGroups) {
+        return linux.getgrouplist(username, gid, groupIds, numGroups);
     }
 }
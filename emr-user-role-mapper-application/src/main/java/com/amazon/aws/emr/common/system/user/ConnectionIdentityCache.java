@@ -0,0 +1,103 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the caller identified on a Jetty connection, so that later requests on the same keep-alive connection
+ * skip {@link UserIdService} and the principal lookup.
+ *
+ * <p>
+ * The peer of a TCP connection cannot change while it is open, so an identity is kept until the connection closes.
+ * Identities are only reused for the same kind of request (IMDS or direct) that they were resolved for, as the two
+ * are authenticated against different sockets. Requests that did not arrive over a Jetty connection are never cached.
+ */
+@Slf4j
+public class ConnectionIdentityCache implements Connection.Listener {
+
+    private final Map<Connection, CallerIdentity> identities = new ConcurrentHashMap<>();
+
+    /**
+     * The caller of a connection.
+     */
+    @Value
+    public static class CallerIdentity {
+        int uid;
+        String username;
+        boolean nativeIMDSApi;
+    }
+
+    /**
+     * @param httpServletRequest the HTTP request
+     * @param isNativeIMDSApi    whether the request was intercepted on its way to IMDS
+     * @return the caller previously identified on the connection of the request
+     */
+    public Optional<CallerIdentity> get(HttpServletRequest httpServletRequest, boolean isNativeIMDSApi) {
+        Connection connection = getConnection(httpServletRequest);
+        if (connection == null) {
+            return Optional.empty();
+        }
+        CallerIdentity identity = identities.get(connection);
+        if (identity == null || identity.isNativeIMDSApi() != isNativeIMDSApi) {
+            return Optional.empty();
+        }
+        return Optional.of(identity);
+    }
+
+    /**
+     * Attaches the identified caller to the connection of the request, until the connection is closed.
+     *
+     * @param httpServletRequest the HTTP request
+     * @param identity           the caller of the request
+     */
+    public void put(HttpServletRequest httpServletRequest, CallerIdentity identity) {
+        Connection connection = getConnection(httpServletRequest);
+        if (connection == null) {
+            return;
+        }
+        if (identities.put(connection, identity) == null) {
+            connection.addListener(this);
+            // The connection may have been closed before the listener was added
+            if (!connection.getEndPoint().isOpen()) {
+                onClosed(connection);
+            }
+        }
+    }
+
+    public int size() {
+        return identities.size();
+    }
+
+    @Override
+    public void onOpened(Connection connection) {
+        // noop
+    }
+
+    @Override
+    public void onClosed(Connection connection) {
+        if (identities.remove(connection) != null) {
+            log.debug("Dropped caller identity of closed connection {}", connection);
+        }
+        connection.removeListener(this);
+    }
+
+    private static Connection getConnection(HttpServletRequest httpServletRequest) {
+        Request baseRequest = Request.getBaseRequest(httpServletRequest);
+        if (baseRequest == null) {
+            return null;
+        }
+        HttpChannel channel = baseRequest.getHttpChannel();
+        return channel == null ? null : channel.getConnection();
+    }
+}
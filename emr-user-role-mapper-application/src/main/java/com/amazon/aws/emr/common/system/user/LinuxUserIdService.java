@@ -6,14 +6,10 @@ package com.amazon.aws.emr.common.system.user;
 import com.amazon.aws.emr.common.Constants;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.OptionalInt;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Authenticates users via /proc/net/tpc(6) by searching for matching Linux UID in the file.
@@ -28,10 +24,24 @@ import java.util.regex.Pattern;
 public class LinuxUserIdService implements UserIdService {
 
     public static final int TCP_ESTABLISHED = 1;
+
     /**
+     * Addresses from {@link Constants.Network} as decoded by {@link ProcNetTcpParser}.
      * Details on /proc/net/tpc(6) format: http://lkml.iu.edu/hypermail/linux/kernel/0409.1/2166.html
      */
-    private static Pattern pattern = Pattern.compile("\\s*\\d+: ([0-9A-Fa-f]+):([0-9A-Fa-f]+) ([0-9A-Fa-f]+):([0-9A-Fa-f]+) ([0-9A-Fa-f]{2}) [0-9A-Fa-f]+:[0-9A-Fa-f]+ [0-9A-Fa-f]+:[0-9A-Fa-f]+ [0-9A-Fa-f]+\\s+([0-9]+).+");
+    private static final int[] IPV4_IMDS_ADDR = ProcNetTcpParser.decodeAddress(
+            Constants.Network.IPV4_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER);
+    private static final int[] IPV6_IMDS_ADDR = ProcNetTcpParser.decodeAddress(
+            Constants.Network.IPV6_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER);
+    private static final int[] IPV4_LOCALHOST_ADDR = ProcNetTcpParser.decodeAddress(
+            Constants.Network.IPV4_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER);
+    private static final int[] IPV6_LOCALHOST_ADDR = ProcNetTcpParser.decodeAddress(
+            Constants.Network.IPV6_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER);
+    private static final int[] IPV4_MAPPED_IPV6_LOCALHOST_ADDR = ProcNetTcpParser.decodeAddress(
+            Constants.Network.IPV4_MAPPED_IPV6_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER);
+
+    private static final ProcNetTcpParser.RowVisitor IMDS_SOCKET = row -> isCallerSocket(row, true);
+    private static final ProcNetTcpParser.RowVisitor SERVER_SOCKET = row -> isCallerSocket(row, false);
 
     private final String ipV4Path;
     private final String ipV6Path;
@@ -86,26 +96,20 @@ public class LinuxUserIdService implements UserIdService {
         }
 
         OptionalInt uid;
-        try (BufferedReader br = new BufferedReader(new FileReader(ipV4Path))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                uid = getUID(line, localPort, remotePort, remoteAddr, isNativeIMDSApi);
-                if (uid.isPresent()) {
-                    return uid;
-                }
+        try {
+            uid = findUID(ipV4Path, remotePort, isNativeIMDSApi);
+            if (uid.isPresent()) {
+                return uid;
             }
         } catch (IOException e) {
             log.error("Exception reading {} file. ", ipV4Path, e);
             // May be this succeeds with TCP6 socket!
         }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(ipV6Path))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                uid = getUID(line, localPort, remotePort, remoteAddr, isNativeIMDSApi);
-                if (uid.isPresent()) {
-                    return uid;
-                }
+        try {
+            uid = findUID(ipV6Path, remotePort, isNativeIMDSApi);
+            if (uid.isPresent()) {
+                return uid;
             }
         } catch (IOException e) {
             log.error("Exception reading {} file. ", ipV6Path, e);
@@ -115,54 +119,29 @@ public class LinuxUserIdService implements UserIdService {
         return OptionalInt.empty();
     }
 
-    private OptionalInt getUID(String line, int reqLocalPort,
-                               int reqRemotePort, String procRemoteAddress,
-                               boolean isNativeIMDSApi) {
-        return getUID(
-                line,
-                procRemoteAddress,
-                reqLocalPort, reqRemotePort, isNativeIMDSApi);
+    private OptionalInt findUID(String path, int reqRemotePort, boolean isNativeIMDSApi) throws IOException {
+        // The local port of the caller's socket is the remote port of the HTTP socket
+        ProcNetTcpParser.Row row = ProcNetTcpParser.parse(path, reqRemotePort,
+                isNativeIMDSApi ? IMDS_SOCKET : SERVER_SOCKET);
+        return row == null ? OptionalInt.empty() : OptionalInt.of(row.uid);
     }
 
-    private OptionalInt getUID(String line, String remoteAddr,
-                               int reqLocalPort, int reqRemotePort,
-                               boolean isNativeIMDSApi) {
-        Matcher matcher = pattern.matcher(line);
-        if (!matcher.matches()) {
-            return OptionalInt.empty();
-        }
-
-        int groupCount = matcher.groupCount();
-        if (groupCount <= 5) {
-            return OptionalInt.empty();
-        }
-
-        long procLocalPort = Long.parseLong(matcher.group(2), 16);
-        String procRemoteAddress = matcher.group(3);
-        long procRemotePort = Long.parseLong(matcher.group(4), 16);
-        long state = Long.parseLong(matcher.group(5), 16);
-        int uid = Integer.parseInt(matcher.group(6));
-
+    /**
+     * @param row             a row of /proc/net/tcp(6) for the caller's local port
+     * @param isNativeIMDSApi whether the caller is expected to be connected to IMDS
+     * @return {@code true} if the row is the caller's socket
+     */
+    static boolean isCallerSocket(ProcNetTcpParser.Row row, boolean isNativeIMDSApi) {
         if (isNativeIMDSApi) {
-            if ((procRemoteAddress.equals(Constants.Network.IPV4_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER) ||
-                    procRemoteAddress.equals(Constants.Network.IPV6_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER))
-                    && procLocalPort == reqRemotePort
-                    && procRemotePort == 80
-                    && state == TCP_ESTABLISHED
-            ) {
-                return OptionalInt.of(uid);
-            }
-        } else {
-            // Socket established directly from caller process to the server for below use cases:
-            // 1/ impersonation request from EMR-FS
-            if ((procLocalPort == reqRemotePort && procRemotePort == Constants.JETTY_PORT)
-                    && (procRemoteAddress.equals(Constants.Network.IPV4_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER)
-                    || procRemoteAddress.equals(Constants.Network.IPV6_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER)
-                    || procRemoteAddress.equals(Constants.Network.IPV4_MAPPED_IPV6_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER))) {
-                return OptionalInt.of(uid);
-            }
+            return (row.isRemoteAddress(IPV4_IMDS_ADDR) || row.isRemoteAddress(IPV6_IMDS_ADDR))
+                    && row.remotePort == 80
+                    && row.state == TCP_ESTABLISHED;
         }
-
-        return OptionalInt.empty();
+        // Socket established directly from caller process to the server for below use cases:
+        // 1/ impersonation request from EMR-FS
+        return row.remotePort == Constants.JETTY_PORT
+                && (row.isRemoteAddress(IPV4_LOCALHOST_ADDR)
+                || row.isRemoteAddress(IPV6_LOCALHOST_ADDR)
+                || row.isRemoteAddress(IPV4_MAPPED_IPV6_LOCALHOST_ADDR));
     }
 }
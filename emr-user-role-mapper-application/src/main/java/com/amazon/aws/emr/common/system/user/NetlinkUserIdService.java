@@ -0,0 +1,266 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import com.amazon.aws.emr.common.Constants;
+import com.amazon.aws.emr.common.Constants.Linux.Netlink;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.systems.global.linux;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authenticates users by asking the kernel who owns the caller's TCP socket via NETLINK_SOCK_DIAG.
+ *
+ * <p>
+ * Rather than reading every row of /proc/net/tcp(6), a single inet_diag request carrying the exact 4-tuple of the
+ * caller's socket is sent to the kernel, which answers with at most one socket. The cost of a lookup therefore does
+ * not depend on the size of the socket table.
+ * <p>
+ * The caller's socket is the mirror image of the HTTP socket: its source is the HTTP remote addr/port, and its
+ * destination is either IMDS (for intercepted IMDS calls) or this server. If the kernel reports no matching socket,
+ * or netlink can't be used on this host, the lookup falls back to scanning /proc with {@link LinuxUserIdService}.
+ * Netlink is only given up on for good when the host does not support it. Other errors, such as running out of
+ * file descriptors, only send the lookup that hit them to /proc.
+ */
+@Slf4j
+public class NetlinkUserIdService implements UserIdService {
+
+    private static final int NLMSG_HDR_LEN = 16;
+    private static final int INET_DIAG_REQ_V2_LEN = 56;
+    private static final int REQUEST_LEN = NLMSG_HDR_LEN + INET_DIAG_REQ_V2_LEN;
+    // Offsets of the fields we care about in struct inet_diag_msg
+    private static final int INET_DIAG_MSG_STATE_OFFSET = 1;
+    private static final int INET_DIAG_MSG_UID_OFFSET = 64;
+    private static final int INET_DIAG_MSG_LEN = 72;
+    private static final int RECEIVE_BUFFER_LEN = 8192;
+    private static final int IMDS_PORT = 80;
+    private static final byte[] IMDS_ADDR = {(byte) 169, (byte) 254, (byte) 169, (byte) 254};
+    // Lookups that hit a transient error are logged at most this often, as they may come in bursts
+    private static final long TRANSIENT_ERROR_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private final UserIdService fallback;
+    private volatile boolean netlinkAvailable = true;
+    private final AtomicLong lastTransientErrorLogNanos =
+            new AtomicLong(System.nanoTime() - TRANSIENT_ERROR_LOG_INTERVAL_NANOS);
+
+    public NetlinkUserIdService() {
+        this(new LinuxUserIdService());
+    }
+
+    public NetlinkUserIdService(UserIdService fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Resolve linux user id by querying the kernel for the caller's socket.
+     *
+     * For intercepted IMDS call, the caller's socket must be connected to IMDS.
+     * For non-IMDS call, the caller's socket must be connected to this server over loopback.
+     *
+     * @param localAddr
+     * @param localPort
+     * @param remoteAddr
+     * @param remotePort
+     * @param isNativeIMDSApi
+     * @return
+     */
+    @Override
+    public OptionalInt resolveSystemUID(String localAddr, int localPort,
+                                        String remoteAddr, int remotePort,
+                                        boolean isNativeIMDSApi) {
+        if (!LinuxUserIdService.isLocalhost(localAddr)) {
+            log.debug("Local address is not localhost on the HTTP socket!");
+            return OptionalInt.empty();
+        }
+
+        if (netlinkAvailable) {
+            try {
+                byte[] src = InetAddress.getByName(remoteAddr).getAddress();
+                byte[] dst = isNativeIMDSApi ? IMDS_ADDR : InetAddress.getByName(localAddr).getAddress();
+                int dport = isNativeIMDSApi ? IMDS_PORT : Constants.JETTY_PORT;
+                OptionalInt uid = querySocketOwner(src, remotePort, dst, dport);
+                if (uid.isPresent()) {
+                    return uid;
+                }
+                log.debug("No socket found over netlink for {}:{}. Scanning /proc instead.", remoteAddr, remotePort);
+            } catch (UnknownHostException e) {
+                throw new RuntimeException(String.format("Unexpected IP address (%s)", remoteAddr));
+            } catch (LinkageError e) {
+                // The native library could not be loaded
+                log.warn("Unable to query sockets over netlink. Falling back to scanning /proc.", e);
+                netlinkAvailable = false;
+            } catch (NetlinkException e) {
+                if (e.isUnsupported()) {
+                    log.warn("Netlink does not support inet_diag on this host. Falling back to scanning /proc.", e);
+                    netlinkAvailable = false;
+                } else {
+                    logTransientError(e);
+                }
+            }
+        }
+        return fallback.resolveSystemUID(localAddr, localPort, remoteAddr, remotePort, isNativeIMDSApi);
+    }
+
+    private void logTransientError(NetlinkException e) {
+        long now = System.nanoTime();
+        long last = lastTransientErrorLogNanos.get();
+        if (now - last >= TRANSIENT_ERROR_LOG_INTERVAL_NANOS && lastTransientErrorLogNanos.compareAndSet(last, now)) {
+            log.warn("Unable to query sockets over netlink. Scanning /proc for this lookup.", e);
+        } else {
+            log.debug("Unable to query sockets over netlink. Scanning /proc for this lookup.", e);
+        }
+    }
+
+    /**
+     * Looks up the owner of the established socket with the given source and destination.
+     * IPv4 sockets may live in either address family, so both are tried.
+     */
+    @VisibleForTesting
+    OptionalInt querySocketOwner(byte[] src, int sport, byte[] dst, int dport) {
+        if (src.length == dst.length && src.length == 4) {
+            OptionalInt uid = query(linux.AF_INET, src, sport, dst, dport);
+            if (uid.isPresent()) {
+                return uid;
+            }
+        }
+        return query(linux.AF_INET6, toIpV6(src), sport, toIpV6(dst), dport);
+    }
+
+    private OptionalInt query(int family, byte[] src, int sport, byte[] dst, int dport) {
+        int fd = linux.socket(linux.AF_NETLINK, linux.SOCK_DGRAM, Netlink.NETLINK_SOCK_DIAG);
+        if (fd < 0) {
+            throw new NetlinkException("Could not open netlink socket", linux.errno());
+        }
+        try (BytePointer request = new BytePointer(REQUEST_LEN);
+             BytePointer response = new BytePointer(RECEIVE_BUFFER_LEN)) {
+            ByteBuffer requestBuffer = buildRequest(family, src, sport, dst, dport, sequence.incrementAndGet());
+            request.put(requestBuffer.array(), 0, REQUEST_LEN);
+            if (linux.send(fd, request, REQUEST_LEN, 0) != REQUEST_LEN) {
+                throw new NetlinkException("Could not send inet_diag request", linux.errno());
+            }
+            // The kernel handles sock_diag requests synchronously, so the reply is queued by the time send returns.
+            long received = linux.recv(fd, response, RECEIVE_BUFFER_LEN, linux.MSG_DONTWAIT);
+            if (received < 0) {
+                throw new NetlinkException("Could not receive inet_diag response", linux.errno());
+            }
+            byte[] bytes = new byte[(int) received];
+            response.get(bytes, 0, bytes.length);
+            return parseResponse(ByteBuffer.wrap(bytes));
+        } finally {
+            linux._close(fd);
+        }
+    }
+
+    /**
+     * Builds a SOCK_DIAG_BY_FAMILY request (struct nlmsghdr followed by struct inet_diag_req_v2)
+     * for the single established TCP socket with the given 4-tuple.
+     */
+    @VisibleForTesting
+    static ByteBuffer buildRequest(int family, byte[] src, int sport, byte[] dst, int dport, int seq) {
+        ByteBuffer buffer = ByteBuffer.allocate(REQUEST_LEN).order(ByteOrder.nativeOrder());
+        // struct nlmsghdr
+        buffer.putInt(REQUEST_LEN);
+        buffer.putShort((short) Netlink.SOCK_DIAG_BY_FAMILY);
+        buffer.putShort((short) Netlink.NLM_F_REQUEST);
+        buffer.putInt(seq);
+        buffer.putInt(0);
+        // struct inet_diag_req_v2
+        buffer.put((byte) family);
+        buffer.put((byte) Netlink.IPPROTO_TCP);
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.putInt(1 << Constants.Linux.Proc.TCP_STATE_ESTABLISHED);
+        // struct inet_diag_sockid, ports and addresses are in network byte order
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putShort((short) sport);
+        buffer.putShort((short) dport);
+        buffer.put(src).position(buffer.position() + 16 - src.length);
+        buffer.put(dst).position(buffer.position() + 16 - dst.length);
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(0);
+        buffer.putInt(Netlink.INET_DIAG_NOCOOKIE);
+        buffer.putInt(Netlink.INET_DIAG_NOCOOKIE);
+        return buffer;
+    }
+
+    /**
+     * Walks the netlink messages in a response and returns the uid of the first established socket.
+     */
+    @VisibleForTesting
+    static OptionalInt parseResponse(ByteBuffer buffer) {
+        buffer.order(ByteOrder.nativeOrder());
+        int offset = 0;
+        while (offset + NLMSG_HDR_LEN <= buffer.limit()) {
+            int length = buffer.getInt(offset);
+            int type = buffer.getShort(offset + 4);
+            if (length < NLMSG_HDR_LEN || offset + length > buffer.limit()) {
+                break;
+            }
+            if (type == Netlink.NLMSG_ERROR) {
+                int error = -buffer.getInt(offset + NLMSG_HDR_LEN);
+                // ENOENT means there is no such socket, anything else means we can't use inet_diag
+                if (error != 0 && error != linux.ENOENT) {
+                    throw new NetlinkException("Kernel rejected inet_diag request", error);
+                }
+                return OptionalInt.empty();
+            }
+            if (type == Netlink.NLMSG_DONE) {
+                return OptionalInt.empty();
+            }
+            if (type == Netlink.SOCK_DIAG_BY_FAMILY && length >= NLMSG_HDR_LEN + INET_DIAG_MSG_LEN) {
+                int state = buffer.get(offset + NLMSG_HDR_LEN + INET_DIAG_MSG_STATE_OFFSET);
+                if (state == Constants.Linux.Proc.TCP_STATE_ESTABLISHED) {
+                    return OptionalInt.of(buffer.getInt(offset + NLMSG_HDR_LEN + INET_DIAG_MSG_UID_OFFSET));
+                }
+            }
+            // Messages are aligned to 4 bytes
+            offset += (length + 3) & ~3;
+        }
+        return OptionalInt.empty();
+    }
+
+    private static byte[] toIpV6(byte[] addr) {
+        if (addr.length == 16) {
+            return addr;
+        }
+        // IPv4-mapped IPv6 address i.e. ::ffff:a.b.c.d
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xff;
+        mapped[11] = (byte) 0xff;
+        System.arraycopy(addr, 0, mapped, 12, 4);
+        return mapped;
+    }
+
+    /**
+     * Thrown when a socket could not be queried over netlink.
+     */
+    static class NetlinkException extends RuntimeException {
+        private final int errno;
+
+        NetlinkException(String message, int errno) {
+            super(String.format("%s (errno %d)", message, errno));
+            this.errno = errno;
+        }
+
+        /**
+         * @return whether netlink or inet_diag is not supported on this host, so that later queries would fail too
+         */
+        boolean isUnsupported() {
+            return errno == linux.EAFNOSUPPORT || errno == linux.EPROTONOSUPPORT || errno == linux.EINVAL
+                    || errno == linux.EOPNOTSUPP;
+        }
+    }
+}
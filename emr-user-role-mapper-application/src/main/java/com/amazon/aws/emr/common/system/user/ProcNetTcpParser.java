@@ -0,0 +1,257 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parses /proc/net/tcp(6) straight from bytes without creating any objects per row.
+ *
+ * <p>
+ * The file is read in large chunks into a direct {@link ByteBuffer} that is reused by the calling thread. Only the
+ * fields needed to authenticate a caller are decoded, into the primitives of a reused {@link Row}:
+ * <pre>
+ *   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid ...
+ *   0: 0100007F:26AD 0100007F:DD72 01 00000000:00000000 00:00000000 00000000   485 ...
+ * </pre>
+ * The local port is decoded first, and rows for other ports are skipped before anything else is looked at.
+ */
+final class ProcNetTcpParser {
+
+    /**
+     * Port filter that matches every row.
+     */
+    static final int ANY_PORT = -1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<Row> ROW = ThreadLocal.withInitial(Row::new);
+
+    private ProcNetTcpParser() {
+    }
+
+    /**
+     * Receives the rows of a socket table.
+     */
+    interface RowVisitor {
+        /**
+         * @param row the decoded row, only valid for the duration of the call
+         * @return {@code true} to stop parsing at this row
+         */
+        boolean visit(Row row);
+    }
+
+    /**
+     * The fields of a single socket. Addresses are kept as the 32 bit words printed by the kernel,
+     * i.e. one word for IPv4 and four words for IPv6.
+     */
+    static final class Row {
+        int localPort;
+        final int[] remoteAddress = new int[4];
+        int remoteAddressWords;
+        int remotePort;
+        int state;
+        int uid;
+
+        boolean isRemoteAddress(int[] address) {
+            if (address.length != remoteAddressWords) {
+                return false;
+            }
+            for (int i = 0; i < remoteAddressWords; i++) {
+                if (remoteAddress[i] != address[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Decodes an address in the format used by /proc/net/tcp(6) e.g. {@code 0100007F}.
+     */
+    static int[] decodeAddress(String hex) {
+        int[] words = new int[hex.length() / 8];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = (int) Long.parseLong(hex.substring(i * 8, (i + 1) * 8), 16);
+        }
+        return words;
+    }
+
+    /**
+     * Parses a socket table, handing rows for the given local port to the visitor.
+     *
+     * @param path      the /proc/net/tcp(6) file
+     * @param localPort the local port of the rows to visit, or {@link #ANY_PORT}
+     * @param visitor   receives each matching row
+     * @return the row the visitor stopped at, or {@code null} if it never stopped
+     */
+    static Row parse(String path, int localPort, RowVisitor visitor) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        Row row = ROW.get();
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                buffer.flip();
+                int lineStart = buffer.position();
+                int limit = buffer.limit();
+                for (int i = lineStart; i < limit; i++) {
+                    if (buffer.get(i) == '\n') {
+                        if (parseLine(buffer, lineStart, i, localPort, row) && visitor.visit(row)) {
+                            return row;
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                if (eof && lineStart < limit) {
+                    // Last line without a trailing newline
+                    if (parseLine(buffer, lineStart, limit, localPort, row) && visitor.visit(row)) {
+                        return row;
+                    }
+                    lineStart = limit;
+                }
+                if (lineStart == 0 && limit == buffer.capacity()) {
+                    throw new IOException("Line in " + path + " longer than " + BUFFER_SIZE + " bytes");
+                }
+                // Keep the partial line at the end of the buffer for the next read
+                buffer.position(lineStart);
+                buffer.compact();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a line into the row.
+     *
+     * @return {@code false} if the line is not a socket, or is for another local port
+     */
+    private static boolean parseLine(ByteBuffer buffer, int start, int end, int localPort, Row row) {
+        int p = skipSpaces(buffer, start, end);
+        // "sl" column, which is not a number for the header line
+        if (p >= end || !isDigit(buffer.get(p))) {
+            return false;
+        }
+        p = indexOf(buffer, p, end, (byte) ':');
+        // Local address
+        p = indexOf(buffer, skipSpaces(buffer, p + 1, end), end, (byte) ':');
+        if (p >= end) {
+            return false;
+        }
+        // Local port
+        int port = 0;
+        for (p++; p < end && buffer.get(p) != ' '; p++) {
+            int digit = hexValue(buffer.get(p));
+            if (digit < 0) {
+                return false;
+            }
+            port = (port << 4) | digit;
+        }
+        if (localPort != ANY_PORT && port != localPort) {
+            return false;
+        }
+        row.localPort = port;
+
+        // Remote address
+        p++;
+        int words = 0;
+        int word = 0;
+        int digits = 0;
+        for (; p < end && buffer.get(p) != ':'; p++) {
+            int digit = hexValue(buffer.get(p));
+            if (digit < 0 || words == 4) {
+                return false;
+            }
+            word = (word << 4) | digit;
+            if (++digits == 8) {
+                row.remoteAddress[words++] = word;
+                word = 0;
+                digits = 0;
+            }
+        }
+        if (digits != 0 || (words != 1 && words != 4)) {
+            return false;
+        }
+        row.remoteAddressWords = words;
+
+        // Remote port
+        port = 0;
+        for (p++; p < end && buffer.get(p) != ' '; p++) {
+            int digit = hexValue(buffer.get(p));
+            if (digit < 0) {
+                return false;
+            }
+            port = (port << 4) | digit;
+        }
+        row.remotePort = port;
+
+        // State
+        int state = 0;
+        for (p++; p < end && buffer.get(p) != ' '; p++) {
+            int digit = hexValue(buffer.get(p));
+            if (digit < 0) {
+                return false;
+            }
+            state = (state << 4) | digit;
+        }
+        row.state = state;
+
+        // Skip tx_queue:rx_queue, tr:tm->when and retrnsmt
+        for (int field = 0; field < 3; field++) {
+            p = skipSpaces(buffer, p, end);
+            while (p < end && buffer.get(p) != ' ') {
+                p++;
+            }
+        }
+
+        // Uid
+        p = skipSpaces(buffer, p, end);
+        if (p >= end || !isDigit(buffer.get(p))) {
+            return false;
+        }
+        int uid = 0;
+        for (; p < end && isDigit(buffer.get(p)); p++) {
+            uid = uid * 10 + (buffer.get(p) - '0');
+        }
+        row.uid = uid;
+        return true;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int p, int end) {
+        while (p < end && buffer.get(p) == ' ') {
+            p++;
+        }
+        return p;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int p, int end, byte b) {
+        while (p < end && buffer.get(p) != b) {
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,240 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import com.amazon.aws.emr.common.Constants;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Authenticates users via /proc/net/tpc(6) like {@link LinuxUserIdService}, but shares a single scan of the files
+ * between all the requests arriving within a short window.
+ *
+ * <p>
+ * The first request to find no recent snapshot reads both files and indexes the caller sockets by local port, while
+ * concurrent requests wait for it instead of scanning on their own. Each request then looks itself up in the index.
+ * A caller's socket exists before its request arrives, so if a request misses in a snapshot taken before it arrived,
+ * it waits for a snapshot started after it arrived, and only gives up on a miss in that one.
+ */
+@Slf4j
+public class ProcNetTcpSnapshotService implements UserIdService {
+
+    private static final byte IMDS_SOCKET = 1;
+    private static final byte SERVER_SOCKET = 2;
+
+    private final String ipV4Path;
+    private final String ipV6Path;
+    private final long windowNanos;
+    private final AtomicReference<PendingSnapshot> current = new AtomicReference<>();
+    private final LongAdder snapshots = new LongAdder();
+
+    public ProcNetTcpSnapshotService(long windowMillis) {
+        this(Constants.Network.MODULE_PROC_NET_TCP_PATH, Constants.Network.MODULE_PROC_NET_TCP6_PATH, windowMillis);
+    }
+
+    public ProcNetTcpSnapshotService(String ipV4Path, String ipV6Path, long windowMillis) {
+        this.ipV4Path = ipV4Path;
+        this.ipV6Path = ipV6Path;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    @Override
+    public OptionalInt resolveSystemUID(String localAddr, int localPort,
+                                        String remoteAddr, int remotePort,
+                                        boolean isNativeIMDSApi) {
+        if (!LinuxUserIdService.isLocalhost(localAddr)) {
+            log.debug("Local address is not localhost on the HTTP socket!");
+            return OptionalInt.empty();
+        }
+
+        byte kind = isNativeIMDSApi ? IMDS_SOCKET : SERVER_SOCKET;
+        long arrivalNanos = System.nanoTime();
+        PendingSnapshot pending = snapshotStartedAfter(arrivalNanos - windowNanos);
+        // The local port of the caller's socket is the remote port of the HTTP socket
+        OptionalInt uid = pending.join().lookup(remotePort, kind);
+        if (!uid.isPresent() && pending.startedNanos - arrivalNanos < 0) {
+            // The connection may be newer than the snapshot
+            uid = snapshotStartedAfter(arrivalNanos).join().lookup(remotePort, kind);
+        }
+        return uid;
+    }
+
+    /**
+     * @return the number of snapshots taken so far
+     */
+    @VisibleForTesting
+    long getSnapshotCount() {
+        return snapshots.sum();
+    }
+
+    /**
+     * Returns a snapshot started no earlier than the given time, starting one if there is none.
+     * Only the thread that starts a snapshot reads the files, others wait for it to complete.
+     */
+    private PendingSnapshot snapshotStartedAfter(long nanos) {
+        while (true) {
+            PendingSnapshot pending = current.get();
+            if (pending != null && pending.startedNanos - nanos >= 0) {
+                return pending;
+            }
+            PendingSnapshot next = new PendingSnapshot(System.nanoTime());
+            if (current.compareAndSet(pending, next)) {
+                next.load();
+                return next;
+            }
+        }
+    }
+
+    private class PendingSnapshot {
+        final long startedNanos;
+        final CompletableFuture<SocketIndex> future = new CompletableFuture<>();
+
+        PendingSnapshot(long startedNanos) {
+            this.startedNanos = startedNanos;
+        }
+
+        void load() {
+            SocketIndex index = SocketIndex.EMPTY;
+            try {
+                SocketIndex.Builder builder = new SocketIndex.Builder();
+                read(ipV4Path, builder);
+                read(ipV6Path, builder);
+                index = builder.build();
+                snapshots.increment();
+            } catch (RuntimeException e) {
+                log.error("Exception taking snapshot of socket tables", e);
+            } finally {
+                // Never leave the waiting requests hanging
+                future.complete(index);
+            }
+        }
+
+        SocketIndex join() {
+            return future.join();
+        }
+    }
+
+    private static void read(String path, SocketIndex.Builder builder) {
+        try {
+            ProcNetTcpParser.parse(path, ProcNetTcpParser.ANY_PORT, builder);
+        } catch (IOException e) {
+            log.error("Exception reading {} file. ", path, e);
+        }
+    }
+
+    /**
+     * Caller sockets by local port, in primitive arrays. Sockets that can never authenticate a caller are not
+     * indexed. Rows with the same port are chained in file order, so that lookups return the same socket as
+     * {@link LinuxUserIdService}.
+     */
+    @VisibleForTesting
+    static final class SocketIndex {
+
+        static final SocketIndex EMPTY = new Builder().build();
+
+        private static final int NO_ROW = -1;
+
+        // Open addressing table of ports, and the first row for each
+        private final int[] slotPorts;
+        private final int[] slotRows;
+        private final int mask;
+        // Rows
+        private final int[] uids;
+        private final byte[] kinds;
+        private final int[] next;
+
+        private SocketIndex(int[] ports, int[] uids, byte[] kinds, int size) {
+            int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+            this.slotPorts = new int[capacity];
+            this.slotRows = new int[capacity];
+            this.mask = capacity - 1;
+            this.uids = uids;
+            this.kinds = kinds;
+            this.next = new int[size];
+            Arrays.fill(slotRows, NO_ROW);
+            int[] tails = new int[capacity];
+            for (int row = 0; row < size; row++) {
+                next[row] = NO_ROW;
+                int slot = slotOf(ports[row]);
+                if (slotRows[slot] == NO_ROW) {
+                    slotPorts[slot] = ports[row];
+                    slotRows[slot] = row;
+                } else {
+                    next[tails[slot]] = row;
+                }
+                tails[slot] = row;
+            }
+        }
+
+        OptionalInt lookup(int port, byte kind) {
+            for (int row = slotRows[slotOf(port)]; row != NO_ROW; row = next[row]) {
+                if ((kinds[row] & kind) != 0) {
+                    return OptionalInt.of(uids[row]);
+                }
+            }
+            return OptionalInt.empty();
+        }
+
+        int size() {
+            return next.length;
+        }
+
+        /**
+         * @return the slot holding the port, or the empty slot where it would go
+         */
+        private int slotOf(int port) {
+            int slot = (port * 0x9E3779B9) >>> 16 & mask;
+            while (slotRows[slot] != NO_ROW && slotPorts[slot] != port) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        static final class Builder implements ProcNetTcpParser.RowVisitor {
+            private int[] ports = new int[64];
+            private int[] uids = new int[64];
+            private byte[] kinds = new byte[64];
+            private int size;
+
+            @Override
+            public boolean visit(ProcNetTcpParser.Row row) {
+                byte kind = 0;
+                if (LinuxUserIdService.isCallerSocket(row, true)) {
+                    kind |= IMDS_SOCKET;
+                }
+                if (LinuxUserIdService.isCallerSocket(row, false)) {
+                    kind |= SERVER_SOCKET;
+                }
+                if (kind != 0) {
+                    add(row.localPort, row.uid, kind);
+                }
+                return false;
+            }
+
+            void add(int port, int uid, byte kind) {
+                if (size == ports.length) {
+                    ports = Arrays.copyOf(ports, size * 2);
+                    uids = Arrays.copyOf(uids, size * 2);
+                    kinds = Arrays.copyOf(kinds, size * 2);
+                }
+                ports[size] = port;
+                uids[size] = uid;
+                kinds[size] = kind;
+                size++;
+            }
+
+            SocketIndex build() {
+                return new SocketIndex(ports, uids, kinds, size);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import jnr.unixsocket.Credentials;
+import jnr.unixsocket.UnixSocketOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.unixsocket.UnixSocketEndPoint;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.OptionalInt;
+
+/**
+ * Identifies callers connected over the Unix domain socket connector.
+ *
+ * <p>
+ * The kernel records the credentials of the process that connected to a Unix domain socket, and hands them out
+ * through {@code SO_PEERCRED}. Unlike TCP callers, these need no lookup in /proc or netlink, and cannot be spoofed.
+ */
+@Slf4j
+public final class UnixSocketPeerCredentials {
+
+    private UnixSocketPeerCredentials() {
+    }
+
+    /**
+     * @param httpServletRequest the HTTP request
+     * @return the UID of the peer, or empty if the request did not arrive over a Unix domain socket
+     */
+    public static OptionalInt getPeerUid(HttpServletRequest httpServletRequest) {
+        Request baseRequest = Request.getBaseRequest(httpServletRequest);
+        if (baseRequest == null) {
+            return OptionalInt.empty();
+        }
+        HttpChannel channel = baseRequest.getHttpChannel();
+        EndPoint endPoint = channel == null ? null : channel.getEndPoint();
+        if (!(endPoint instanceof UnixSocketEndPoint)) {
+            return OptionalInt.empty();
+        }
+        try {
+            Credentials credentials = ((UnixSocketEndPoint) endPoint).getChannel()
+                    .getOption(UnixSocketOptions.SO_PEERCRED);
+            return OptionalInt.of(credentials.getUid());
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not get the credentials of the Unix domain socket peer", e);
+            return OptionalInt.empty();
+        }
+    }
+}
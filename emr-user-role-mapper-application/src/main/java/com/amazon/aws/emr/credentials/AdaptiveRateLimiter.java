@@ -0,0 +1,96 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import com.amazon.aws.emr.ApplicationConfiguration;
+import com.amazon.aws.emr.common.Constants;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.inject.Inject;
+
+/**
+ * A token bucket in front of STS whose rate adapts to throttling: it is halved whenever STS throttles a call, and
+ * grows back by one call per second for every call that goes through, up to the configured rate.
+ *
+ * <p>
+ * The bucket holds at most one second of calls at the current rate, so that a burst after a quiet period does not
+ * exceed what STS accepted recently.
+ * <p>
+ * One instance is shared by everything that calls STS, so that hedged calls count against the same rate.
+ */
+@Slf4j
+public final class AdaptiveRateLimiter {
+    private static final double MIN_CALLS_PER_SECOND = 1;
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double ADDITIVE_INCREASE = 1;
+
+    private final double maxCallsPerSecond;
+    private final LongSupplier nanoTime;
+    private double callsPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Limits STS calls to {@link Constants#STS_MAX_CALLS_PER_SECOND}.
+     */
+    @Inject
+    public AdaptiveRateLimiter(ApplicationConfiguration applicationConfiguration) {
+        this(applicationConfiguration.getProperty(Constants.STS_MAX_CALLS_PER_SECOND,
+            Constants.DEFAULT_STS_MAX_CALLS_PER_SECOND));
+    }
+
+    /**
+     * @param maxCallsPerSecond the rate while STS does not throttle
+     */
+    AdaptiveRateLimiter(int maxCallsPerSecond) {
+        this(maxCallsPerSecond, System::nanoTime);
+    }
+
+    @VisibleForTesting
+    AdaptiveRateLimiter(int maxCallsPerSecond, LongSupplier nanoTime) {
+        this.maxCallsPerSecond = Math.max(MIN_CALLS_PER_SECOND, maxCallsPerSecond);
+        this.nanoTime = nanoTime;
+        this.callsPerSecond = this.maxCallsPerSecond;
+        this.tokens = this.maxCallsPerSecond;
+        this.lastRefillNanos = nanoTime.getAsLong();
+    }
+
+    /**
+     * @return {@code true} if a call can be made now, {@code false} if it would exceed the rate
+     */
+    synchronized boolean tryAcquire() {
+        long now = nanoTime.getAsLong();
+        double elapsedSeconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(callsPerSecond, tokens + elapsedSeconds * callsPerSecond);
+        lastRefillNanos = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Records a call that STS did not throttle.
+     */
+    synchronized void onSuccess() {
+        callsPerSecond = Math.min(maxCallsPerSecond, callsPerSecond + ADDITIVE_INCREASE);
+    }
+
+    /**
+     * Records a call that STS throttled.
+     */
+    synchronized void onThrottled() {
+        callsPerSecond = Math.max(MIN_CALLS_PER_SECOND, callsPerSecond * DECREASE_FACTOR);
+        tokens = Math.min(tokens, callsPerSecond);
+        log.warn("STS is throttling, lowered the rate of STS calls to {}/s", callsPerSecond);
+    }
+
+    synchronized double getCallsPerSecond() {
+        return callsPerSecond;
+    }
+}
@@ -0,0 +1,285 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import com.amazon.aws.emr.ApplicationConfiguration;
+import com.amazon.aws.emr.common.Constants;
+import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazon.aws.emr.mapping.MappingInvoker;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.glassfish.hk2.api.Immediate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches credentials for the recently active callers when the server starts, so that their first requests after a
+ * restart do not all wait on STS at once.
+ *
+ * <p>
+ * The callers that got credentials are written to {@link Constants#PREWARM_FILE} every few minutes, one
+ * "uid username role last-seen-millis" line for each user and role. Users that got credentials through
+ * impersonation, such as the users of Hive or Presto, are written with a uid of {@value #NO_UID_FIELD}. On start, the
+ * callers seen within the last hour are mapped again once the first mapping is loaded, most recent first and at a
+ * bounded rate, and credentials are fetched for what they map to now. The role is only written for operators to read.
+ */
+@Slf4j
+@Immediate
+public class CredentialsPrewarmer {
+    private static final int MAX_HOT_PRINCIPALS = 1000;
+    private static final long WRITE_INTERVAL_MINS = 5;
+    // The last seen time of a caller is updated at most this often, so that requests rarely write to the map
+    private static final long RECORD_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int PREWARM_CALLS_PER_SECOND = 10;
+    private static final String HEADER = "# uid\tusername\trole\tlast-seen-millis";
+    private static final Pattern FIELD_SEPARATOR = Pattern.compile("\t");
+    // The uid of users only seen through impersonation
+    private static final int NO_UID = -1;
+    private static final String NO_UID_FIELD = "-";
+
+    @Inject
+    ApplicationConfiguration applicationConfiguration;
+
+    @Inject
+    MappingInvoker mappingInvoker;
+
+    @Inject
+    PrincipalResolver principalResolver;
+
+    @Inject
+    MetadataCredentialsProvider metadataCredentialsProvider;
+
+    private final ConcurrentMap<PrincipalRole, HotPrincipal> hotPrincipals = new ConcurrentHashMap<>();
+    // Null when prewarming is disabled
+    private volatile Path file;
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    void init() {
+        String fileName = applicationConfiguration.getProperty(Constants.PREWARM_FILE, null);
+        if (fileName == null || fileName.isEmpty()) {
+            log.info("Not prewarming credentials, as {} is not set", Constants.PREWARM_FILE);
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("prewarm-credentials-%d")
+                .setDaemon(true)
+                .build());
+        Path hotPrincipalsFile = Paths.get(fileName);
+        List<HotPrincipal> recent = read(hotPrincipalsFile, System.currentTimeMillis());
+        // Kept, so that a restart before they call again does not forget them
+        recent.forEach(principal -> hotPrincipals.put(principal.getPrincipalRole(), principal));
+        file = hotPrincipalsFile;
+        if (!recent.isEmpty()) {
+            log.info("Prewarming credentials for {} callers once the mapping is loaded", recent.size());
+            mappingInvoker.whenMappingLoaded().thenRun(() -> schedulePrewarm(recent));
+        }
+        executor.scheduleWithFixedDelay(this::writeQuietly, WRITE_INTERVAL_MINS, WRITE_INTERVAL_MINS,
+                TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            writeQuietly();
+        }
+    }
+
+    /**
+     * Records a caller that got credentials.
+     *
+     * @param uid      the uid of the caller
+     * @param username the username of the caller
+     * @param roleArn  the role the caller got credentials for
+     */
+    public void record(int uid, String username, String roleArn) {
+        record(new PrincipalRole(username, roleArn), uid);
+    }
+
+    /**
+     * Records a user that got credentials through impersonation.
+     *
+     * @param username the impersonated user
+     * @param roleArn  the role the user got credentials for
+     */
+    public void recordImpersonated(String username, String roleArn) {
+        record(new PrincipalRole(username, roleArn), NO_UID);
+    }
+
+    private void record(PrincipalRole principalRole, int uid) {
+        if (file == null) {
+            return;
+        }
+        long nowMillis = System.currentTimeMillis();
+        HotPrincipal seen = hotPrincipals.get(principalRole);
+        // Impersonation does not tell the uid of a user who also calls directly
+        int knownUid = uid == NO_UID && seen != null ? seen.getUid() : uid;
+        if (seen != null && seen.getUid() == knownUid && nowMillis - seen.getLastSeenMillis() < RECORD_INTERVAL_MS) {
+            return;
+        }
+        if (seen == null && hotPrincipals.size() >= MAX_HOT_PRINCIPALS) {
+            return;
+        }
+        hotPrincipals.put(principalRole, new HotPrincipal(knownUid, principalRole.getUsername(),
+                principalRole.getRoleArn(), nowMillis));
+    }
+
+    /**
+     * Writes the callers seen within {@link STSCredentialsProvider#ACTIVE_CREDENTIALS_WINDOW}, and forgets the
+     * others.
+     */
+    @VisibleForTesting
+    void write(long nowMillis) throws IOException {
+        Path hotPrincipalsFile = file;
+        if (hotPrincipalsFile == null) {
+            return;
+        }
+        hotPrincipals.values().removeIf(principal -> !isRecent(principal, nowMillis));
+        StringBuilder lines = new StringBuilder(HEADER).append('\n');
+        for (HotPrincipal principal : hotPrincipals.values()) {
+            String uid = principal.getUid() == NO_UID ? NO_UID_FIELD : String.valueOf(principal.getUid());
+            lines.append(uid).append('\t')
+                    .append(principal.getUsername()).append('\t')
+                    .append(principal.getRoleArn()).append('\t')
+                    .append(principal.getLastSeenMillis()).append('\n');
+        }
+        Path directory = hotPrincipalsFile.toAbsolutePath().getParent();
+        // Lists who uses which role, so only the server reads it
+        Path tmp = Files.createTempFile(directory, hotPrincipalsFile.getFileName().toString(), ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            Files.write(tmp, lines.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, hotPrincipalsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.debug("Wrote {} recently active callers to {}", hotPrincipals.size(), hotPrincipalsFile);
+    }
+
+    private void writeQuietly() {
+        try {
+            write(System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Couldn't write the recently active callers to {}", file, e);
+        }
+    }
+
+    /**
+     * @return the recently active callers in the file, most recent first
+     */
+    private static List<HotPrincipal> read(Path file, long nowMillis) {
+        List<HotPrincipal> recent = new ArrayList<>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return recent;
+        } catch (IOException e) {
+            log.warn("Couldn't read the recently active callers from {}", file, e);
+            return recent;
+        }
+        for (String line : lines) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = FIELD_SEPARATOR.split(line);
+            if (fields.length != 4) {
+                continue;
+            }
+            try {
+                int uid = NO_UID_FIELD.equals(fields[0]) ? NO_UID : Integer.parseInt(fields[0]);
+                HotPrincipal principal = new HotPrincipal(uid, fields[1], fields[2], Long.parseLong(fields[3]));
+                if (isRecent(principal, nowMillis)) {
+                    recent.add(principal);
+                }
+            } catch (NumberFormatException e) {
+                log.debug("Skipping invalid line in {}: {}", file, line);
+            }
+        }
+        recent.sort(Comparator.comparingLong(HotPrincipal::getLastSeenMillis).reversed());
+        return recent.size() > MAX_HOT_PRINCIPALS ? new ArrayList<>(recent.subList(0, MAX_HOT_PRINCIPALS)) : recent;
+    }
+
+    private static boolean isRecent(HotPrincipal principal, long nowMillis) {
+        return nowMillis - principal.getLastSeenMillis() <= STSCredentialsProvider.ACTIVE_CREDENTIALS_WINDOW.toMillis();
+    }
+
+    /**
+     * Spreads the prewarming over time, so that it stays well within the STS rate and leaves room for requests.
+     */
+    private void schedulePrewarm(List<HotPrincipal> principals) {
+        long intervalMs = TimeUnit.SECONDS.toMillis(1) / PREWARM_CALLS_PER_SECOND;
+        for (int i = 0; i < principals.size(); i++) {
+            HotPrincipal principal = principals.get(i);
+            executor.schedule(() -> prewarm(principal), i * intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void prewarm(HotPrincipal principal) {
+        try {
+            Optional<AssumeRoleRequest> assumeRoleRequest;
+            if (principal.getUid() == NO_UID) {
+                assumeRoleRequest = mappingInvoker.map(principal.getUsername());
+            } else if (principalResolver.getUsername(principal.getUid())
+                    .equals(Optional.of(principal.getUsername()))) {
+                assumeRoleRequest = mappingInvoker.map(principal.getUid(), principal.getUsername());
+            } else {
+                // The uid may have been given to someone else since
+                log.debug("Not prewarming uid {}, which is no longer {}", principal.getUid(), principal.getUsername());
+                return;
+            }
+            assumeRoleRequest.ifPresent(request -> metadataCredentialsProvider
+                    .getUserCredentialsResponseAsync(request)
+                    .whenComplete((response, t) -> {
+                        if (t != null) {
+                            log.debug("Couldn't prewarm credentials for {}", principal.getUsername(), t);
+                        }
+                    }));
+        } catch (RuntimeException e) {
+            log.warn("Couldn't prewarm credentials for {}", principal.getUsername(), e);
+        }
+    }
+
+    @Value
+    private static class HotPrincipal {
+        int uid;
+        String username;
+        String roleArn;
+        long lastSeenMillis;
+
+        PrincipalRole getPrincipalRole() {
+            return new PrincipalRole(username, roleArn);
+        }
+    }
+
+    @Value
+    private static class PrincipalRole {
+        String username;
+        String roleArn;
+    }
+}
@@ -0,0 +1,33 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import com.amazonaws.util.EC2MetadataUtils;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes credentials the way IMDS returns them.
+ */
+public final class CredentialsResponses {
+
+    private static final Gson GSON = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE)
+            .setPrettyPrinting()
+            .create();
+
+    private CredentialsResponses() {
+    }
+
+    /**
+     * @param credentials the credentials to return
+     * @return the response body, as pretty-printed JSON in UTF-8
+     */
+    public static byte[] toBytes(EC2MetadataUtils.IAMSecurityCredential credentials) {
+        return GSON.toJson(credentials).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,49 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import java.util.Arrays;
+import java.util.OptionalLong;
+
+/**
+ * Keeps the latencies of the last calls to an endpoint, and their 99th percentile.
+ *
+ * <p>
+ * The percentile is computed again after every few calls rather than on every call, as it is read far more often
+ * than it changes.
+ */
+final class LatencyTracker {
+    private static final int WINDOW = 512;
+    // Fewer calls than this say little about the tail
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_EVERY = 16;
+
+    private final long[] samples = new long[WINDOW];
+    private int count;
+    private int next;
+    private int sinceComputed;
+    private long p99Nanos = -1;
+
+    /**
+     * @param latencyNanos how long a call took
+     */
+    synchronized void record(long latencyNanos) {
+        samples[next] = latencyNanos;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+        if (count >= MIN_SAMPLES && (p99Nanos < 0 || ++sinceComputed >= RECOMPUTE_EVERY)) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            p99Nanos = sorted[(int) Math.ceil(count * 0.99) - 1];
+            sinceComputed = 0;
+        }
+    }
+
+    /**
+     * @return the 99th percentile latency, or nothing until enough calls were made
+     */
+    synchronized OptionalLong getP99Nanos() {
+        return p99Nanos < 0 ? OptionalLong.empty() : OptionalLong.of(p99Nanos);
+    }
+}
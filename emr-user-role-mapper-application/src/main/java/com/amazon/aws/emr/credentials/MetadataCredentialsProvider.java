@@ -7,6 +7,8 @@ import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.util.EC2MetadataUtils;
 
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Provider for IMDS credentials.
@@ -19,4 +21,27 @@ public interface MetadataCredentialsProvider {
      * @return credentials in the {@link EC2MetadataUtils.IAMSecurityCredential} format
      */
     Optional<EC2MetadataUtils.IAMSecurityCredential> getUserCredentials(AssumeRoleRequest assumeRoleRequest);
+
+    /**
+     * Gets credentials for {@code AssumeRoleRequest}, as the body of the response to the caller.
+     * Providers that cache credentials should cache the body too, so that it is not serialized on every request.
+     *
+     * @param assumeRoleRequest the request to assume
+     * @return the credentials serialized by {@link CredentialsResponses#toBytes}, which callers must not modify
+     */
+    default Optional<byte[]> getUserCredentialsResponse(AssumeRoleRequest assumeRoleRequest) {
+        return getUserCredentials(assumeRoleRequest).map(CredentialsResponses::toBytes);
+    }
+
+    /**
+     * Gets the same as {@link #getUserCredentialsResponse}, without holding the calling thread while credentials
+     * are fetched, for providers that can.
+     *
+     * @param assumeRoleRequest the request to assume
+     * @return the response body, or an exception, such as a {@link java.util.concurrent.RejectedExecutionException}
+     * when too many credentials are being fetched
+     */
+    default CompletionStage<Optional<byte[]>> getUserCredentialsResponseAsync(AssumeRoleRequest assumeRoleRequest) {
+        return CompletableFuture.completedFuture(getUserCredentialsResponse(assumeRoleRequest));
+    }
 }
@@ -2,11 +2,30 @@ package com.amazon.aws.emr.credentials;
 
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface representing the AWS STS client.
  */
 public interface STSClient {
-  
+
   AssumeRoleResult assumeRole(AssumeRoleRequest assumeRoleRequest);
+
+  /**
+   * Assumes the role without holding the calling thread, for clients that can. Others call STS on the calling
+   * thread.
+   *
+   * @param assumeRoleRequest the request to assume
+   * @return the result, or an exception, such as a {@link java.util.concurrent.RejectedExecutionException} when
+   * too many calls are in progress
+   */
+  default CompletableFuture<AssumeRoleResult> assumeRoleAsync(AssumeRoleRequest assumeRoleRequest) {
+    CompletableFuture<AssumeRoleResult> assumeRoleResult = new CompletableFuture<>();
+    try {
+      assumeRoleResult.complete(assumeRole(assumeRoleRequest));
+    } catch (RuntimeException e) {
+      assumeRoleResult.completeExceptionally(e);
+    }
+    return assumeRoleResult;
+  }
 }
@@ -1,24 +1,67 @@
 package com.amazon.aws.emr.credentials;
 
 import com.amazon.aws.emr.ApplicationConfiguration;
+import com.amazon.aws.emr.common.Constants;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
-import com.amazonaws.regions.Region;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
-import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsync;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClientBuilder;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.OptionalLong;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.glassfish.hk2.api.Immediate;
 
 /**
  * Creates a custom AWS STS client based on {@link ApplicationConfiguration}
+ * <p>
+ * Asynchronous calls run on a pool of {@link Constants#STS_MAX_CONCURRENCY} threads, with a short queue in front,
+ * so that a slow STS holds these threads rather than the threads serving requests.
+ * <p>
+ * Calls go to the regional endpoint, or to the global one if regional endpoints are disabled or the region is not
+ * known. When there is a secondary endpoint, that of {@link Constants#STS_SECONDARY_REGION} or the global one if
+ * hedging is enabled without it, an asynchronous call that takes longer than the 99th percentile latency of the
+ * primary endpoint is also sent to the secondary one, and the first answer wins. A call that can't connect to the
+ * primary endpoint goes to the secondary one too. The secondary endpoint has a small pool of its own, so that a slow
+ * primary endpoint can't hold the threads that calls to it need, and the calls sent to it are limited by the hedge
+ * budget and by the {@link AdaptiveRateLimiter} shared with the credentials provider.
  */
 @Slf4j
 @Immediate
 public class STSClientImpl implements STSClient {
+  private static final EndpointConfiguration GLOBAL_ENDPOINT =
+      new EndpointConfiguration("https://sts.amazonaws.com", "us-east-1");
+  // Hedges wait at least this long, so that jitter alone on a fast endpoint does not trigger them
+  private static final long MIN_HEDGE_DELAY_MS = 20;
+  // Every call earns this much of a hedge, so that hedging adds at most a tenth to the calls made to STS
+  private static final double HEDGES_PER_CALL = 0.1;
+  private static final double MAX_HEDGE_BURST = 10;
+  // The secondary endpoint only gets the calls the hedge budget allows, so it needs a fraction of the threads
+  private static final int SECONDARY_CONCURRENCY_DIVISOR = 4;
+  private static final int MIN_SECONDARY_CONCURRENCY = 2;
+
   // If using regional configurations we will use us-west-2 as default
   // This is primarily used in integration tests
   private String regionString = "us-west-2";
@@ -26,39 +69,285 @@ public class STSClientImpl implements STSClient {
   @Inject
   ApplicationConfiguration applicationConfiguration;
 
-  AWSSecurityTokenService stsClient;
+  // Shared with the credentials provider, so that hedges and failovers count against the rate of STS calls
+  @Inject
+  AdaptiveRateLimiter rateLimiter;
+
+  private ScheduledExecutorService hedgeScheduler;
+
+  private Endpoint primary;
+
+  // Null when there is nothing to hedge or fail over to
+  private Endpoint secondary;
+
+  private double hedgeBudget = MAX_HEDGE_BURST;
 
   @PostConstruct
   void init() {
+    EndpointConfiguration primaryEndpoint = GLOBAL_ENDPOINT;
     if (applicationConfiguration.isRegionalStsEnabled()) {
-      Region region = null;
       try {
-        region = Regions.getCurrentRegion();
-        regionString = region.getName();
-        String endpoint = String.format("https://sts.%s.amazonaws.com", regionString);
-        log.info("Running the application with regional STS endpoint " + endpoint);
-        stsClient = AWSSecurityTokenServiceClientBuilder
-            .standard()
-            .withEndpointConfiguration(new EndpointConfiguration(endpoint, regionString))
-            .build();
+        regionString = Regions.getCurrentRegion().getName();
+        primaryEndpoint = regionalEndpoint(regionString);
       } catch (Exception e) {
         log.error("Cannot determine the AWS region. Defaulting to global endpoint.");
-        createGlobalEndpointClient();
       }
-    } else {
-      createGlobalEndpointClient();
     }
+    init(primaryEndpoint, getSecondaryEndpoint(primaryEndpoint));
   }
 
-  private void createGlobalEndpointClient() {
-    log.info("Running the application with global STS endpoint.");
-    stsClient = AWSSecurityTokenServiceClientBuilder
-        .standard()
-        .build();
+  @VisibleForTesting
+  void init(EndpointConfiguration primaryEndpoint, EndpointConfiguration secondaryEndpoint) {
+    int maxConcurrency = applicationConfiguration.getProperty(Constants.STS_MAX_CONCURRENCY,
+        Constants.DEFAULT_STS_MAX_CONCURRENCY);
+    log.info("Making up to {} STS calls at once", maxConcurrency);
+    hedgeScheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("sts-hedge-%d").setDaemon(true).build());
+
+    log.info("Running the application with STS endpoint {}", primaryEndpoint.getServiceEndpoint());
+    // The calls made ahead of time run on the calling thread, and need one more connection
+    primary = new Endpoint(primaryEndpoint, "sts-call-%d", maxConcurrency, Constants.STS_MAX_QUEUED_CALLS,
+        maxConcurrency + 1);
+    if (secondaryEndpoint != null) {
+      log.info("Hedging slow STS calls to {}", secondaryEndpoint.getServiceEndpoint());
+      int secondaryConcurrency = Math.max(MIN_SECONDARY_CONCURRENCY,
+          maxConcurrency / SECONDARY_CONCURRENCY_DIVISOR);
+      secondary = new Endpoint(secondaryEndpoint, "sts-secondary-call-%d", secondaryConcurrency,
+          secondaryConcurrency, secondaryConcurrency);
+    }
   }
 
+  private ClientConfiguration clientConfiguration(int defaultMaxConnections) {
+    return new ClientConfiguration()
+        .withMaxConnections(applicationConfiguration.getProperty(Constants.STS_MAX_CONNECTIONS,
+            defaultMaxConnections))
+        .withSocketTimeout(applicationConfiguration.getProperty(Constants.STS_SOCKET_TIMEOUT_MS,
+            Constants.DEFAULT_STS_SOCKET_TIMEOUT_MS))
+        .withRequestTimeout(applicationConfiguration.getProperty(Constants.STS_REQUEST_TIMEOUT_MS,
+            Constants.DEFAULT_STS_REQUEST_TIMEOUT_MS))
+        .withTcpKeepAlive(Boolean.parseBoolean(applicationConfiguration.getProperty(Constants.STS_TCP_KEEP_ALIVE,
+            String.valueOf(true))));
+  }
+
+  @PreDestroy
+  void close() {
+    hedgeScheduler.shutdownNow();
+    // Shutting the client down shuts its executor down too
+    primary.client.shutdown();
+    if (secondary != null) {
+      secondary.client.shutdown();
+    }
+  }
+
+  private EndpointConfiguration getSecondaryEndpoint(EndpointConfiguration primaryEndpoint) {
+    String secondaryRegion = applicationConfiguration.getProperty(Constants.STS_SECONDARY_REGION, null);
+    boolean hasSecondaryRegion = secondaryRegion != null && !secondaryRegion.isEmpty();
+    if (!Boolean.parseBoolean(applicationConfiguration.getProperty(Constants.STS_HEDGING_ENABLED,
+        String.valueOf(hasSecondaryRegion)))) {
+      return null;
+    }
+    EndpointConfiguration secondaryEndpoint = hasSecondaryRegion
+        ? regionalEndpoint(secondaryRegion) : GLOBAL_ENDPOINT;
+    return secondaryEndpoint.getServiceEndpoint().equals(primaryEndpoint.getServiceEndpoint())
+        ? null : secondaryEndpoint;
+  }
+
+  private static EndpointConfiguration regionalEndpoint(String region) {
+    return new EndpointConfiguration(String.format("https://sts.%s.amazonaws.com", region), region);
+  }
+
+  /**
+   * Calls the primary endpoint on the calling thread, without hedging.
+   */
   @Override
   public AssumeRoleResult assumeRole(AssumeRoleRequest assumeRoleRequest) {
-    return stsClient.assumeRole(assumeRoleRequest);
+    long startNanos = System.nanoTime();
+    try {
+      return primary.client.assumeRole(assumeRoleRequest);
+    } finally {
+      primary.latency.record(System.nanoTime() - startNanos);
+    }
+  }
+
+  @Override
+  public CompletableFuture<AssumeRoleResult> assumeRoleAsync(AssumeRoleRequest assumeRoleRequest) {
+    if (secondary == null) {
+      return primary.assumeRoleAsync(assumeRoleRequest);
+    }
+    earnHedge();
+    HedgedCall call = new HedgedCall(assumeRoleRequest);
+    call.start();
+    return call.result;
+  }
+
+  @VisibleForTesting
+  LatencyTracker getPrimaryLatency() {
+    return primary.latency;
+  }
+
+  private synchronized void earnHedge() {
+    hedgeBudget = Math.min(MAX_HEDGE_BURST, hedgeBudget + HEDGES_PER_CALL);
+  }
+
+  private synchronized boolean trySpendHedge() {
+    if (hedgeBudget < 1) {
+      return false;
+    }
+    hedgeBudget--;
+    return true;
+  }
+
+  /**
+   * @return whether the call failed because no connection to the endpoint could be made. Other client failures,
+   * such as timeouts or missing credentials, would most likely fail on the other endpoint as well.
+   */
+  private static boolean isConnectFailure(Throwable t) {
+    if (!(t instanceof AmazonClientException) || t instanceof AmazonServiceException) {
+      return false;
+    }
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+          || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return whether a hedge or failover may be sent now, which spends both the hedge budget and a call of the rate
+   * limiter
+   */
+  private boolean trySpendExtraCall() {
+    return trySpendHedge() && rateLimiter.tryAcquire();
+  }
+
+  /**
+   * One STS endpoint, with its own threads, connection pool and latency statistics.
+   */
+  private final class Endpoint {
+    private final String name;
+    private final AWSSecurityTokenServiceAsync client;
+    private final LatencyTracker latency = new LatencyTracker();
+
+    private Endpoint(EndpointConfiguration endpointConfiguration, String threadNameFormat, int concurrency,
+        int maxQueuedCalls, int defaultMaxConnections) {
+      name = endpointConfiguration.getServiceEndpoint();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<>(maxQueuedCalls),
+          new ThreadFactoryBuilder().setNameFormat(threadNameFormat).setDaemon(true).build());
+      executor.allowCoreThreadTimeOut(true);
+      client = AWSSecurityTokenServiceAsyncClientBuilder
+          .standard()
+          .withEndpointConfiguration(endpointConfiguration)
+          .withClientConfiguration(clientConfiguration(defaultMaxConnections))
+          .withExecutorFactory(() -> executor)
+          .build();
+    }
+
+    private CompletableFuture<AssumeRoleResult> assumeRoleAsync(AssumeRoleRequest assumeRoleRequest) {
+      CompletableFuture<AssumeRoleResult> assumeRoleResult = new CompletableFuture<>();
+      long startNanos = System.nanoTime();
+      try {
+        client.assumeRoleAsync(assumeRoleRequest, new AsyncHandler<AssumeRoleRequest, AssumeRoleResult>() {
+          @Override
+          public void onError(Exception exception) {
+            latency.record(System.nanoTime() - startNanos);
+            assumeRoleResult.completeExceptionally(exception);
+          }
+
+          @Override
+          public void onSuccess(AssumeRoleRequest request, AssumeRoleResult result) {
+            latency.record(System.nanoTime() - startNanos);
+            assumeRoleResult.complete(result);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        assumeRoleResult.completeExceptionally(e);
+      }
+      return assumeRoleResult;
+    }
+  }
+
+  /**
+   * A call sent to the primary endpoint, and to the secondary one if the primary is slow or unreachable. It
+   * succeeds with the first answer, and fails with the error of the primary endpoint once every endpoint called
+   * failed.
+   */
+  private final class HedgedCall {
+    private final AssumeRoleRequest assumeRoleRequest;
+    private final CompletableFuture<AssumeRoleResult> result = new CompletableFuture<>();
+    // Guarded by this
+    private int pending;
+    private boolean secondarySent;
+    private Throwable primaryFailure;
+    private Throwable secondaryFailure;
+
+    private HedgedCall(AssumeRoleRequest assumeRoleRequest) {
+      this.assumeRoleRequest = assumeRoleRequest;
+    }
+
+    private void start() {
+      synchronized (this) {
+        pending++;
+      }
+      primary.assumeRoleAsync(assumeRoleRequest).whenComplete((r, t) -> onComplete(primary, r, t));
+      OptionalLong p99Nanos = primary.latency.getP99Nanos();
+      if (p99Nanos.isPresent() && !result.isDone()) {
+        long delayMs = Math.max(MIN_HEDGE_DELAY_MS, TimeUnit.NANOSECONDS.toMillis(p99Nanos.getAsLong()));
+        ScheduledFuture<?> hedge = hedgeScheduler.schedule(this::hedge, delayMs, TimeUnit.MILLISECONDS);
+        result.whenComplete((r, t) -> hedge.cancel(false));
+      }
+    }
+
+    private void hedge() {
+      if (!result.isDone() && trySpendExtraCall()) {
+        log.debug("STS call to {} is slower than usual, also sending it to {}", primary.name, secondary.name);
+        sendToSecondary();
+      }
+    }
+
+    private void sendToSecondary() {
+      synchronized (this) {
+        if (secondarySent) {
+          return;
+        }
+        secondarySent = true;
+        pending++;
+      }
+      secondary.assumeRoleAsync(assumeRoleRequest).whenComplete((r, t) -> onComplete(secondary, r, t));
+    }
+
+    private void onComplete(Endpoint endpoint, AssumeRoleResult assumeRoleResult, Throwable t) {
+      if (t == null) {
+        result.complete(assumeRoleResult);
+        return;
+      }
+      if (endpoint == primary && isConnectFailure(t)) {
+        if (trySpendExtraCall()) {
+          log.warn("Couldn't connect to {}, sending the STS call to {}", primary.name, secondary.name);
+          sendToSecondary();
+        } else {
+          log.warn("Couldn't connect to {}, and no failover to {} is allowed now", primary.name, secondary.name);
+        }
+      } else if (endpoint == secondary && t instanceof AmazonServiceException
+          && RetryUtils.isThrottlingException((AmazonServiceException) t)) {
+        // The credentials provider only hears of the throttling of the primary endpoint
+        rateLimiter.onThrottled();
+      }
+      Throwable failure;
+      synchronized (this) {
+        if (endpoint == primary) {
+          primaryFailure = t;
+        } else {
+          secondaryFailure = t;
+        }
+        if (--pending > 0) {
+          return;
+        }
+        failure = primaryFailure != null ? primaryFailure : secondaryFailure;
+      }
+      result.completeExceptionally(failure);
+    }
   }
 }
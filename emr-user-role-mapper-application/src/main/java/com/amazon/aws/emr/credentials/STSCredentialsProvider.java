@@ -8,6 +8,7 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
 import com.amazonaws.regions.Region;
+import com.amazonaws.retry.RetryUtils;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
@@ -16,22 +17,44 @@ import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
 import com.amazonaws.services.securitytoken.model.Credentials;
 import com.amazonaws.util.EC2MetadataUtils;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import java.text.ParseException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Fetches credentials for {@code AssumeRoleRequest} from STS.
+ * <p>
+ * Credentials in use are renewed by a background thread shortly before they are due, and requests only call STS
+ * for credentials they have not asked for recently.
+ * <p>
+ * Calls to STS go through an {@link AdaptiveRateLimiter} that slows down while STS throttles. While credentials
+ * cannot be refreshed, whether STS fails, throttles or the call is not made yet, the previous credentials are
+ * served until they actually expire.
  */
 @Slf4j
 @Singleton
@@ -40,18 +63,55 @@ public class STSCredentialsProvider implements MetadataCredentialsProvider {
     @Inject
     STSClient stsClient;
 
+    @Inject
+    AdaptiveRateLimiter stsRateLimiter;
+
     public static final Duration MIN_REMAINING_TIME_TO_REFRESH_CREDENTIALS = Duration.ofMinutes(10);
     public static final Duration MAX_RANDOM_TIME_TO_REFRESH_CREDENTIALS = Duration.ofMinutes(5);
     private static final int CREDENTIALS_MAP_MAX_SIZE = 20000;
+    // Renewed in the background up to this long before request threads would refresh them
+    public static final Duration REFRESH_AHEAD_WINDOW = Duration.ofMinutes(10);
+    // SDK clients fetch credentials about hourly, so credentials not requested for longer are left to expire
+    public static final Duration ACTIVE_CREDENTIALS_WINDOW = Duration.ofHours(1);
+    private static final long REFRESH_AHEAD_INTERVAL_SECS = 10;
+    private static final int MAX_REFRESH_AHEAD_PER_RUN = 10;
 
-    private final LoadingCache<AssumeRoleRequest, Optional<EC2MetadataUtils.IAMSecurityCredential>> credentialsCache = CacheBuilder
+    // Guava caches have no expiry per entry, so entries carry their own refresh time and are replaced when it passes
+    private final Cache<AssumeRoleRequest, CachedCredentials> credentialsCache = CacheBuilder
         .newBuilder().maximumSize(CREDENTIALS_MAP_MAX_SIZE)
-        .build(new CacheLoader<AssumeRoleRequest, Optional<EC2MetadataUtils.IAMSecurityCredential>>() {
-            @Override
-            public Optional<EC2MetadataUtils.IAMSecurityCredential> load(AssumeRoleRequest assumeRoleRequest) {
-                return assumeRole(assumeRoleRequest);
+        .build();
+
+    // The asynchronous STS calls in progress, which later requests for the same credentials wait for
+    private final ConcurrentMap<AssumeRoleRequest, CompletableFuture<CachedCredentials>> inFlightRefreshes =
+        new ConcurrentHashMap<>();
+    private ScheduledExecutorService refreshAheadExecutor;
+
+    /**
+     * Starts renewing the credentials that are in use before they are due, so that requests rarely wait on STS.
+     */
+    @PostConstruct
+    void init() {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+            .setNameFormat("refresh-credentials-%d")
+            .setDaemon(true)
+            .build();
+        refreshAheadExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        refreshAheadExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                refreshAhead(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                // An exception would cancel the task
+                log.error("Couldn't refresh credentials ahead of time", e);
             }
-        });
+        }, REFRESH_AHEAD_INTERVAL_SECS, REFRESH_AHEAD_INTERVAL_SECS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    void close() {
+        if (refreshAheadExecutor != null) {
+            refreshAheadExecutor.shutdownNow();
+        }
+    }
 
     /**
      * Create an instance of SimpleDataFormat.
@@ -70,38 +130,213 @@ public class STSCredentialsProvider implements MetadataCredentialsProvider {
      */
     @Override
     public Optional<EC2MetadataUtils.IAMSecurityCredential> getUserCredentials(AssumeRoleRequest assumeRoleRequest) {
+        return getCachedCredentials(assumeRoleRequest).credentials;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The body is serialized once when the credentials are fetched, and the same bytes are returned until they are
+     * refreshed.
+     */
+    @Override
+    public Optional<byte[]> getUserCredentialsResponse(AssumeRoleRequest assumeRoleRequest) {
+        return getCachedCredentials(assumeRoleRequest).response;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Cached credentials are returned at once, and so are credentials that are due for a refresh but still valid,
+     * while they are refreshed in the background. Otherwise one asynchronous STS call is made for each request,
+     * however many callers are waiting for it.
+     */
+    @Override
+    public CompletionStage<Optional<byte[]>> getUserCredentialsResponseAsync(AssumeRoleRequest assumeRoleRequest) {
+        return getCachedCredentialsAsync(assumeRoleRequest).thenApply(credentials -> credentials.response);
+    }
+
+    private CompletableFuture<CachedCredentials> getCachedCredentialsAsync(AssumeRoleRequest assumeRoleRequest) {
         log.debug("Request to assume role {} with STS", assumeRoleRequest);
-        Optional<EC2MetadataUtils.IAMSecurityCredential> credentials = credentialsCache.getUnchecked(assumeRoleRequest);
+        long nowMillis = System.currentTimeMillis();
+        CachedCredentials cached = credentialsCache.getIfPresent(assumeRoleRequest);
+        if (cached != null && !cached.isDue(nowMillis)) {
+            cached.lastAccessMillis = nowMillis;
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<CachedCredentials> refreshed = refreshAsync(assumeRoleRequest, nowMillis);
+        if (cached != null && cached.isValid(nowMillis)) {
+            cached.lastAccessMillis = nowMillis;
+            return CompletableFuture.completedFuture(cached);
+        }
+        return refreshed;
+    }
+
+    private CompletableFuture<CachedCredentials> refreshAsync(AssumeRoleRequest assumeRoleRequest, long nowMillis) {
+        CompletableFuture<CachedCredentials> refreshed = new CompletableFuture<>();
+        CompletableFuture<CachedCredentials> inFlight = inFlightRefreshes.putIfAbsent(assumeRoleRequest, refreshed);
+        if (inFlight != null) {
+            log.debug("Waiting for the STS call in progress for assume role {}", assumeRoleRequest);
+            return inFlight;
+        }
+        refreshed.whenComplete((credentials, t) -> inFlightRefreshes.remove(assumeRoleRequest, refreshed));
+
+        // Another call may have finished since the cache was read
+        CachedCredentials cached = credentialsCache.getIfPresent(assumeRoleRequest);
+        if (cached != null && !cached.isDue(nowMillis)) {
+            refreshed.complete(cached);
+            return refreshed;
+        }
+        if (!stsRateLimiter.tryAcquire()) {
+            completeFailedRefresh(assumeRoleRequest, refreshed, new RejectedExecutionException(
+                "STS calls are rate limited"));
+            return refreshed;
+        }
+        log.info("Need to assume role {} with STS", assumeRoleRequest);
+        stsClient.assumeRoleAsync(assumeRoleRequest).whenComplete((assumeRoleResult, t) -> {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (cause == null) {
+                stsRateLimiter.onSuccess();
+                log.debug("Procured credentials from STS for assume role {}", assumeRoleRequest);
+                CachedCredentials credentials = createCachedCredentials(assumeRoleResult, nowMillis);
+                credentialsCache.put(assumeRoleRequest, credentials);
+                refreshed.complete(credentials);
+            } else if (cause instanceof AmazonClientException && !(cause instanceof AmazonServiceException)) {
+                log.error("AWS Client exception {}", cause.getMessage(), cause);
+                completeFailedRefresh(assumeRoleRequest, refreshed, null);
+            } else {
+                if (cause instanceof AmazonServiceException) {
+                    onServiceException((AmazonServiceException) cause);
+                }
+                completeFailedRefresh(assumeRoleRequest, refreshed, cause);
+            }
+        });
+        return refreshed;
+    }
+
+    /**
+     * Completes a refresh that failed with the previous credentials while they are valid, else with the failure, or
+     * with no credentials if there is no failure to report.
+     */
+    private void completeFailedRefresh(AssumeRoleRequest assumeRoleRequest,
+                                       CompletableFuture<CachedCredentials> refreshed, Throwable failure) {
+        long nowMillis = System.currentTimeMillis();
+        CachedCredentials previous = credentialsCache.getIfPresent(assumeRoleRequest);
+        if (previous != null && previous.isValid(nowMillis)) {
+            log.warn("Couldn't refresh credentials for assume role {}, serving the previous ones until they expire",
+                assumeRoleRequest);
+            refreshed.complete(previous);
+        } else if (failure == null) {
+            // Nothing to keep, so the next request tries STS again
+            refreshed.complete(CachedCredentials.none(nowMillis));
+        } else {
+            refreshed.completeExceptionally(failure);
+        }
+    }
 
-        if (credentials.isPresent() && shouldRefresh(credentials.get())) {
-            // TODO: we should consider using Caffeine which provides ttl at item level
-            log.debug("Invalidating the cache for assume role {}", assumeRoleRequest);
-            /*
-             * In case of multiple threads reaching here, we should be alright as locking is at
-             * segment level for both invalidate() and get() calls.
-             */
-            credentialsCache.invalidate(assumeRoleRequest);
-            credentials = credentialsCache.getUnchecked(assumeRoleRequest);
+    /**
+     * Waits for the credentials on the calling thread, for callers of the synchronous methods.
+     */
+    private CachedCredentials getCachedCredentials(AssumeRoleRequest assumeRoleRequest) {
+        try {
+            return getCachedCredentialsAsync(assumeRoleRequest).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
         }
-        return credentials;
+    }
+
+    /**
+     * Renews the credentials requested within {@link STSCredentialsProvider#ACTIVE_CREDENTIALS_WINDOW} that are
+     * within their refresh-ahead time, soonest due first. At most {@link #MAX_REFRESH_AHEAD_PER_RUN} are renewed per
+     * run, so that a burst of credentials fetched together is renewed over a few runs instead of all at once.
+     *
+     * @param nowMillis the current time
+     * @return how many credentials were renewed
+     */
+    @VisibleForTesting
+    int refreshAhead(long nowMillis) {
+        List<Map.Entry<AssumeRoleRequest, CachedCredentials>> due = new ArrayList<>();
+        for (Map.Entry<AssumeRoleRequest, CachedCredentials> entry : credentialsCache.asMap().entrySet()) {
+            CachedCredentials cached = entry.getValue();
+            if (cached.credentials.isPresent() && nowMillis >= cached.refreshAheadAtMillis
+                && nowMillis - cached.lastAccessMillis <= ACTIVE_CREDENTIALS_WINDOW.toMillis()) {
+                due.add(entry);
+            }
+        }
+        due.sort(Comparator.comparingLong(entry -> entry.getValue().refreshAheadAtMillis));
+
+        int renewed = 0;
+        for (Map.Entry<AssumeRoleRequest, CachedCredentials> entry : due.subList(0,
+            Math.min(due.size(), MAX_REFRESH_AHEAD_PER_RUN))) {
+            if (renew(entry.getKey(), entry.getValue())) {
+                renewed++;
+            }
+        }
+        if (renewed > 0) {
+            log.debug("Refreshed {} of {} credentials due ahead of time", renewed, due.size());
+        }
+        return renewed;
+    }
+
+    private boolean renew(AssumeRoleRequest assumeRoleRequest, CachedCredentials seen) {
+        // Requests that find the credentials due meanwhile wait for the renewal instead of calling STS too
+        CompletableFuture<CachedCredentials> renewing = new CompletableFuture<>();
+        if (inFlightRefreshes.putIfAbsent(assumeRoleRequest, renewing) != null) {
+            log.debug("Not refreshing credentials ahead of time while a request refreshes them");
+            return false;
+        }
+        CachedCredentials current = seen;
+        try {
+            // STS is called before the cache is touched, so that no cache lock is held during the call
+            Optional<AssumeRoleResult> assumeRoleResult = assumeRole(assumeRoleRequest);
+            if (assumeRoleResult.isPresent()) {
+                // Keeps the last access, so that credentials nobody asks for again are not renewed forever
+                CachedCredentials renewed = createCachedCredentials(assumeRoleResult.get(), seen.lastAccessMillis);
+                if (credentialsCache.asMap().replace(assumeRoleRequest, seen, renewed)) {
+                    current = renewed;
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            log.debug("Not refreshing credentials ahead of time while STS calls are rate limited");
+        } catch (RuntimeException e) {
+            log.warn("Couldn't refresh credentials ahead of time for assume role {}", assumeRoleRequest, e);
+        } finally {
+            long nowMillis = System.currentTimeMillis();
+            renewing.complete(current.isValid(nowMillis) ? current : CachedCredentials.none(nowMillis));
+            inFlightRefreshes.remove(assumeRoleRequest, renewing);
+        }
+        return current != seen;
+    }
+
+    private CachedCredentials createCachedCredentials(AssumeRoleResult assumeRoleResult, long lastAccessMillis) {
+        Credentials credentials = assumeRoleResult.getCredentials();
+        long refreshAtMillis = getRefreshTime(credentials.getExpiration().getTime());
+        long refreshAheadAtMillis = refreshAtMillis
+            - ThreadLocalRandom.current().nextLong(REFRESH_AHEAD_WINDOW.toMillis());
+        return new CachedCredentials(Optional.of(createIAMSecurityCredential(credentials)),
+            credentials.getExpiration().getTime(), refreshAtMillis, refreshAheadAtMillis, lastAccessMillis);
     }
 
     /**
      * Makes actual call to STS.
      *
      * @param assumeRoleRequest the request to assume
-     * @return an {@code Optional} containing {@link EC2MetadataUtils.IAMSecurityCredential}
+     * @return an {@code Optional} containing the {@link AssumeRoleResult}
+     * @throws RejectedExecutionException if STS calls are rate limited
      */
-    private Optional<EC2MetadataUtils.IAMSecurityCredential> assumeRole(AssumeRoleRequest assumeRoleRequest) {
+    private Optional<AssumeRoleResult> assumeRole(AssumeRoleRequest assumeRoleRequest) {
+        if (!stsRateLimiter.tryAcquire()) {
+            throw new RejectedExecutionException("STS calls are rate limited");
+        }
         log.info("Need to assume role {} with STS", assumeRoleRequest);
         try {
             AssumeRoleResult assumeRoleResult = stsClient.assumeRole(assumeRoleRequest);
-            EC2MetadataUtils.IAMSecurityCredential credentials = createIAMSecurityCredential(assumeRoleResult.getCredentials());
+            stsRateLimiter.onSuccess();
             log.debug("Procured credentials from STS for assume role {}", assumeRoleRequest);
-            return Optional.of(credentials);
+            return Optional.of(assumeRoleResult);
         } catch (AmazonServiceException ase) {
-            // This is an internal server error.
-            log.error("AWS Service exception {}", ase.getErrorMessage(), ase);
+            onServiceException(ase);
             throw ase;
         } catch (AmazonClientException ace) {
             log.error("AWS Client exception {}", ace.getMessage(), ace);
@@ -109,6 +344,14 @@ public class STSCredentialsProvider implements MetadataCredentialsProvider {
         return Optional.empty();
     }
 
+    private void onServiceException(AmazonServiceException ase) {
+        if (RetryUtils.isThrottlingException(ase)) {
+            stsRateLimiter.onThrottled();
+        }
+        // This is an internal server error.
+        log.error("AWS Service exception {}", ase.getErrorMessage(), ase);
+    }
+
     private EC2MetadataUtils.IAMSecurityCredential createIAMSecurityCredential(Credentials credentials) {
         EC2MetadataUtils.IAMSecurityCredential iamCredential = new EC2MetadataUtils.IAMSecurityCredential();
         iamCredential.accessKeyId = credentials.getAccessKeyId();
@@ -125,25 +368,18 @@ public class STSCredentialsProvider implements MetadataCredentialsProvider {
     }
 
     /**
-     * Determines if we need to refresh the cached credentials.
+     * Determines when the cached credentials should be refreshed.
      * <p>
-     * The credentials are refreshed if we don't have any cached credentials, or if the
-     * current time +
+     * The credentials are refreshed once the current time +
      * {@link STSCredentialsProvider#MIN_REMAINING_TIME_TO_REFRESH_CREDENTIALS} + some random time in range
      * [0, {@link STSCredentialsProvider#MAX_RANDOM_TIME_TO_REFRESH_CREDENTIALS}) is
      * greater than the expiration of cached credentials.
      *
-     * @param credentials the cached credentials
-     * @return {@code true} if we need to assume role with STS, else {@code false}
+     * @param expirationMillis the expiration of the credentials, in epoch millis
+     * @return the epoch millis from which we need to assume role with STS again
      */
-    private boolean shouldRefresh(EC2MetadataUtils.IAMSecurityCredential credentials) {
-        try {
-            Date expirationDate = createInterceptorDateTimeFormat().parse(credentials.expiration);
-            return getRandomTimeInRange() + System.currentTimeMillis() > expirationDate.getTime();
-        } catch (ParseException ex) {
-            log.error("Unable to parse the expiration in the cached assume role credentials. Refreshing credentials anyway.", ex);
-            return true;
-        }
+    private long getRefreshTime(long expirationMillis) {
+        return expirationMillis - getRandomTimeInRange();
     }
 
     @VisibleForTesting
@@ -153,4 +389,45 @@ public class STSCredentialsProvider implements MetadataCredentialsProvider {
 
         return minTimeMs + ThreadLocalRandom.current().nextLong(maxRandomTimeMs);
     }
+
+    /**
+     * Credentials as cached, with the response body and the times to refresh them built once when they were
+     * fetched.
+     */
+    private static final class CachedCredentials {
+        private final Optional<EC2MetadataUtils.IAMSecurityCredential> credentials;
+        private final Optional<byte[]> response;
+        private final long expirationMillis;
+        // When request threads refresh them
+        private final long refreshAtMillis;
+        // When the background refresh renews them, if they are still in use
+        private final long refreshAheadAtMillis;
+        // Only roughly the last access, as concurrent requests may write it out of order
+        private volatile long lastAccessMillis;
+
+        private CachedCredentials(Optional<EC2MetadataUtils.IAMSecurityCredential> credentials, long expirationMillis,
+                                  long refreshAtMillis, long refreshAheadAtMillis, long lastAccessMillis) {
+            this.credentials = credentials;
+            this.response = credentials.map(CredentialsResponses::toBytes);
+            this.expirationMillis = expirationMillis;
+            this.refreshAtMillis = refreshAtMillis;
+            this.refreshAheadAtMillis = refreshAheadAtMillis;
+            this.lastAccessMillis = lastAccessMillis;
+        }
+
+        /**
+         * @return no credentials, due for a refresh right away
+         */
+        private static CachedCredentials none(long nowMillis) {
+            return new CachedCredentials(Optional.empty(), Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE, nowMillis);
+        }
+
+        private boolean isDue(long nowMillis) {
+            return nowMillis >= refreshAtMillis;
+        }
+
+        private boolean isValid(long nowMillis) {
+            return credentials.isPresent() && nowMillis < expirationMillis;
+        }
+    }
 }
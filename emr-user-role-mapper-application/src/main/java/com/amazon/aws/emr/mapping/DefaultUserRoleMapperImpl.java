@@ -20,8 +20,11 @@ import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
 import java.util.Properties;
 import lombok.NoArgsConstructor;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedReader;
@@ -52,8 +55,9 @@ public class DefaultUserRoleMapperImpl extends S3BasedUserMappingImplBase
             .create();
 
 
-    private final Map<String, AssumeRoleRequest> userRoleMapping = new HashMap<>();
-    private final Map<String, AssumeRoleRequest> groupRoleMapping = new HashMap<>();
+    // Replaced as a whole by readMappings, so readers never see a partially loaded mapping
+    private volatile RoleMappings roleMappings =
+            new RoleMappings(Collections.emptyMap(), Collections.emptyMap(), GroupIdMappings.unresolved());
 
     private PrincipalResolver principalResolver;
 
@@ -79,13 +83,20 @@ public class DefaultUserRoleMapperImpl extends S3BasedUserMappingImplBase
      * @return an {@code Optional} of {@code AssumeRoleRequest}
      */
     public Optional<AssumeRoleRequest> getMapping(String username) {
+        RoleMappings roleMappings = this.roleMappings;
+        Map<String, AssumeRoleRequest> groupRoleMapping = roleMappings.getGroupRoleMapping();
         // Consult if we have a mapping with username
-        AssumeRoleRequest assumeRoleRequest = userRoleMapping.get(username);
+        AssumeRoleRequest assumeRoleRequest = roleMappings.getUserRoleMapping().get(username);
         if (assumeRoleRequest != null) {
             log.debug("Usermapping found for {} as {}", username, assumeRoleRequest);
             return Optional.of(assumeRoleRequest);
         }
         log.debug("No user mapping found for {}. Checking with group mapping.", username);
+        Optional<List<AssumeRoleRequest>> groupIdMatches =
+                roleMappings.getGroupIdRoleMapping().getMappings(username, principalResolver);
+        if (groupIdMatches.isPresent()) {
+            return groupIdMatches.get().stream().findFirst();
+        }
         Optional<List<String>> groups = principalResolver.getGroups(username);
 
         return groups.orElse(Collections.emptyList()).stream()
@@ -98,47 +109,88 @@ public class DefaultUserRoleMapperImpl extends S3BasedUserMappingImplBase
     }
 
     /**
-     * Populates the internal maps with the mapping in S3.
+     * Builds new maps from the mapping in S3 as it is read, and then replaces the current ones with them.
      * The format for the JSON can be found in {@code PrincipalRoleMappings}.
      *
-     * @param jsonString the S3 JSON represented as a String.
+     * @param reader the S3 JSON.
      */
-    void processFile(String jsonString) {
-        log.info("Received the following JSON {}", jsonString);
-        PrincipalRoleMappings principalRoleMappings = GSON.fromJson(jsonString, PrincipalRoleMappings.class);
-        // Clear the old mapping now since we found a new valid mapping!
-        userRoleMapping.clear();
-        groupRoleMapping.clear();
-
-        for (PrincipalRoleMapping principalRoleMapping : principalRoleMappings.getPrincipalRoleMappings()) {
-            if (principalRoleMapping == null) {
-                log.info("Invalid record!");
-                continue;
-            }
-            String principal = principalRoleMapping.getUsername() != null ? principalRoleMapping.getUsername() :
-                    principalRoleMapping.getGroupname();
-            if (principal == null) {
-                log.info("Invalid record containing no username or groupname");
-                continue;
-            }
-            String roleArn = principalRoleMapping.getRoleArn();
-            if (roleArn == null) {
-                log.info("Invalid record containing no role ARN");
+    @Override
+    int readMappings(JsonReader reader) throws IOException {
+        Map<String, AssumeRoleRequest> userRoleMapping = new HashMap<>();
+        Map<String, AssumeRoleRequest> groupRoleMapping = new HashMap<>();
+        boolean foundMappings = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!PrincipalRoleMappings.PRINCIPAL_ROLE_MAPPINGS.equals(reader.nextName())) {
+                reader.skipValue();
                 continue;
             }
-            AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest()
-                    .withRoleArn(principalRoleMapping.getRoleArn())
-                    .withRoleSessionName(principal) // Use principal as session name
-                    .withDurationSeconds(principalRoleMapping.getDurationSeconds())
-                    .withPolicy(principalRoleMapping.getPolicy())
-                    .withSerialNumber(principalRoleMapping.getSerialNumber())
-                    .withExternalId(principalRoleMapping.getExternalId());
-            if (principalRoleMapping.getUsername() != null) {
-                userRoleMapping.put(principal, assumeRoleRequest);
-            } else {
-                groupRoleMapping.put(principal, assumeRoleRequest);
+            foundMappings = true;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                addMapping(GSON.fromJson(reader, PrincipalRoleMapping.class), userRoleMapping, groupRoleMapping);
             }
-            log.info("Mapped {} to {}", principal, assumeRoleRequest);
+            reader.endArray();
+        }
+        reader.endObject();
+        if (!foundMappings) {
+            throw new JsonSyntaxException("No " + PrincipalRoleMappings.PRINCIPAL_ROLE_MAPPINGS + " in the mapping");
         }
+        // Swap in the new mapping now since we found a new valid mapping!
+        roleMappings = new RoleMappings(Collections.unmodifiableMap(userRoleMapping),
+                Collections.unmodifiableMap(groupRoleMapping),
+                GroupIdMappings.resolve(groupRoleMapping, groupRoleMapping.keySet(), principalResolver));
+        return userRoleMapping.size() + groupRoleMapping.size();
+    }
+
+    @Override
+    void resolveGroupIds() {
+        RoleMappings roleMappings = this.roleMappings;
+        Map<String, AssumeRoleRequest> groupRoleMapping = roleMappings.getGroupRoleMapping();
+        this.roleMappings = new RoleMappings(roleMappings.getUserRoleMapping(), groupRoleMapping,
+                GroupIdMappings.resolve(groupRoleMapping, groupRoleMapping.keySet(), principalResolver));
+    }
+
+    private void addMapping(PrincipalRoleMapping principalRoleMapping, Map<String, AssumeRoleRequest> userRoleMapping,
+                            Map<String, AssumeRoleRequest> groupRoleMapping) {
+        if (principalRoleMapping == null) {
+            log.info("Invalid record!");
+            return;
+        }
+        String principal = principalRoleMapping.getUsername() != null ? principalRoleMapping.getUsername() :
+                principalRoleMapping.getGroupname();
+        if (principal == null) {
+            log.info("Invalid record containing no username or groupname");
+            return;
+        }
+        String roleArn = principalRoleMapping.getRoleArn();
+        if (roleArn == null) {
+            log.info("Invalid record containing no role ARN");
+            return;
+        }
+        AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest()
+                .withRoleArn(principalRoleMapping.getRoleArn())
+                .withRoleSessionName(principal) // Use principal as session name
+                .withDurationSeconds(principalRoleMapping.getDurationSeconds())
+                .withPolicy(principalRoleMapping.getPolicy())
+                .withSerialNumber(principalRoleMapping.getSerialNumber())
+                .withExternalId(principalRoleMapping.getExternalId());
+        if (principalRoleMapping.getUsername() != null) {
+            userRoleMapping.put(principal, assumeRoleRequest);
+        } else {
+            groupRoleMapping.put(principal, assumeRoleRequest);
+        }
+        log.debug("Mapped {} to {}", principal, assumeRoleRequest);
+    }
+
+    /**
+     * The user and group mappings loaded from one version of the mapping file.
+     */
+    @Value
+    private static class RoleMappings {
+        Map<String, AssumeRoleRequest> userRoleMapping;
+        Map<String, AssumeRoleRequest> groupRoleMapping;
+        GroupIdMappings<AssumeRoleRequest> groupIdRoleMapping;
     }
 }
@@ -0,0 +1,105 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.mapping;
+
+import com.amazon.aws.emr.common.collect.IntObjectMap;
+import com.amazon.aws.emr.common.system.PrincipalResolver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The group mappings of a mapper keyed by group id, for the principal resolvers that can list the group ids of a
+ * user.
+ *
+ * <p>
+ * The mapped groups are resolved to ids when the mapping is loaded, so that a lookup matches the ids of the groups of
+ * the user, instead of resolving the name of every group the user is in. Ids are only matched if every mapped group
+ * was resolved, as a group that was not found, perhaps not yet created, would otherwise never match.
+ *
+ * @param <V> the mapping of a group
+ */
+@Slf4j
+final class GroupIdMappings<V> {
+
+    // Null when the groups could not all be resolved
+    private final IntObjectMap<Entry<V>> mappings;
+
+    private GroupIdMappings(IntObjectMap<Entry<V>> mappings) {
+        this.mappings = mappings;
+    }
+
+    /**
+     * @return mappings that always leave matching to group names
+     */
+    static <V> GroupIdMappings<V> unresolved() {
+        return new GroupIdMappings<>(null);
+    }
+
+    /**
+     * Resolves the ids of the mapped groups.
+     *
+     * @param mappings          the mappings, by principal name
+     * @param groupNames        the principals that must be groups. The other principals are matched as groups too
+     *                          when they are found to be groups, like the mappers do when matching names.
+     * @param principalResolver resolves the ids
+     * @return the mappings by group id
+     */
+    static <V> GroupIdMappings<V> resolve(Map<String, V> mappings, Set<String> groupNames,
+                                          PrincipalResolver principalResolver) {
+        IntObjectMap<Entry<V>> groupIdMappings = new IntObjectMap<>(mappings.size());
+        for (Map.Entry<String, V> mapping : mappings.entrySet()) {
+            String principal = mapping.getKey();
+            OptionalInt gid = principalResolver.getGroupId(principal);
+            if (!gid.isPresent()) {
+                if (groupNames.contains(principal)) {
+                    log.debug("Couldn't resolve the id of group {}, matching groups by name", principal);
+                    return unresolved();
+                }
+                continue;
+            }
+            // Like getgrgid, only one group is found for an id
+            if (groupIdMappings.get(gid.getAsInt()) == null) {
+                groupIdMappings.put(gid.getAsInt(), new Entry<>(principal, mapping.getValue()));
+            }
+        }
+        return new GroupIdMappings<>(groupIdMappings);
+    }
+
+    /**
+     * @param username          the user to match
+     * @param principalResolver lists the group ids of the user
+     * @return the mappings of the groups of the user, in the order of the groups, or {@link Optional#empty()} if
+     * groups cannot be matched by id, in which case callers match on group names
+     */
+    Optional<List<V>> getMappings(String username, PrincipalResolver principalResolver) {
+        if (mappings == null) {
+            return Optional.empty();
+        }
+        Optional<int[]> groupIds = principalResolver.getGroupIds(username);
+        if (!groupIds.isPresent()) {
+            return Optional.empty();
+        }
+        List<V> matches = new ArrayList<>();
+        for (int gid : groupIds.get()) {
+            Entry<V> entry = mappings.get(gid);
+            if (entry != null) {
+                log.debug("Mapped {} with group membership of {}", username, entry.getGroupName());
+                matches.add(entry.getMapping());
+            }
+        }
+        return Optional.of(matches);
+    }
+
+    @Value
+    private static class Entry<V> {
+        String groupName;
+        V mapping;
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.mapping;
+
+import com.amazon.aws.emr.rolemapper.UserRoleMapperProvider;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps {@code getMapping} and {@code refresh} of a custom mapper from running at the same time.
+ * Custom mappers were written against this guarantee, unlike the S3 based mappers which replace their
+ * mapping in one step and need no locking.
+ */
+class LockingUserRoleMapperProvider implements UserRoleMapperProvider {
+    // The mapping would be read many times, but changed quite infrequently!
+    // Hence we don't block readers if there is no change in mapping.
+    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final Lock readLockInRwLock = rwLock.readLock();
+    private final Lock writeLockInRwLock = rwLock.writeLock();
+
+    private final UserRoleMapperProvider delegate;
+
+    LockingUserRoleMapperProvider(UserRoleMapperProvider delegate) {
+        this.delegate = Objects.requireNonNull(delegate);
+    }
+
+    @Override
+    public void init(Map<String, String> configMap) {
+        writeLockInRwLock.lock();
+        try {
+            delegate.init(configMap);
+        } finally {
+            writeLockInRwLock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<AssumeRoleRequest> getMapping(String username) {
+        readLockInRwLock.lock();
+        try {
+            return delegate.getMapping(username);
+        } finally {
+            readLockInRwLock.unlock();
+        }
+    }
+
+    @Override
+    public void refresh() {
+        writeLockInRwLock.lock();
+        try {
+            delegate.refresh();
+        } finally {
+            writeLockInRwLock.unlock();
+        }
+    }
+}
@@ -11,14 +11,20 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import lombok.NoArgsConstructor;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -32,11 +38,18 @@ public class ManagedPolicyBasedUserRoleMapperImpl extends S3BasedUserMappingImpl
   @VisibleForTesting
   static String DEFAULT_NO_MATCH_POLICY_ARN = "arn:aws:iam::aws:policy/AWSDenyAll";
 
+  // The session of the users that no mapping matched, when they share one
+  @VisibleForTesting
+  static final String SHARED_NO_MATCH_SESSION_NAME = "no-match";
+
   private PrincipalResolver principalResolver;
   private String roleArn;
-  private String noMatchPolicyArn = DEFAULT_NO_MATCH_POLICY_ARN;
+  private String noMatchMode = Constants.NO_MATCH_MODE_SESSION;
 
-  private final Map<String, List<PolicyDescriptorType>> principalRoleMapping = new HashMap<>();
+  // Replaced as a whole by readMappings, so readers never see a partially loaded mapping
+  private volatile PolicyMappings policyMappings =
+      new PolicyMappings(Collections.emptyMap(), Collections.emptySet(), GroupIdMappings.unresolved(),
+          DEFAULT_NO_MATCH_POLICY_ARN);
 
   private static final Gson GSON = new GsonBuilder()
       .setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE)
@@ -56,37 +69,51 @@ public class ManagedPolicyBasedUserRoleMapperImpl extends S3BasedUserMappingImpl
   @Override
   public void init(Map<String, String> configMap) {
     roleArn = Objects.requireNonNull(configMap.get(Constants.ROLE_MAPPING_ROLE_ARN));
+    String mode = configMap.getOrDefault(Constants.ROLE_MAPPING_NO_MATCH_MODE, Constants.NO_MATCH_MODE_SESSION);
+    if (Constants.NO_MATCH_MODE_SHARED.equalsIgnoreCase(mode)) {
+      noMatchMode = Constants.NO_MATCH_MODE_SHARED;
+    } else if (Constants.NO_MATCH_MODE_NONE.equalsIgnoreCase(mode)) {
+      noMatchMode = Constants.NO_MATCH_MODE_NONE;
+    } else {
+      if (!Constants.NO_MATCH_MODE_SESSION.equalsIgnoreCase(mode)) {
+        log.warn("Unknown no-match mode {}, using {}", mode, Constants.NO_MATCH_MODE_SESSION);
+      }
+      noMatchMode = Constants.NO_MATCH_MODE_SESSION;
+    }
+    log.info("No-Match mode is : " + noMatchMode);
   }
 
   @Override
   public Optional<AssumeRoleRequest> getMapping(String username) {
     log.debug("Got request to map user {}", username);
+    PolicyMappings policyMappings = this.policyMappings;
+    Map<String, List<PolicyDescriptorType>> principalRoleMapping = policyMappings.getPrincipalRoleMapping();
+    String noMatchPolicyArn = policyMappings.getNoMatchPolicyArn();
 
-    List<String> principals = new ArrayList<>();
+    List<List<PolicyDescriptorType>> principalPolicies = new ArrayList<>();
     List<PolicyDescriptorType> policyDescriptorTypes = new ArrayList<>();
 
-    principals.add(username);
-    Optional<List<String>> groups = principalResolver.getGroups(username);
-    if (groups.isPresent()) {
-      principals.addAll(groups.get());
+    principalPolicies.add(principalRoleMapping.getOrDefault(username, Collections.emptyList()));
+    Optional<List<List<PolicyDescriptorType>>> groupIdMatches =
+        policyMappings.getGroupIdPolicyMapping().getMappings(username, principalResolver);
+    if (groupIdMatches.isPresent()) {
+      principalPolicies.addAll(groupIdMatches.get());
+    } else {
+      Optional<List<String>> groups = principalResolver.getGroups(username);
+      log.debug("Groups user belongs to is {}", groups.orElse(Collections.EMPTY_LIST));
+      groups.orElse(Collections.emptyList()).stream()
+          .map(group -> principalRoleMapping.getOrDefault(group, Collections.emptyList()))
+          .forEach(principalPolicies::add);
     }
 
-    log.debug("Groups user belongs to is {}", groups.orElse(Collections.EMPTY_LIST));
-
-    principals.stream()
-        .map(principal -> principalRoleMapping.getOrDefault(principal, Collections.emptyList()))
+    principalPolicies.stream()
         .filter(policies -> !policies.isEmpty())
         .flatMap(List::stream)
         .distinct()
         .forEach(policyDescriptorTypes::add);
 
     if (policyDescriptorTypes.isEmpty()) {
-      if (noMatchPolicyArn != null && noMatchPolicyArn.length() > 0) {
-        log.debug("Found no mappings for this user. Returning credentials with default policy arn");
-        policyDescriptorTypes.add(new PolicyDescriptorType().withArn(noMatchPolicyArn));
-      } else {
-        return Optional.empty();
-      }
+      return getNoMatchMapping(username, noMatchPolicyArn);
     }
 
     log.debug("Policies mapped for user: {}", policyDescriptorTypes);
@@ -98,40 +125,93 @@ public class ManagedPolicyBasedUserRoleMapperImpl extends S3BasedUserMappingImpl
     return Optional.of(assumeRoleRequest);
   }
 
+  /**
+   * A shared session is the same request for every user, so the credentials provider assumes the role for it once
+   * and serves all of them from its cache.
+   */
+  private Optional<AssumeRoleRequest> getNoMatchMapping(String username, String noMatchPolicyArn) {
+    if (noMatchPolicyArn == null || noMatchPolicyArn.isEmpty()
+        || Constants.NO_MATCH_MODE_NONE.equals(noMatchMode)) {
+      log.debug("Found no mappings for this user. Returning no credentials");
+      return Optional.empty();
+    }
+    log.debug("Found no mappings for this user. Returning credentials with default policy arn");
+    String sessionName = Constants.NO_MATCH_MODE_SHARED.equals(noMatchMode) ? SHARED_NO_MATCH_SESSION_NAME : username;
+    return Optional.of(new AssumeRoleRequest()
+        .withRoleArn(roleArn)
+        .withRoleSessionName(sessionName)
+        .withPolicyArns(new PolicyDescriptorType().withArn(noMatchPolicyArn)));
+  }
+
   @Override
-  void processFile(String jsonString) {
-    log.info("Received the following JSON {}", jsonString);
-    PrincipalPolicyMappings principalPolicyMappings = GSON
-        .fromJson(jsonString, PrincipalPolicyMappings.class);
-    // Clear the old mapping now since we found a new valid mapping!
-    principalRoleMapping.clear();
-    noMatchPolicyArn = DEFAULT_NO_MATCH_POLICY_ARN;
-
-    if (principalPolicyMappings.getNoMatchPolicyArn() != null) {
-      noMatchPolicyArn = principalPolicyMappings.getNoMatchPolicyArn();
+  int readMappings(JsonReader reader) throws IOException {
+    Map<String, List<PolicyDescriptorType>> principalRoleMapping = new HashMap<>();
+    Set<String> groupNames = new HashSet<>();
+    String noMatchPolicyArn = DEFAULT_NO_MATCH_POLICY_ARN;
+    boolean foundMappings = false;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (PrincipalPolicyMappings.NO_MATCH_POLICY_ARN.equals(name)) {
+        String arn = GSON.fromJson(reader, String.class);
+        if (arn != null) {
+          noMatchPolicyArn = arn;
+        }
+      } else if (PrincipalPolicyMappings.PRINCIPAL_POLICY_MAPPINGS.equals(name)) {
+        foundMappings = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+          addMapping(GSON.fromJson(reader, PrincipalPolicyMapping.class), principalRoleMapping, groupNames);
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (!foundMappings) {
+      throw new JsonSyntaxException("No " + PrincipalPolicyMappings.PRINCIPAL_POLICY_MAPPINGS + " in the mapping");
     }
     log.info("No-Match Policy ARN is : " + noMatchPolicyArn);
+    // Swap in the new mapping now since we found a new valid mapping!
+    policyMappings = new PolicyMappings(Collections.unmodifiableMap(principalRoleMapping),
+        Collections.unmodifiableSet(groupNames),
+        GroupIdMappings.resolve(principalRoleMapping, groupNames, principalResolver), noMatchPolicyArn);
+    return principalRoleMapping.size();
+  }
 
-    for (PrincipalPolicyMapping principalPolicyMapping : principalPolicyMappings
-        .getPrincipalPolicyMappings()) {
-      if (!isValidMapping(principalPolicyMapping)) {
-        log.info("Invalid record!");
-        continue;
-      }
+  @Override
+  void resolveGroupIds() {
+    PolicyMappings policyMappings = this.policyMappings;
+    this.policyMappings = new PolicyMappings(policyMappings.getPrincipalRoleMapping(), policyMappings.getGroupNames(),
+        GroupIdMappings.resolve(policyMappings.getPrincipalRoleMapping(), policyMappings.getGroupNames(),
+            principalResolver),
+        policyMappings.getNoMatchPolicyArn());
+  }
 
-      String principal =
-          principalPolicyMapping.getUsername() != null ? principalPolicyMapping.getUsername() :
-              principalPolicyMapping.getGroupname();
+  private void addMapping(PrincipalPolicyMapping principalPolicyMapping,
+      Map<String, List<PolicyDescriptorType>> principalRoleMapping, Set<String> groupNames) {
+    if (!isValidMapping(principalPolicyMapping)) {
+      log.info("Invalid record!");
+      return;
+    }
 
-      List<PolicyDescriptorType> policyDescriptorTypes = new ArrayList<>();
-      principalPolicyMapping.getPolicyArns().stream()
-          .map(p -> new PolicyDescriptorType().withArn(p))
-          .forEach(policyDescriptorTypes::add);
+    String principal =
+        principalPolicyMapping.getUsername() != null ? principalPolicyMapping.getUsername() :
+            principalPolicyMapping.getGroupname();
 
-      principalRoleMapping.put(principal, policyDescriptorTypes);
+    List<PolicyDescriptorType> policyDescriptorTypes = new ArrayList<>();
+    principalPolicyMapping.getPolicyArns().stream()
+        .map(p -> new PolicyDescriptorType().withArn(p))
+        .forEach(policyDescriptorTypes::add);
 
-      log.info("Mapped {} to {}", principal, principalPolicyMapping.getPolicyArns());
+    principalRoleMapping.put(principal, Collections.unmodifiableList(policyDescriptorTypes));
+    if (principalPolicyMapping.getUsername() == null) {
+      groupNames.add(principal);
     }
+
+    log.debug("Mapped {} to {}", principal, principalPolicyMapping.getPolicyArns());
   }
 
   boolean isValidMapping(PrincipalPolicyMapping principalPolicyMapping) {
@@ -153,4 +233,15 @@ public class ManagedPolicyBasedUserRoleMapperImpl extends S3BasedUserMappingImpl
     }
     return true;
   }
+
+  /**
+   * The policy mappings loaded from one version of the mapping file.
+   */
+  @Value
+  private static class PolicyMappings {
+    Map<String, List<PolicyDescriptorType>> principalRoleMapping;
+    Set<String> groupNames;
+    GroupIdMappings<List<PolicyDescriptorType>> groupIdPolicyMapping;
+    String noMatchPolicyArn;
+  }
 }
@@ -13,12 +13,13 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
@@ -30,14 +31,24 @@ import org.glassfish.hk2.api.Immediate;
 @Slf4j
 @Immediate
 public class MappingInvoker {
-    // The mapping would be read many times, but changed quite infrequently!
-    // Hence we don't block readers if there is no change in mapping.
-    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
-    private final Lock readLockInRwLock = rwLock.readLock();
-    private final Lock writeLockInRwLock = rwLock.writeLock();
+    private static final double REFRESH_JITTER = 0.2;
+    private static final long MAX_REFRESH_BACKOFF_MULTIPLIER = 16;
 
+    // The S3 based mappers publish each new mapping in one step, so neither map() nor refresh takes a lock.
+    // Custom mappers are wrapped in a LockingUserRoleMapperProvider instead.
     UserRoleMapperProvider roleMapperProvider;
 
+    // Keeps mapped callers when enabled with Constants.ROLE_MAPPING_UID_TABLE_ENABLED, and callers without a mapping
+    // unless disabled with Constants.ROLE_MAPPING_UNMAPPED_TTL_SECONDS. Null if it keeps neither.
+    UidMappingTable uidTable;
+
+    // Completes once a mapping is loaded, which may take a few refreshes if the first ones fail
+    private final CompletableFuture<Void> mappingLoaded = new CompletableFuture<>();
+
+    // Stands in for the mapping version of custom mappers, which may change on any refresh.
+    // Only the refresh thread writes it.
+    private volatile long refreshCount;
+
     @Inject
     ApplicationConfiguration applicationConfiguration;
 
@@ -67,7 +78,7 @@ public class MappingInvoker {
                 log.info("Successfully created the mapper using {}/{}", bucketName, key);
             } else {
                 Class clazz = Class.forName(className);
-                roleMapperProvider = (UserRoleMapperProvider) clazz.newInstance();
+                roleMapperProvider = new LockingUserRoleMapperProvider((UserRoleMapperProvider) clazz.newInstance());
             }
             roleMapperProvider.init(applicationConfiguration.asMap());
             log.info("Initialized the mapper.");
@@ -78,6 +89,21 @@ public class MappingInvoker {
           log.error("Could not load the mapper " + t.getMessage());
           throw new RuntimeException("Could not load the mapper class", t);
         }
+        int ttlSeconds = 0;
+        if (Boolean.parseBoolean(applicationConfiguration.getProperty(Constants.ROLE_MAPPING_UID_TABLE_ENABLED,
+                "false"))) {
+            ttlSeconds = applicationConfiguration.getProperty(Constants.ROLE_MAPPING_UID_TABLE_TTL_SECONDS,
+                    Constants.ROLE_MAPPING_DEFAULT_UID_TABLE_TTL_SECONDS);
+        }
+        int unmappedTtlSeconds = applicationConfiguration.getProperty(Constants.ROLE_MAPPING_UNMAPPED_TTL_SECONDS,
+                Constants.ROLE_MAPPING_DEFAULT_UNMAPPED_TTL_SECONDS);
+        if (ttlSeconds > 0 || unmappedTtlSeconds > 0) {
+            log.info("Keeping up to {} callers, mapped ones for {}s and unmapped ones for {}s",
+                    Constants.ROLE_MAPPING_UID_TABLE_MAX_SIZE, ttlSeconds, unmappedTtlSeconds);
+            uidTable = new UidMappingTable(TimeUnit.SECONDS.toNanos(ttlSeconds),
+                    TimeUnit.SECONDS.toNanos(unmappedTtlSeconds), Constants.ROLE_MAPPING_UID_TABLE_MAX_SIZE,
+                    this::getMappingVersion, principalResolver::getGroupMembershipVersion);
+        }
         int refreshIntervalMins = Integer.parseInt(applicationConfiguration.getProperty
                 (Constants.ROLE_MAPPPING_REFRESH_INTERVAL_MIN, Constants.ROLE_MAPPPING_DEFAULT_REFRESH_INTERVAL_MIN));
         createRefreshTask(Math.max(Constants.ROLE_MAPPING_MIN_REFRESH_INTERVAL_MIN, refreshIntervalMins));
@@ -91,18 +117,17 @@ public class MappingInvoker {
 
     /**
      * Maps a user to an {@code Optional} of {@link AssumeRoleRequest}.
-     * This is invoked by many threads and we employ a reentrant read lock
-     * to stay unblocked as long as there is no need to refresh mapping.
+     * This is invoked by many threads, and reads whichever mapping is current without waiting for a refresh.
      *
      * @param username
      * @return
      */
     public Optional<AssumeRoleRequest> map(String username) {
-        readLockInRwLock.lock();
         try {
             Optional<AssumeRoleRequest> assumeRoleRequest = roleMapperProvider.getMapping(username);
             if (assumeRoleRequest.isPresent() && applicationConfiguration.isSetSourceIdentityEnabled()) {
-                assumeRoleRequest.get().setSourceIdentity(username);
+                // The mapper may hand out the same request to every caller, so never modify it
+                assumeRoleRequest = Optional.of(assumeRoleRequest.get().clone().withSourceIdentity(username));
             }
             log.debug("Found mapping for {} as {}", username, assumeRoleRequest);
             return assumeRoleRequest;
@@ -110,14 +135,44 @@ public class MappingInvoker {
             // We are running some custom code that could throw anything.
             log.error("Got exception in getting mapping for {}", username, t);
             return Optional.empty();
-        } finally {
-            readLockInRwLock.unlock();
         }
     }
 
+    /**
+     * Maps the user behind a uid to an {@code Optional} of {@link AssumeRoleRequest}.
+     * Repeat callers are answered from the uid table when it is enabled, which hands out the same request to every
+     * call. Repeat callers without a mapping are answered from it too, unless that is disabled.
+     *
+     * @param uid      the uid of the caller
+     * @param username the username of the uid
+     * @return
+     */
+    public Optional<AssumeRoleRequest> map(int uid, String username) {
+        if (uidTable == null) {
+            return map(username);
+        }
+        return uidTable.map(uid, username, this::map);
+    }
+
+    /**
+     * @return completes once the first mapping is loaded, on the refresh thread
+     */
+    public CompletionStage<Void> whenMappingLoaded() {
+        return mappingLoaded;
+    }
+
+    private long getMappingVersion() {
+        if (roleMapperProvider instanceof S3BasedUserMappingImplBase) {
+            return ((S3BasedUserMappingImplBase) roleMapperProvider).getMappingVersion();
+        }
+        return refreshCount;
+    }
+
     /**
      * Creates a thread that runs the user provided refresh method periodically.
-     * It acquires a write lock and reloads the mapping.
+     * Requests keep being served from the previous mapping while it reloads, and the uid table is rebuilt after.
+     * Each refresh is scheduled after the previous one, with jitter so that the nodes of a cluster do not all call
+     * S3 at once, and with exponential backoff while refreshes fail.
      *
      * @param refreshIntervalMins
      */
@@ -127,17 +182,63 @@ public class MappingInvoker {
                 .setDaemon(true)
                 .build();
         ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(threadFactory);
-        exec.scheduleAtFixedRate(() -> {
-            writeLockInRwLock.lock();
+        scheduleRefresh(exec, TimeUnit.MINUTES.toMillis(refreshIntervalMins), 0, 0);
+    }
+
+    private void scheduleRefresh(ScheduledExecutorService exec, long refreshIntervalMs, long delayMs,
+                                 int failures) {
+        exec.schedule(() -> {
+            int nextFailures = refresh() ? 0 : failures + 1;
+            if (nextFailures == 0) {
+                mappingLoaded.complete(null);
+            }
+            long nextDelayMs = getRefreshDelayMs(refreshIntervalMs, nextFailures,
+                    ThreadLocalRandom.current().nextDouble());
+            if (nextFailures > 0) {
+                log.warn("Refreshing the mapping failed {} times in a row, retrying in {}s", nextFailures,
+                        TimeUnit.MILLISECONDS.toSeconds(nextDelayMs));
+            }
+            scheduleRefresh(exec, refreshIntervalMs, nextDelayMs, nextFailures);
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return {@code true} if the mapping was refreshed, or did not need to be
+     */
+    private boolean refresh() {
+        try {
+            log.debug("Refreshing the user role mapping.");
+            UidMappingTable.Generation previous = uidTable == null ? null : uidTable.beforeRefresh();
             try {
-                log.debug("Refreshing the user role mapping.");
                 roleMapperProvider.refresh();
-            } catch (Throwable t) {
-                // We are running some custom code that could throw anything.
-                log.error("Got an error while refreshing", t);
             } finally {
-                writeLockInRwLock.unlock();
+                refreshCount++;
+            }
+            if (uidTable != null) {
+                uidTable.rebuild(previous, this::map);
             }
-        }, 0, refreshIntervalMins, TimeUnit.MINUTES);
+            return true;
+        } catch (Throwable t) {
+            // We are running some custom code that could throw anything.
+            log.error("Got an error while refreshing", t);
+            return false;
+        }
+    }
+
+    /**
+     * Computes the delay until the next refresh. The interval doubles with every failed refresh in a row, up to
+     * {@value #MAX_REFRESH_BACKOFF_MULTIPLIER} times, and is then spread by up to {@value #REFRESH_JITTER} of
+     * itself either way.
+     *
+     * @param refreshIntervalMs the configured refresh interval
+     * @param failures          the number of refreshes in a row that failed
+     * @param random            a random number in [0, 1)
+     * @return the delay in milliseconds
+     */
+    @VisibleForTesting
+    static long getRefreshDelayMs(long refreshIntervalMs, int failures, double random) {
+        long multiplier = Math.min(MAX_REFRESH_BACKOFF_MULTIPLIER, 1L << Math.min(failures, 30));
+        long delayMs = refreshIntervalMs * multiplier;
+        return Math.round(delayMs * (1 - REFRESH_JITTER + 2 * REFRESH_JITTER * random));
     }
 }
@@ -4,14 +4,20 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
-import java.io.BufferedReader;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -24,16 +30,42 @@ public abstract class S3BasedUserMappingImplBase {
   protected String key;
   protected String etag;
   protected static AmazonS3 s3Client = null;
+  private volatile long mappingVersion;
 
+  /**
+   * Loads the mapping if it changed since the last load, in a single GET that S3 answers with 304 Not Modified
+   * when the ETag still matches. The ids of the mapped groups are resolved again when it did not change.
+   *
+   * @throws AmazonClientException if S3 cannot be reached
+   * @throws JsonParseException    if the mapping is not valid
+   */
   public void refresh() {
     log.debug("Checking if need to load mapping again from S3 from {}/{}", bucketName, key);
-    ObjectMetadata objectMetadata = getS3Client().getObjectMetadata(bucketName, key);
-    if (objectMetadata.getETag().equals(etag)) {
-      log.debug("Nothing to do as current etag {} matches the last one.", objectMetadata.getETag());
-    } else {
-      log.info("Seems we have new mapping - reload it.");
-      readMapping();
+    GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, key);
+    if (etag != null) {
+      getObjectRequest.withNonmatchingETagConstraint(etag);
+    }
+    // The client returns null instead of an object when S3 answers 304 Not Modified
+    try (S3Object s3object = getS3Client().getObject(getObjectRequest)) {
+      if (s3object == null) {
+        log.debug("Current etag {} matches the last one, only resolving group ids again.", etag);
+        resolveGroupIds();
+        return;
+      }
+      if (etag == null) {
+        log.info("Loading the mapping from S3 from {}/{}", bucketName, key);
+      } else {
+        log.info("Seems we have new mapping - load it from S3 from {}/{}", bucketName, key);
+      }
+      S3ObjectInputStream s3InputStream = s3object.getObjectContent();
+      processStream(new InputStreamReader(s3InputStream, StandardCharsets.UTF_8));
+      // Only the refresh thread writes the version
+      mappingVersion++;
+      // Update the ETag only once the mapping is in use, so that a bad file is retried
+      etag = s3object.getObjectMetadata().getETag();
       log.info("Done with the reload.");
+    } catch (IOException e) {
+      log.error("Could not close the mapping from S3", e);
     }
   }
 
@@ -41,43 +73,60 @@ public abstract class S3BasedUserMappingImplBase {
    * Process the contents of S3 mapping file.
    *
    * @param json the contents of the S3 mapping.
+   * @throws JsonParseException if the mapping is not valid, in which case the previous mapping stays in use
    */
-  abstract void processFile(String json);
+  void processFile(String json) {
+    processStream(new StringReader(json));
+  }
 
-  private void readMapping() {
-    log.info("Load the mapping from S3 from {}/{}", bucketName, key);
-    try (S3Object s3object = getS3Client().getObject(new GetObjectRequest(
-        bucketName, key))) {
-      S3ObjectInputStream s3InputStream = s3object.getObjectContent();
-      String jsonString = null;
-      try {
-        jsonString = getS3FileAsString(s3InputStream);
-      } catch (IOException e) {
-        throw new RuntimeException("Could not fetch the mapping file from S3.", e);
-      }
-      // Update the ETag
-      etag = s3object.getObjectMetadata().getETag();
-      processFile(jsonString);
-    } catch (AmazonClientException ace) {
-      log.error("AWS exception {}", ace.getMessage(), ace);
+  /**
+   * Process the contents of S3 mapping file as they are read, without holding the whole file in memory.
+   *
+   * @param in the contents of the S3 mapping.
+   * @throws JsonParseException if the mapping is not valid, in which case the previous mapping stays in use
+   */
+  void processStream(Reader in) {
+    long startNanos = System.nanoTime();
+    JsonReader reader = new JsonReader(in);
+    // Accept everything that Gson#fromJson accepted before mappings were streamed
+    reader.setLenient(true);
+    int principals;
+    try {
+      principals = readMappings(reader);
+    } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+      throw new JsonSyntaxException(e);
     } catch (IOException e) {
-      log.error("Could not load mapping from S3", e);
+      throw new JsonIOException(e);
     }
+    log.info("Loaded the mapping of {} principals in {} ms", principals,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
   }
 
-  private static String getS3FileAsString(InputStream is) throws IOException {
-    if (is == null) {
-      return null;
-    }
-    StringBuilder sb = new StringBuilder();
-    try (BufferedReader reader = new BufferedReader(
-        new InputStreamReader(is, StandardCharsets.UTF_8))) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        sb.append(line);
-      }
-      return sb.toString();
-    }
+  /**
+   * Reads a mapping document, adding entries to a new mapping as they are read.
+   * Implementations build the new mapping aside and publish it in one step once the whole document is read, so
+   * that {@code getMapping} is served from the previous mapping until then, without any locking.
+   *
+   * @param reader positioned at the start of the document
+   * @return the number of principals mapped
+   * @throws IOException if the document cannot be read
+   */
+  abstract int readMappings(JsonReader reader) throws IOException;
+
+  /**
+   * Resolves the ids of the mapped groups of the current mapping again, as groups may have been created or
+   * renumbered since it was loaded, and publishes them like {@link #readMappings(JsonReader)} does. Matching on ids
+   * gives the same result as matching on names, so the mapping version does not change.
+   */
+  abstract void resolveGroupIds();
+
+  /**
+   * A number that changes every time a new mapping is published, after {@code getMapping} starts to use it.
+   *
+   * @return the current mapping version
+   */
+  public long getMappingVersion() {
+    return mappingVersion;
   }
 
   synchronized static AmazonS3 getS3Client() {
@@ -0,0 +1,225 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.mapping;
+
+import com.amazon.aws.emr.common.collect.IntObjectMap;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ready-made {@link AssumeRoleRequest}s keyed by the uid of the caller, so that a repeat caller costs one hash probe
+ * instead of the user and group lookups of the mapper.
+ *
+ * <p>
+ * Entries belong to a generation, which is tied to one version of the mapping and one version of the group
+ * membership. A generation is dropped as soon as either version changes, and after a mapping refresh it is rebuilt
+ * for the callers of the previous generation. Entries also expire, for the principal resolvers that cannot tell when
+ * group membership changes.
+ *
+ * <p>
+ * Callers without a mapping, such as service accounts polling for credentials, can be kept too, with a TTL of their
+ * own. They are not rebuilt after a refresh, so they are looked up again once the mapping changes.
+ */
+@Slf4j
+class UidMappingTable {
+
+    private final long ttlNanos;
+    private final long unmappedTtlNanos;
+    private final int maxSize;
+    private final LongSupplier mappingVersion;
+    private final LongSupplier groupMembershipVersion;
+    private final AtomicReference<Generation> current;
+
+    UidMappingTable(long ttlNanos, int maxSize, LongSupplier mappingVersion, LongSupplier groupMembershipVersion) {
+        this(ttlNanos, 0, maxSize, mappingVersion, groupMembershipVersion);
+    }
+
+    /**
+     * @param ttlNanos               how long mapped callers are kept, or 0 not to keep them
+     * @param unmappedTtlNanos       how long callers without a mapping are kept, or 0 not to keep them
+     * @param maxSize                the most callers kept
+     * @param mappingVersion         the version of the mapping
+     * @param groupMembershipVersion the version of the group membership
+     */
+    UidMappingTable(long ttlNanos, long unmappedTtlNanos, int maxSize, LongSupplier mappingVersion,
+                    LongSupplier groupMembershipVersion) {
+        this.ttlNanos = ttlNanos;
+        this.unmappedTtlNanos = unmappedTtlNanos;
+        this.maxSize = maxSize;
+        this.mappingVersion = mappingVersion;
+        this.groupMembershipVersion = groupMembershipVersion;
+        this.current = new AtomicReference<>(new Generation(mappingVersion.getAsLong(),
+                groupMembershipVersion.getAsLong()));
+    }
+
+    /**
+     * Returns the request for a caller, mapping it only if there is no valid entry yet.
+     *
+     * @param uid      the uid of the caller
+     * @param username the username of the caller
+     * @param mapper   maps a username, taking care of any errors
+     * @return the mapped request, shared by every call for the same caller
+     */
+    Optional<AssumeRoleRequest> map(int uid, String username, Function<String, Optional<AssumeRoleRequest>> mapper) {
+        Generation generation = currentGeneration();
+        Entry entry = generation.entries.get(uid);
+        long now = System.nanoTime();
+        if (entry != null && entry.getUsername().equals(username) && now - entry.getExpiresAtNanos() < 0) {
+            return entry.getAssumeRoleRequest();
+        }
+        // The versions were read before mapping, so the mapping is at least as recent as the generation
+        Optional<AssumeRoleRequest> assumeRoleRequest = mapper.apply(username);
+        if (assumeRoleRequest.isPresent()) {
+            if (ttlNanos > 0) {
+                put(generation, uid, new Entry(username, assumeRoleRequest, now + ttlNanos));
+            }
+        } else if (unmappedTtlNanos > 0) {
+            put(generation, uid, new Entry(username, assumeRoleRequest, now + unmappedTtlNanos));
+        }
+        return assumeRoleRequest;
+    }
+
+    /**
+     * @return the generation to pass to {@link #rebuild} once a refresh is done
+     */
+    Generation beforeRefresh() {
+        return current.get();
+    }
+
+    /**
+     * Maps the callers of a previous generation again if the versions have changed since, so that they do not
+     * have to after a mapping refresh.
+     *
+     * @param previous the generation before the refresh
+     * @param mapper   maps a username, taking care of any errors
+     */
+    void rebuild(Generation previous, Function<String, Optional<AssumeRoleRequest>> mapper) {
+        Generation next = new Generation(mappingVersion.getAsLong(), groupMembershipVersion.getAsLong());
+        if (next.isSameVersion(previous)) {
+            return;
+        }
+        long now = System.nanoTime();
+        previous.entries.forEach((uid, entry) -> {
+            if (entry.getAssumeRoleRequest().isPresent()) {
+                mapper.apply(entry.getUsername())
+                        .ifPresent(request -> put(next, uid, new Entry(entry.getUsername(), Optional.of(request),
+                                now + ttlNanos)));
+            }
+        });
+        Generation installed = install(next);
+        if (installed != next && installed.isSameVersion(next)) {
+            // A request started the generation while the callers were being mapped again
+            next.entries.forEach((uid, entry) -> {
+                if (installed.entries.get(uid) == null) {
+                    put(installed, uid, entry);
+                }
+            });
+        }
+        log.debug("Rebuilt the uid mapping table with {} callers", installed.entries.size());
+    }
+
+    int size() {
+        return current.get().entries.size();
+    }
+
+    private Generation currentGeneration() {
+        Generation generation = current.get();
+        // Runs on every request, so a generation is only allocated when a version has changed
+        long latestMappingVersion = mappingVersion.getAsLong();
+        long latestGroupMembershipVersion = groupMembershipVersion.getAsLong();
+        if (generation.isVersion(latestMappingVersion, latestGroupMembershipVersion)) {
+            return generation;
+        }
+        return install(new Generation(latestMappingVersion, latestGroupMembershipVersion));
+    }
+
+    /**
+     * Makes a generation current, unless the current one is at least as recent. The versions only grow, so a
+     * generation built from versions read earlier never replaces one built from later versions.
+     *
+     * @param candidate the generation to make current
+     * @return the generation that is current
+     */
+    private Generation install(Generation candidate) {
+        while (true) {
+            Generation installed = current.get();
+            if (installed.mappingVersion >= candidate.mappingVersion
+                    && installed.groupMembershipVersion >= candidate.groupMembershipVersion) {
+                return installed;
+            }
+            if (current.compareAndSet(installed, candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    private void put(Generation generation, int uid, Entry entry) {
+        Generation target = generation;
+        // Replacing an expired entry does not grow the table
+        if (target.entries.size() >= maxSize && target.entries.get(uid) == null) {
+            target = compact(target);
+            if (target == null) {
+                return;
+            }
+        }
+        target.entries.put(uid, entry);
+    }
+
+    /**
+     * Makes room in a full generation, so that callers who expired or left do not keep new callers out until the
+     * versions change. The entries that have not expired are kept, unless they would fill most of the table again,
+     * in which case it starts over empty and the callers are mapped again as they come back.
+     *
+     * @param full the full generation
+     * @return the generation that replaced it, or {@code null} if it was no longer current
+     */
+    private Generation compact(Generation full) {
+        long now = System.nanoTime();
+        Generation compacted = new Generation(full.mappingVersion, full.groupMembershipVersion);
+        full.entries.forEach((uid, entry) -> {
+            if (now - entry.getExpiresAtNanos() < 0) {
+                compacted.entries.put(uid, entry);
+            }
+        });
+        // Otherwise the next few new callers would each compact the table again
+        Generation next = compacted.entries.size() > maxSize * 3L / 4
+                ? new Generation(full.mappingVersion, full.groupMembershipVersion) : compacted;
+        if (!current.compareAndSet(full, next)) {
+            return null;
+        }
+        log.debug("The uid mapping table was full, kept {} callers", next.entries.size());
+        return next;
+    }
+
+    static final class Generation {
+        private final long mappingVersion;
+        private final long groupMembershipVersion;
+        private final IntObjectMap<Entry> entries = new IntObjectMap<>();
+
+        private Generation(long mappingVersion, long groupMembershipVersion) {
+            this.mappingVersion = mappingVersion;
+            this.groupMembershipVersion = groupMembershipVersion;
+        }
+
+        private boolean isSameVersion(Generation other) {
+            return isVersion(other.mappingVersion, other.groupMembershipVersion);
+        }
+
+        private boolean isVersion(long mappingVersion, long groupMembershipVersion) {
+            return this.mappingVersion == mappingVersion && this.groupMembershipVersion == groupMembershipVersion;
+        }
+    }
+
+    @Value
+    private static class Entry {
+        String username;
+        Optional<AssumeRoleRequest> assumeRoleRequest;
+        long expiresAtNanos;
+    }
+}
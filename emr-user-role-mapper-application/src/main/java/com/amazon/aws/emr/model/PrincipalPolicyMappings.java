@@ -8,9 +8,12 @@ import lombok.Data;
 
 @Data
 public class PrincipalPolicyMappings {
-    @SerializedName("NoMatchPolicyArn")
+    public static final String NO_MATCH_POLICY_ARN = "NoMatchPolicyArn";
+    public static final String PRINCIPAL_POLICY_MAPPINGS = "PrincipalPolicyMappings";
+
+    @SerializedName(NO_MATCH_POLICY_ARN)
     String noMatchPolicyArn;
 
-    @SerializedName("PrincipalPolicyMappings")
+    @SerializedName(PRINCIPAL_POLICY_MAPPINGS)
     PrincipalPolicyMapping[] principalPolicyMappings;
 }
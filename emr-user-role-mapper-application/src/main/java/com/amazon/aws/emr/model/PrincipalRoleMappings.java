@@ -8,6 +8,8 @@ import lombok.Data;
 
 @Data
 public class PrincipalRoleMappings {
-    @SerializedName("PrincipalRoleMappings")
+    public static final String PRINCIPAL_ROLE_MAPPINGS = "PrincipalRoleMappings";
+
+    @SerializedName(PRINCIPAL_ROLE_MAPPINGS)
     PrincipalRoleMapping[] principalRoleMappings;
 }
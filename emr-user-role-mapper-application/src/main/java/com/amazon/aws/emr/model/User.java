@@ -24,7 +24,8 @@ public class User {
     String shell;
 
     public static User createFromPasswdEntry(String line) {
-        String[] items = line.split(":");
+        // Keep trailing empty fields, such as an empty shell
+        String[] items = line.split(":", -1);
 
         if (items.length != 7) {
             log.error("Incorrect number of fields found in passwd file {}. Please check man 5 passwd", items.length);
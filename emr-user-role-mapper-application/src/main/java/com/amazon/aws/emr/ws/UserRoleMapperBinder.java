@@ -6,12 +6,15 @@ package com.amazon.aws.emr.ws;
 import com.amazon.aws.emr.ApplicationConfiguration;
 import com.amazon.aws.emr.common.system.PrincipalResolver;
 import com.amazon.aws.emr.common.system.factory.PrincipalResolverFactory;
+import com.amazon.aws.emr.common.system.factory.UserIdServiceFactory;
+import com.amazon.aws.emr.common.system.user.ConnectionIdentityCache;
+import com.amazon.aws.emr.credentials.AdaptiveRateLimiter;
+import com.amazon.aws.emr.credentials.CredentialsPrewarmer;
 import com.amazon.aws.emr.credentials.MetadataCredentialsProvider;
 import com.amazon.aws.emr.credentials.STSClient;
 import com.amazon.aws.emr.credentials.STSClientImpl;
 import com.amazon.aws.emr.credentials.STSCredentialsProvider;
 import com.amazon.aws.emr.mapping.MappingInvoker;
-import com.amazon.aws.emr.common.system.user.LinuxUserIdService;
 import com.amazon.aws.emr.common.system.user.UserIdService;
 import org.glassfish.hk2.api.Immediate;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
@@ -25,10 +28,13 @@ public class UserRoleMapperBinder extends AbstractBinder {
 
     @Override
     protected void configure() {
-        bind(LinuxUserIdService.class).to(UserIdService.class);
+        bindFactory(UserIdServiceFactory.class).to(UserIdService.class).in(Singleton.class);
+        bind(ConnectionIdentityCache.class).to(ConnectionIdentityCache.class).in(Singleton.class);
         bind(MappingInvoker.class).to(MappingInvoker.class).in(Immediate.class);
         bind(STSCredentialsProvider.class).to(MetadataCredentialsProvider.class).in(Singleton.class);
+        bind(CredentialsPrewarmer.class).to(CredentialsPrewarmer.class).in(Immediate.class);
         bind(ApplicationConfiguration.class).to(ApplicationConfiguration.class).in(Immediate.class);
+        bind(AdaptiveRateLimiter.class).to(AdaptiveRateLimiter.class).in(Singleton.class);
         bind(STSClientImpl.class).to(STSClient.class).in(Immediate.class);
         bindFactory(PrincipalResolverFactory.class).to(PrincipalResolver.class).in(Singleton.class);
     }
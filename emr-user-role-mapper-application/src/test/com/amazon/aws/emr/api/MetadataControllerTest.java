@@ -7,6 +7,8 @@ import com.amazon.aws.emr.ApplicationConfiguration;
 import com.amazon.aws.emr.common.TestConstants;
 import com.amazon.aws.emr.common.system.PrincipalResolver;
 import com.amazon.aws.emr.common.system.user.TestCommandBasedPrincipalResolver;
+import com.amazon.aws.emr.common.system.user.ConnectionIdentityCache;
+import com.amazon.aws.emr.credentials.CredentialsPrewarmer;
 import com.amazon.aws.emr.credentials.MetadataCredentialsProvider;
 import com.amazon.aws.emr.credentials.TestMetadataCredentialsProvider;
 import com.amazon.aws.emr.mapping.MappingInvoker;
@@ -79,10 +81,12 @@ public class MetadataControllerTest extends JerseyTest {
             @Override
             protected void configure() {
                 bind(osUserIdentificationService).to(UserIdService.class);
+                bind(ConnectionIdentityCache.class).to(ConnectionIdentityCache.class).in(Singleton.class);
                 bind(TestCommandBasedPrincipalResolver.class).to(PrincipalResolver.class).in(Singleton.class);
                 bind(MappingInvoker.class).to(MappingInvoker.class).in(Singleton.class);
                 bind(TestCommandBasedPrincipalResolver.class).to(PrincipalResolver.class).in(Singleton.class);
                 bind(TestMetadataCredentialsProvider.class).to(MetadataCredentialsProvider.class).in(Singleton.class);
+                bind(CredentialsPrewarmer.class).to(CredentialsPrewarmer.class).in(Singleton.class);
                 bind(ApplicationConfiguration.class).to(ApplicationConfiguration.class).in(Immediate.class);
             }
         });
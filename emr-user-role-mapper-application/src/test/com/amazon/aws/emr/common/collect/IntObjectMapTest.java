@@ -0,0 +1,84 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.collect;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class IntObjectMapTest {
+
+  @Test
+  public void get_missing_key() {
+    IntObjectMap<String> map = new IntObjectMap<>();
+    assertThat(map.get(0), is(nullValue()));
+    assertThat(map.get(1000), is(nullValue()));
+    assertThat(map.size(), is(0));
+  }
+
+  @Test
+  public void put_and_replace() {
+    IntObjectMap<String> map = new IntObjectMap<>();
+    assertThat(map.put(0, "root"), is(nullValue()));
+    assertThat(map.put(1000, "hadoop"), is(nullValue()));
+    assertThat(map.put(1000, "hive"), is("hadoop"));
+    assertThat(map.get(0), is("root"));
+    assertThat(map.get(1000), is("hive"));
+    assertThat(map.size(), is(2));
+  }
+
+  @Test
+  public void grows_past_initial_capacity() {
+    IntObjectMap<Integer> map = new IntObjectMap<>();
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (int i = -5000; i < 5000; i += 3) {
+      map.put(i, i * 2);
+      expected.put(i, i * 2);
+    }
+    assertThat(map.size(), is(expected.size()));
+    for (int i = -5000; i < 5000; i++) {
+      assertThat(map.get(i), is(expected.get(i)));
+    }
+    Map<Integer, Integer> visited = new HashMap<>();
+    map.forEach(visited::put);
+    assertThat(visited, is(expected));
+  }
+
+  @Test(timeout = 30_000)
+  public void reads_during_writes() throws Exception {
+    IntObjectMap<Integer> map = new IntObjectMap<>();
+    int keys = 100_000;
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> writer = executor.submit(() -> {
+        for (int i = 0; i < keys; i++) {
+          map.put(i, i);
+        }
+      });
+      while (!writer.isDone()) {
+        for (int i = 0; i < keys; i += 101) {
+          Integer value = map.get(i);
+          if (value != null) {
+            assertThat(value, is(i));
+          }
+        }
+      }
+      writer.get();
+    } finally {
+      executor.shutdownNow();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    for (int i = 0; i < keys; i++) {
+      assertThat(map.get(i), is(i));
+    }
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class AbstractPrincipalResolverTest {
+
+    private static final String PASSWD = String.join("\n",
+            "# local users",
+            "root:x:0:0:root:/root:/bin/bash",
+            "yarn:x:502:502::/var/lib/hadoop-yarn:/sbin/nologin",
+            "u1:x:503:504::/home/u1:/bin/bash",
+            "broken:x",
+            "");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path passwd;
+    private CountingPrincipalResolver principalResolver;
+
+    @Before
+    public void setup() throws IOException {
+        passwd = folder.getRoot().toPath().resolve("passwd");
+        Files.write(passwd, PASSWD.getBytes(StandardCharsets.UTF_8));
+        principalResolver = new CountingPrincipalResolver(passwd);
+        principalResolver.init();
+    }
+
+    @After
+    public void tearDown() {
+        principalResolver.close();
+    }
+
+    @Test
+    public void localUsers_areResolvedWithoutLookup() {
+        assertThat(principalResolver.getUsername(0), is(Optional.of("root")));
+        assertThat(principalResolver.getUsername(502), is(Optional.of("yarn")));
+        assertThat(principalResolver.getUsername(503), is(Optional.of("u1")));
+        assertThat(principalResolver.lookups.get(), is(0));
+    }
+
+    @Test
+    public void unknownUid_isLookedUpOnce() {
+        assertThat(principalResolver.getUsername(900), is(Optional.empty()));
+        assertThat(principalResolver.getUsername(900), is(Optional.empty()));
+        assertThat(principalResolver.lookups.get(), is(1));
+    }
+
+    @Test
+    public void directoryUser_isCached() {
+        assertThat(principalResolver.getUsername(2000), is(Optional.of("directory-user-2000")));
+        assertThat(principalResolver.getUsername(2000), is(Optional.of("directory-user-2000")));
+        assertThat(principalResolver.lookups.get(), is(1));
+    }
+
+    @Test(timeout = 10_000)
+    public void addedUser_isResolvedOnceUsersFileChanges() throws Exception {
+        assertThat(principalResolver.getUsername(900), is(Optional.empty()));
+
+        Path updated = folder.getRoot().toPath().resolve("passwd.new");
+        Files.write(updated, (PASSWD + "u2:x:900:900::/home/u2:/bin/bash\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(updated, passwd, StandardCopyOption.REPLACE_EXISTING);
+        while (!principalResolver.getUsername(900).isPresent()) {
+            Thread.sleep(50);
+        }
+        assertThat(principalResolver.getUsername(900), is(Optional.of("u2")));
+        assertThat(principalResolver.lookups.get(), is(1));
+    }
+
+    @Test(timeout = 10_000)
+    public void groupMembershipVersion_changesWhenRefreshFindsDifferentGroups() throws Exception {
+        CountingPrincipalResolver refreshingResolver = new CountingPrincipalResolver(passwd, 50,
+                TimeUnit.MILLISECONDS);
+        refreshingResolver.groups = Collections.singletonList("g1");
+        assertThat(refreshingResolver.getGroups("u1"), is(Optional.of(Collections.singletonList("g1"))));
+
+        // A refresh that finds the same groups keeps the version
+        int groupLookups = refreshingResolver.groupLookups.get();
+        while (refreshingResolver.groupLookups.get() == groupLookups) {
+            Thread.sleep(60);
+            refreshingResolver.getGroups("u1");
+        }
+        assertThat(refreshingResolver.getGroupMembershipVersion(), is(0L));
+
+        refreshingResolver.groups = Arrays.asList("g1", "g2");
+        while (refreshingResolver.getGroupMembershipVersion() == 0) {
+            Thread.sleep(60);
+            refreshingResolver.getGroups("u1");
+        }
+        assertThat(refreshingResolver.getGroups("u1"), is(Optional.of(Arrays.asList("g1", "g2"))));
+        assertThat(refreshingResolver.getGroupMembershipVersion(), is(1L));
+    }
+
+    @Test(timeout = 10_000)
+    public void failedGroupRefresh_isNotRetriedOnEveryLookup() throws Exception {
+        CountingPrincipalResolver refreshingResolver = new CountingPrincipalResolver(passwd, 200,
+                TimeUnit.MILLISECONDS);
+        refreshingResolver.groups = Collections.singletonList("g1");
+        refreshingResolver.getGroups("u1");
+
+        // Lookups return no groups when they fail
+        refreshingResolver.groups = Collections.emptyList();
+        Thread.sleep(250);
+        refreshingResolver.getGroups("u1");
+        while (refreshingResolver.groupLookups.get() < 2) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        for (int i = 0; i < 100; i++) {
+            assertThat(refreshingResolver.getGroups("u1"), is(Optional.of(Collections.singletonList("g1"))));
+        }
+        Thread.sleep(50);
+        assertThat(refreshingResolver.groupLookups.get(), is(2));
+
+        // Retried once the retry interval is over
+        refreshingResolver.groups = Arrays.asList("g1", "g2");
+        Thread.sleep(200);
+        while (!refreshingResolver.getGroups("u1").get().contains("g2")) {
+            Thread.sleep(10);
+        }
+        assertThat(refreshingResolver.groupLookups.get(), is(3));
+    }
+
+    /**
+     * Finds uids from 1000 on, as if from a directory service.
+     */
+    private static class CountingPrincipalResolver extends AbstractPrincipalResolver {
+        private final Path usersFile;
+        private final AtomicInteger lookups = new AtomicInteger();
+        private final AtomicInteger groupLookups = new AtomicInteger();
+        private volatile List<String> groups = Collections.emptyList();
+
+        CountingPrincipalResolver(Path usersFile) {
+            this.usersFile = usersFile;
+        }
+
+        CountingPrincipalResolver(Path usersFile, Integer groupMapTtl, TimeUnit timeUnit) {
+            super(groupMapTtl, timeUnit);
+            this.usersFile = usersFile;
+        }
+
+        @Override
+        protected Optional<String> getLinuxUsername(int uid) {
+            lookups.incrementAndGet();
+            return uid >= 1000 ? Optional.of("directory-user-" + uid) : Optional.empty();
+        }
+
+        @Override
+        protected List<String> getLinuxGroups(String username) {
+            groupLookups.incrementAndGet();
+            return groups;
+        }
+
+        @Override
+        protected Path getSystemUsersFileName() {
+            return usersFile;
+        }
+    }
+}
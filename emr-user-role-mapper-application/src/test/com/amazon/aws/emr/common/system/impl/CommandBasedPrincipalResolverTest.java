@@ -14,7 +14,12 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import java.io.ByteArrayInputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
@@ -23,6 +28,9 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
@@ -34,6 +42,9 @@ public class CommandBasedPrincipalResolverTest extends PrincipalResolverTestBase
     private static final List<String> USER_SINGLE_GRP_GET_GRPS_CMD = Arrays.asList("id", "-Gn", USER_SINGLE_GRP);
     private static final List<String> USER_MULTI_GRPS_GET_GRPS_CMD = Arrays.asList("id", "-Gn", USER_MULTI_GRPS);
     private static final List<String> GET_USERNAME_CMD = Arrays.asList("id", "-nu", String.valueOf(VALID_UID));
+    private static final List<String> SLOW_GET_GRPS_CMD = Arrays.asList("id", "-Gn", "slowUser");
+    private static final List<String> QUEUED_GET_GRPS_CMD = Arrays.asList("id", "-Gn", "queuedUser");
+    private static final List<String> REJECTED_GET_GRPS_CMD = Arrays.asList("id", "-Gn", "rejectedUser");
 
     @Before
     public void setup() throws Exception {
@@ -56,6 +67,112 @@ public class CommandBasedPrincipalResolverTest extends PrincipalResolverTestBase
         verify(mockProcess).waitFor(anyLong(), any());
     }
 
+    @Test
+    public void concurrentLookups_shareOneCommand() throws Exception {
+        CountDownLatch finish = new CountDownLatch(1);
+        Process slowProcess = mockSlowCommand(SLOW_GET_GRPS_CMD, finish);
+        CommandBasedPrincipalResolver resolver = new CommandBasedPrincipalResolver(1);
+
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<String>> first = callers.submit(() -> resolver.runCommand(SLOW_GET_GRPS_CMD));
+            verify(slowProcess, timeout(1000)).waitFor(anyLong(), any());
+            AtomicReference<Thread> secondCaller = new AtomicReference<>();
+            Future<List<String>> second = callers.submit(() -> {
+                secondCaller.set(Thread.currentThread());
+                return resolver.runCommand(SLOW_GET_GRPS_CMD);
+            });
+
+            // the second caller waits for the command of the first one
+            awaitWaiting(secondCaller);
+            finish.countDown();
+            assertThat(first.get(), is(MULTI_GRPS));
+            assertThat(second.get(), is(MULTI_GRPS));
+            verify(slowProcess, times(1)).waitFor(anyLong(), any());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void fullQueue_failsFastWithoutRunningCommand() throws Exception {
+        CountDownLatch finish = new CountDownLatch(1);
+        Process slowProcess = mockSlowCommand(SLOW_GET_GRPS_CMD, finish);
+        Process queuedProcess = mockSlowCommand(QUEUED_GET_GRPS_CMD, finish);
+        Process rejectedProcess = mockSlowCommand(REJECTED_GET_GRPS_CMD, finish);
+        CommandBasedPrincipalResolver resolver = new CommandBasedPrincipalResolver(1, 1);
+
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<String>> slow = callers.submit(() -> resolver.runCommand(SLOW_GET_GRPS_CMD));
+            verify(slowProcess, timeout(1000)).waitFor(anyLong(), any());
+            AtomicReference<Thread> queuedCaller = new AtomicReference<>();
+            Future<List<String>> queued = callers.submit(() -> {
+                queuedCaller.set(Thread.currentThread());
+                return resolver.runCommand(QUEUED_GET_GRPS_CMD);
+            });
+            awaitWaiting(queuedCaller);
+
+            // the only thread and the only queue slot are taken
+            long startNanos = System.nanoTime();
+            assertThat(resolver.runCommand(REJECTED_GET_GRPS_CMD).isEmpty(), is(true));
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) < 1000, is(true));
+
+            finish.countDown();
+            assertThat(slow.get(), is(MULTI_GRPS));
+            assertThat(queued.get(), is(MULTI_GRPS));
+            verify(queuedProcess, timeout(1000)).waitFor(anyLong(), any());
+            verify(rejectedProcess, never()).waitFor(anyLong(), any());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void commandQueuedPastDeadline_isNotRun() throws Exception {
+        CountDownLatch finish = new CountDownLatch(1);
+        Process slowProcess = mockSlowCommand(SLOW_GET_GRPS_CMD, finish);
+        Process queuedProcess = mockSlowCommand(QUEUED_GET_GRPS_CMD, finish);
+        CommandBasedPrincipalResolver resolver = new CommandBasedPrincipalResolver(1);
+
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<String>> slow = callers.submit(() -> resolver.runCommand(SLOW_GET_GRPS_CMD));
+            verify(slowProcess, timeout(1000)).waitFor(anyLong(), any());
+
+            // the only slot is taken until after the deadline of the queued command
+            assertThat(resolver.runCommand(QUEUED_GET_GRPS_CMD).isEmpty(), is(true));
+            finish.countDown();
+            slow.get();
+            Thread.sleep(100);
+            verify(queuedProcess, never()).waitFor(anyLong(), any());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits until the caller thread is set and blocks waiting for a command.
+     */
+    private static void awaitWaiting(AtomicReference<Thread> caller) throws InterruptedException {
+        while (caller.get() == null || caller.get().getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(5);
+        }
+    }
+
+    private Process mockSlowCommand(List<String> command, CountDownLatch finish) throws Exception {
+        ProcessBuilder mockProcessBuilder = PowerMockito.mock(ProcessBuilder.class);
+        PowerMockito.whenNew(ProcessBuilder.class).withArguments(command).thenReturn(mockProcessBuilder);
+
+        Process subprocess = mock(Process.class);
+        when(mockProcessBuilder.start()).thenReturn(subprocess);
+        when(subprocess.waitFor(anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> finish.await(10,
+                TimeUnit.SECONDS));
+        when(subprocess.getInputStream())
+            .thenReturn(new ByteArrayInputStream(String.join(" ", MULTI_GRPS).getBytes()));
+        return subprocess;
+    }
+
     private void setupGetGrpsMocks() throws Exception {
         ProcessBuilder mockProcessBuilderGetSingleGrp = PowerMockito.mock(ProcessBuilder.class);
         ProcessBuilder mockProcessBuilderGetMultiGrp = PowerMockito.mock(ProcessBuilder.class);
@@ -0,0 +1,119 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class FileBasedPrincipalResolverTest {
+
+    private static final String PASSWD = String.join("\n",
+            "# local users",
+            "root:x:0:0:root:/root:/bin/bash",
+            "u1:x:503:504::/home/u1:/bin/bash",
+            "u2:x:504:505::/home/u2:",
+            "broken:x",
+            "+nisuser::::::",
+            "u1:x:600:600::/home/u1:/bin/bash",
+            "");
+
+    private static final String GROUP = String.join("\n",
+            "root:x:0:",
+            "u1:x:504:",
+            "u2:x:505:",
+            "hadoop:x:1000:u2,u1",
+            "analysts:x:1001:u1",
+            "g-u1:x:504:u2",
+            "");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path passwd;
+    private Path group;
+    private FileBasedPrincipalResolver principalResolver;
+
+    @Before
+    public void setup() throws IOException {
+        passwd = folder.getRoot().toPath().resolve("passwd");
+        group = folder.getRoot().toPath().resolve("group");
+        Files.write(passwd, PASSWD.getBytes(StandardCharsets.UTF_8));
+        Files.write(group, GROUP.getBytes(StandardCharsets.UTF_8));
+        principalResolver = new FileBasedPrincipalResolver(passwd, group);
+    }
+
+    @After
+    public void tearDown() {
+        principalResolver.close();
+    }
+
+    @Test
+    public void username_by_uid() {
+        assertThat(principalResolver.getUsername(0), is(Optional.of("root")));
+        assertThat(principalResolver.getUsername(503), is(Optional.of("u1")));
+        assertThat(principalResolver.getUsername(504), is(Optional.of("u2")));
+        assertThat(principalResolver.getUsername(600), is(Optional.of("u1")));
+        assertThat(principalResolver.getUsername(1234), is(Optional.empty()));
+    }
+
+    @Test
+    public void groups_with_primary_group_first() {
+        assertThat(principalResolver.getGroups("u1"), is(Optional.of(Arrays.asList("u1", "hadoop", "analysts"))));
+        assertThat(principalResolver.getGroups("u2"), is(Optional.of(Arrays.asList("u2", "hadoop", "g-u1"))));
+        assertThat(principalResolver.getGroups("root"), is(Optional.of(Collections.singletonList("root"))));
+    }
+
+    @Test
+    public void unknown_user_has_no_groups() {
+        assertThat(principalResolver.getGroups("nobody"), is(Optional.of(Collections.emptyList())));
+    }
+
+    @Test
+    public void reload_swaps_index() throws IOException {
+        long version = principalResolver.getGroupMembershipVersion();
+        Files.write(group, "u1:x:504:\nhadoop:x:1000:u1\n".getBytes(StandardCharsets.UTF_8));
+        principalResolver.reload();
+        assertThat(principalResolver.getGroups("u2"), is(Optional.of(Collections.emptyList())));
+        assertThat(principalResolver.getGroups("u1"), is(Optional.of(Arrays.asList("u1", "hadoop"))));
+        assertThat(principalResolver.getGroupMembershipVersion(), is(version + 1));
+    }
+
+    @Test
+    public void failed_reload_keeps_index() throws IOException {
+        long version = principalResolver.getGroupMembershipVersion();
+        Files.delete(group);
+        principalResolver.reload();
+        assertThat(principalResolver.getGroups("u1"), is(Optional.of(Arrays.asList("u1", "hadoop", "analysts"))));
+        assertThat(principalResolver.getGroupMembershipVersion(), is(version));
+    }
+
+    @Test(timeout = 30_000)
+    public void replaced_file_reloaded_by_watcher() throws Exception {
+        principalResolver.startWatching();
+        Path replacement = folder.getRoot().toPath().resolve("group+");
+        Files.write(replacement, (GROUP + "ops:x:1002:u1\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(replacement, group, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        while (!principalResolver.getGroups("u1").get().contains("ops")) {
+            Thread.sleep(50);
+        }
+        assertThat(principalResolver.getGroups("u1"),
+                is(Optional.of(Arrays.asList("u1", "hadoop", "analysts", "ops"))));
+    }
+}
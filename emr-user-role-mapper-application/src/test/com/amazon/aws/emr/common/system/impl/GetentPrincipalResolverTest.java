@@ -0,0 +1,146 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.impl;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class GetentPrincipalResolverTest {
+
+    // Answers every lookup with its operation and argument, and stops after a lookup of "exit"
+    private static final List<String> ECHO_HELPER = Arrays.asList("/bin/sh", "-c", String.join("\n",
+            "while read -r op arg; do",
+            "  case \"$arg\" in",
+            "    exit) echo \"ok $op-$arg\"; exit 0 ;;",
+            "    hang) sleep 10 ;;",
+            "    *) echo \"ok $op-$arg\" ;;",
+            "  esac",
+            "done"));
+
+    // Stand in for the NSS lookups of the helper, so that the tests do not depend on the users of the build host
+    private static final String FAKE_GETENT = String.join("\n",
+            "#!/bin/sh",
+            "[ \"$1\" = passwd ] && [ \"$2\" = 1234 ] && echo 'fixture:x:1234:1234::/home/fixture:/bin/sh' && exit 0",
+            "exit 2");
+    private static final String FAKE_ID = String.join("\n",
+            "#!/bin/sh",
+            "[ \"$1\" = -Gn ] && [ \"$2\" = fixture ] && echo 'fixture wheel' && exit 0",
+            "echo \"id: $2: no such user\" >&2",
+            "exit 1");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GetentPrincipalResolver principalResolver;
+
+    @After
+    public void tearDown() {
+        principalResolver.close();
+    }
+
+    @Test
+    public void nssEntries_areResolvedByHelperScript() throws IOException {
+        principalResolver = new GetentPrincipalResolver(fakeNssHelper());
+        assertThat(principalResolver.getLinuxUsername(1234).get(), is("fixture"));
+        assertThat(principalResolver.getLinuxGroups("fixture"), is(Arrays.asList("fixture", "wheel")));
+    }
+
+    @Test
+    public void unknownPrincipals_areNotFound() throws IOException {
+        principalResolver = new GetentPrincipalResolver(fakeNssHelper());
+        assertThat(principalResolver.getLinuxUsername(Integer.MAX_VALUE - 1).isPresent(), is(false));
+        assertThat(principalResolver.getLinuxGroups("no-such-user-for-test").isEmpty(), is(true));
+    }
+
+    @Test
+    public void invalidUsernames_areNotLookedUp() {
+        principalResolver = new GetentPrincipalResolver(ECHO_HELPER);
+        assertThat(principalResolver.getLinuxGroups("-r"), is(Collections.emptyList()));
+        assertThat(principalResolver.getLinuxGroups("user\ngroups root"), is(Collections.emptyList()));
+        assertThat(principalResolver.getLinuxGroups("user"), is(Collections.singletonList("groups-user")));
+    }
+
+    @Test
+    public void concurrentLookups_getTheirOwnAnswers() throws Exception {
+        principalResolver = new GetentPrincipalResolver(ECHO_HELPER);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<String>>> answers = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                String username = "user" + i;
+                answers.add(callers.submit(() -> principalResolver.getLinuxGroups(username)));
+            }
+            for (int i = 0; i < answers.size(); i++) {
+                assertThat(answers.get(i).get(), is(Collections.singletonList("groups-user" + i)));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void stoppedHelper_isRestarted() throws InterruptedException {
+        principalResolver = new GetentPrincipalResolver(ECHO_HELPER);
+        assertThat(principalResolver.getLinuxGroups("exit"), is(Collections.singletonList("groups-exit")));
+        // give the helper time to exit
+        Thread.sleep(500);
+        assertThat(principalResolver.getLinuxGroups("user"), is(Collections.singletonList("groups-user")));
+    }
+
+    @Test(timeout = 10_000)
+    public void lookupQueuedBehindUnansweredLookup_isAnswered() throws Exception {
+        principalResolver = new GetentPrincipalResolver(ECHO_HELPER);
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<String>> hung = callers.submit(() -> principalResolver.getLinuxGroups("hang"));
+            // the helper is busy with the first lookup
+            Thread.sleep(500);
+            assertThat(principalResolver.getLinuxGroups("user"), is(Collections.singletonList("groups-user")));
+            assertThat(hung.get().isEmpty(), is(true));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void unansweredLookup_restartsHelper() {
+        principalResolver = new GetentPrincipalResolver(ECHO_HELPER);
+        assertThat(principalResolver.getLinuxGroups("hang").isEmpty(), is(true));
+        assertThat(principalResolver.getLinuxGroups("user"), is(Collections.singletonList("groups-user")));
+    }
+
+    /**
+     * Runs the real helper script, with fake getent and id first on its path.
+     */
+    private List<String> fakeNssHelper() throws IOException {
+        Path bin = folder.newFolder("bin").toPath();
+        writeExecutable(bin.resolve("getent"), FAKE_GETENT);
+        writeExecutable(bin.resolve("id"), FAKE_ID);
+        return Arrays.asList("/usr/bin/env", "PATH=" + bin + ":" + System.getenv("PATH"),
+                "/bin/sh", "-c", GetentPrincipalResolver.HELPER_SCRIPT);
+    }
+
+    private static void writeExecutable(Path file, String script) throws IOException {
+        Files.write(file, (script + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwx------"));
+    }
+}
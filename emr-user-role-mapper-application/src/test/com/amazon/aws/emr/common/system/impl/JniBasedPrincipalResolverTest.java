@@ -4,12 +4,21 @@
 package com.amazon.aws.emr.common.system.impl;
 
 import org.junit.Before;
+import org.junit.Test;
+import org.mockito.stubbing.Answer;
 
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
 import static org.mockito.Answers.CALLS_REAL_METHODS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.withSettings;
@@ -23,6 +32,50 @@ public class JniBasedPrincipalResolverTest extends PrincipalResolverTestBase {
         setupMocks();
     }
 
+    @Test
+    public void userInManyGroups_growsTheGroupListBuffer() {
+        JniBasedPrincipalResolver jniPrincipalResolver = (JniBasedPrincipalResolver) principalResolver;
+        AtomicInteger calls = new AtomicInteger();
+        doAnswer(groupList(calls, 100)).when(jniPrincipalResolver)
+                .getGroupList(eq(USER_MULTI_GRPS), eq(100), any(int[].class), any(int[].class));
+
+        assertThat(jniPrincipalResolver.getLinuxGroupIds(USER_MULTI_GRPS, 100),
+                is(IntStream.range(100, 200).toArray()));
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void userWhoseGroupsKeepGrowing_hasNoGroupIds() {
+        JniBasedPrincipalResolver jniPrincipalResolver = (JniBasedPrincipalResolver) principalResolver;
+        AtomicInteger calls = new AtomicInteger();
+        doAnswer(invocation -> groupList(calls, 100 * (calls.get() + 1)).answer(invocation))
+                .when(jniPrincipalResolver).getGroupList(eq(USER_MULTI_GRPS), anyInt(), any(int[].class),
+                any(int[].class));
+
+        assertThat(jniPrincipalResolver.getLinuxGroupIds(USER_MULTI_GRPS, 100), is(new int[0]));
+        assertThat(calls.get(), is(3));
+    }
+
+    /**
+     * Answers like getgrouplist for a user in the groups from 100 on.
+     */
+    private static Answer<Integer> groupList(AtomicInteger calls, int numGroups) {
+        return invocation -> {
+            calls.incrementAndGet();
+            int[] groupIds = invocation.getArgument(2);
+            int[] size = invocation.getArgument(3);
+            if (size[0] < numGroups) {
+                size[0] = numGroups;
+                return -1;
+            }
+            for (int i = 0; i < numGroups; i++) {
+                groupIds[i] = 100 + i;
+            }
+            size[0] = numGroups;
+            return numGroups;
+        };
+    }
+
     private void setupMocks() {
         doReturn(Optional.of(VALID_USERNAME)).when(principalResolver).getLinuxUsername(eq(VALID_UID));
         doReturn(SINGLE_GRP).when(principalResolver).getLinuxGroups(eq(USER_SINGLE_GRP));
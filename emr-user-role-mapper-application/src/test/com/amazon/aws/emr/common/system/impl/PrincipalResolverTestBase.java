@@ -6,12 +6,14 @@ package com.amazon.aws.emr.common.system.impl;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -75,6 +77,20 @@ public class PrincipalResolverTestBase {
         // sleep for more than ttl value for cache
         Thread.sleep(TTL_SECS * 1000 + 5);
         assertThat(principalResolver.getGroups(USER_MULTI_GRPS).get(), is(MULTI_GRPS));
-        verify(principalResolver, times(2)).getLinuxGroups(USER_MULTI_GRPS);
+        // the mapping is refreshed in the background
+        verify(principalResolver, timeout(1000).times(2)).getLinuxGroups(USER_MULTI_GRPS);
+    }
+
+    @Test
+    public void failedGroupRefresh_keepsStaleGroups() throws InterruptedException {
+        doReturn(MULTI_GRPS).when(principalResolver).getLinuxGroups(eq(USER_MULTI_GRPS));
+        assertThat(principalResolver.getGroups(USER_MULTI_GRPS).get(), is(MULTI_GRPS));
+
+        // lookups return no groups when they fail
+        doReturn(Collections.emptyList()).when(principalResolver).getLinuxGroups(eq(USER_MULTI_GRPS));
+        Thread.sleep(TTL_SECS * 1000 + 5);
+        assertThat(principalResolver.getGroups(USER_MULTI_GRPS).get(), is(MULTI_GRPS));
+        verify(principalResolver, timeout(1000).times(2)).getLinuxGroups(USER_MULTI_GRPS);
+        assertThat(principalResolver.getGroups(USER_MULTI_GRPS).get(), is(MULTI_GRPS));
     }
 }
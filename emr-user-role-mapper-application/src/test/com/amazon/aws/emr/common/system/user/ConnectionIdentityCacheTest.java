@@ -0,0 +1,91 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConnectionIdentityCacheTest {
+
+    private static final ConnectionIdentityCache.CallerIdentity IMDS_CALLER =
+            new ConnectionIdentityCache.CallerIdentity(503, "U1", true);
+
+    private ConnectionIdentityCache cache;
+    private Connection connection;
+    private EndPoint endPoint;
+    private Request request;
+
+    @Before
+    public void setup() {
+        cache = new ConnectionIdentityCache();
+        connection = mock(Connection.class);
+        endPoint = mock(EndPoint.class);
+        when(connection.getEndPoint()).thenReturn(endPoint);
+        when(endPoint.isOpen()).thenReturn(true);
+        request = requestOn(connection);
+    }
+
+    @Test
+    public void reuse_identity_on_same_connection() {
+        cache.put(request, IMDS_CALLER);
+        assertThat(cache.get(requestOn(connection), true).get(), is(IMDS_CALLER));
+        verify(connection).addListener(cache);
+    }
+
+    @Test
+    public void no_identity_for_other_connection() {
+        cache.put(request, IMDS_CALLER);
+        assertThat(cache.get(requestOn(mock(Connection.class)), true).isPresent(), is(false));
+    }
+
+    @Test
+    public void no_identity_for_other_kind_of_request() {
+        cache.put(request, IMDS_CALLER);
+        assertThat(cache.get(request, false).isPresent(), is(false));
+    }
+
+    @Test
+    public void drop_identity_when_connection_closes() {
+        cache.put(request, IMDS_CALLER);
+        cache.onClosed(connection);
+        assertThat(cache.get(request, true).isPresent(), is(false));
+        assertThat(cache.size(), is(0));
+        verify(connection).removeListener(cache);
+    }
+
+    @Test
+    public void drop_identity_when_connection_closed_before_put() {
+        when(endPoint.isOpen()).thenReturn(false);
+        cache.put(request, IMDS_CALLER);
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void ignore_requests_outside_jetty() {
+        HttpServletRequest other = mock(HttpServletRequest.class);
+        cache.put(other, IMDS_CALLER);
+        assertThat(cache.get(other, true).isPresent(), is(false));
+        assertThat(cache.size(), is(0));
+    }
+
+    private static Request requestOn(Connection connection) {
+        HttpChannel channel = mock(HttpChannel.class);
+        when(channel.getConnection()).thenReturn(connection);
+        Request request = mock(Request.class);
+        when(request.getHttpChannel()).thenReturn(channel);
+        return request;
+    }
+}
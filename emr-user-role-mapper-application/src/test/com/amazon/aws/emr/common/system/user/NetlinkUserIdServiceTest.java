@@ -0,0 +1,172 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import com.amazon.aws.emr.common.Constants;
+import com.sun.security.auth.module.UnixSystem;
+import org.bytedeco.systems.global.linux;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+import java.util.OptionalInt;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class NetlinkUserIdServiceTest {
+
+    private static final int LOCAL_SERVER_PORT = 9901;
+    private static final byte[] LOCALHOST = {127, 0, 0, 1};
+
+    private LinuxUserIdService procUserIdService;
+
+    private NetlinkUserIdService userIdService;
+
+    @Before
+    public void setup() throws URISyntaxException {
+        String tcp = Paths.get(getClass().getResource("/tcp").toURI()).toString();
+        String tcp6 = Paths.get(getClass().getResource("/tcp6").toURI()).toString();
+        procUserIdService = new LinuxUserIdService(tcp, tcp6);
+        userIdService = new NetlinkUserIdService(procUserIdService);
+    }
+
+    @Test
+    public void build_request_for_ipv4_socket() {
+        ByteBuffer request = NetlinkUserIdService.buildRequest(2, LOCALHOST, 42088,
+                new byte[]{(byte) 169, (byte) 254, (byte) 169, (byte) 254}, 80, 7);
+        request.order(ByteOrder.nativeOrder());
+        assertThat(request.getInt(0), is(72));
+        assertThat((int) request.getShort(4), is(Constants.Linux.Netlink.SOCK_DIAG_BY_FAMILY));
+        assertThat(request.getInt(8), is(7));
+        assertThat((int) request.get(16), is(2));
+        assertThat((int) request.get(17), is(Constants.Linux.Netlink.IPPROTO_TCP));
+        assertThat(request.getInt(20), is(1 << Constants.Linux.Proc.TCP_STATE_ESTABLISHED));
+        // Ports and addresses are big endian
+        request.order(ByteOrder.BIG_ENDIAN);
+        assertThat(request.getShort(24) & 0xFFFF, is(42088));
+        assertThat((int) request.getShort(26), is(80));
+        assertThat(request.getInt(28), is(0x7F000001));
+        assertThat(request.getInt(32), is(0));
+        assertThat(request.getInt(44), is(0xA9FEA9FE));
+        assertThat(request.getInt(64), is(Constants.Linux.Netlink.INET_DIAG_NOCOOKIE));
+        assertThat(request.getInt(68), is(Constants.Linux.Netlink.INET_DIAG_NOCOOKIE));
+    }
+
+    @Test
+    public void parse_response_with_established_socket() {
+        ByteBuffer response = ByteBuffer.allocate(88).order(ByteOrder.nativeOrder());
+        response.putInt(0, 88);
+        response.putShort(4, (short) Constants.Linux.Netlink.SOCK_DIAG_BY_FAMILY);
+        response.put(17, (byte) Constants.Linux.Proc.TCP_STATE_ESTABLISHED);
+        response.putInt(80, 509);
+        assertThat(NetlinkUserIdService.parseResponse(response).getAsInt(), is(509));
+    }
+
+    @Test
+    public void parse_response_with_no_such_socket() {
+        ByteBuffer response = ByteBuffer.allocate(36).order(ByteOrder.nativeOrder());
+        response.putInt(0, 36);
+        response.putShort(4, (short) Constants.Linux.Netlink.NLMSG_ERROR);
+        response.putInt(16, -2);
+        assertThat(NetlinkUserIdService.parseResponse(response).isPresent(), is(false));
+    }
+
+    @Test(expected = NetlinkUserIdService.NetlinkException.class)
+    public void parse_response_with_error() {
+        ByteBuffer response = ByteBuffer.allocate(36).order(ByteOrder.nativeOrder());
+        response.putInt(0, 36);
+        response.putShort(4, (short) Constants.Linux.Netlink.NLMSG_ERROR);
+        response.putInt(16, -22);
+        NetlinkUserIdService.parseResponse(response);
+    }
+
+    @Test
+    public void resolveUID_live_socket() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByAddress(LOCALHOST));
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            OptionalInt uid;
+            try {
+                uid = userIdService.querySocketOwner(LOCALHOST, client.getLocalPort(),
+                        LOCALHOST, server.getLocalPort());
+            } catch (LinkageError | NetlinkUserIdService.NetlinkException e) {
+                Assume.assumeNoException("Netlink is not usable on this host", e);
+                return;
+            }
+            assertThat(uid.getAsInt(), is((int) new UnixSystem().getUid()));
+        }
+    }
+
+    @Test
+    public void resolveUID_falls_back_to_proc() {
+        // The sockets in the test data do not exist on this host, so they can only be found by scanning /proc
+        OptionalInt uid = userIdService.resolveSystemUID(
+                "127.0.0.1",
+                LOCAL_SERVER_PORT,
+                "172.30.6.181",
+                39844, true);
+        assertThat(uid.getAsInt(), is(509));
+    }
+
+    @Test
+    public void resolveUID_transient_netlink_error_falls_back_for_that_lookup_only() {
+        FailingOnceNetlinkUserIdService failingOnce = new FailingOnceNetlinkUserIdService(linux.EMFILE);
+
+        assertThat(failingOnce.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181", 39844, true)
+                .getAsInt(), is(509));
+        assertThat(failingOnce.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181", 39844, true)
+                .getAsInt(), is(42));
+        assertThat(failingOnce.queries, is(2));
+    }
+
+    @Test
+    public void resolveUID_unsupported_netlink_falls_back_for_good() {
+        FailingOnceNetlinkUserIdService failingOnce = new FailingOnceNetlinkUserIdService(linux.EPROTONOSUPPORT);
+
+        assertThat(failingOnce.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181", 39844, true)
+                .getAsInt(), is(509));
+        assertThat(failingOnce.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181", 39844, true)
+                .getAsInt(), is(509));
+        assertThat(failingOnce.queries, is(1));
+    }
+
+    @Test
+    public void resolveUID_non_localhost() {
+        OptionalInt uid = userIdService.resolveSystemUID(
+                "172.30.6.181",
+                LOCAL_SERVER_PORT,
+                "172.30.6.181",
+                39844, true);
+        assertThat(uid.isPresent(), is(false));
+    }
+
+    /**
+     * Fails its first query with the given errno, and finds uid 42 afterwards.
+     */
+    private class FailingOnceNetlinkUserIdService extends NetlinkUserIdService {
+        private final int errno;
+        private int queries;
+
+        FailingOnceNetlinkUserIdService(int errno) {
+            super(procUserIdService);
+            this.errno = errno;
+        }
+
+        @Override
+        OptionalInt querySocketOwner(byte[] src, int sport, byte[] dst, int dport) {
+            if (queries++ == 0) {
+                throw new NetlinkException("Netlink query failed", errno);
+            }
+            return OptionalInt.of(42);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import com.amazon.aws.emr.common.Constants;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates synthetic /proc/net/tcp(6) files in the format printed by the kernel.
+ *
+ * <p>
+ * Random sockets use local ports below {@link #MIN_CALLER_PORT}, so that callers added with
+ * {@link #addImdsSocket(int, int)} or {@link #addServerSocket(int, int)} on higher ports are the only match.
+ */
+public class ProcNetTcpFileGenerator {
+
+    public static final int MIN_CALLER_PORT = 40000;
+
+    private static final String IPV4_HEADER = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when "
+            + "retrnsmt   uid  timeout inode\n";
+    private static final String IPV6_HEADER = "  sl  local_address                         remote_address"
+            + "                        st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+    private static final String IPV4_CALLER_ADDR = "B5061EAC";
+    private static final String IPV6_CALLER_ADDR = "0000000000000000FFFF0000B5061EAC";
+
+    private final boolean ipV6;
+    private final Random random;
+    private final StringBuilder rows = new StringBuilder();
+    private int count;
+
+    public ProcNetTcpFileGenerator(boolean ipV6, long seed) {
+        this.ipV6 = ipV6;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Adds sockets between random local and remote endpoints, in random states.
+     */
+    public ProcNetTcpFileGenerator addRandomSockets(int sockets) {
+        for (int i = 0; i < sockets; i++) {
+            String local = randomAddress();
+            String remote = randomAddress();
+            int state = random.nextInt(4) == 0 ? 0x0A : Constants.Linux.Proc.TCP_STATE_ESTABLISHED;
+            addRow(local, 1024 + random.nextInt(MIN_CALLER_PORT - 1024), remote, random.nextInt(65536),
+                    state, random.nextInt(2000));
+        }
+        return this;
+    }
+
+    /**
+     * Adds an established socket from a caller to IMDS.
+     */
+    public ProcNetTcpFileGenerator addImdsSocket(int localPort, int uid) {
+        String imds = ipV6 ? Constants.Network.IPV6_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER
+                : Constants.Network.IPV4_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER;
+        addRow(callerAddress(), localPort, imds, 80, Constants.Linux.Proc.TCP_STATE_ESTABLISHED, uid);
+        return this;
+    }
+
+    /**
+     * Adds an established socket from a caller to this server over loopback.
+     */
+    public ProcNetTcpFileGenerator addServerSocket(int localPort, int uid) {
+        String localhost = ipV6 ? Constants.Network.IPV4_MAPPED_IPV6_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER
+                : Constants.Network.IPV4_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER;
+        addRow(localhost, localPort, localhost, Constants.JETTY_PORT, Constants.Linux.Proc.TCP_STATE_ESTABLISHED,
+                uid);
+        return this;
+    }
+
+    public Path write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write(ipV6 ? IPV6_HEADER : IPV4_HEADER);
+            writer.write(rows.toString());
+        }
+        return file;
+    }
+
+    private String callerAddress() {
+        return ipV6 ? IPV6_CALLER_ADDR : IPV4_CALLER_ADDR;
+    }
+
+    private String randomAddress() {
+        if (!ipV6) {
+            return String.format("%08X", random.nextInt());
+        }
+        return String.format("%08X%08X%08X%08X", random.nextInt(), random.nextInt(), random.nextInt(),
+                random.nextInt());
+    }
+
+    private void addRow(String local, int localPort, String remote, int remotePort, int state, int uid) {
+        rows.append(String.format("%4d: %s:%04X %s:%04X %02X %08X:%08X %02X:%08X %08X %5d %8d %d 1 %016x"
+                        + " 20 4 30 10 -1\n",
+                count++, local, localPort, remote, remotePort, state, 0, 0, 0, 0, 0, uid, 0,
+                100000000 + count, random.nextLong()));
+    }
+}
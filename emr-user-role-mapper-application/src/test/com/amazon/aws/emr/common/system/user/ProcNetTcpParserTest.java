@@ -0,0 +1,112 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalInt;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class ProcNetTcpParserTest {
+
+    private static final int LOCAL_SERVER_PORT = 9901;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parse_all_rows_across_chunks() throws IOException {
+        // Large enough for rows to straddle the read buffer many times
+        Path tcp = new ProcNetTcpFileGenerator(false, 1).addRandomSockets(20000).write(folder.newFile().toPath());
+        Path tcp6 = new ProcNetTcpFileGenerator(true, 1).addRandomSockets(20000).write(folder.newFile().toPath());
+        AtomicInteger rows = new AtomicInteger();
+        ProcNetTcpParser.parse(tcp.toString(), ProcNetTcpParser.ANY_PORT, row -> {
+            rows.incrementAndGet();
+            return false;
+        });
+        ProcNetTcpParser.parse(tcp6.toString(), ProcNetTcpParser.ANY_PORT, row -> {
+            rows.incrementAndGet();
+            return false;
+        });
+        assertThat(rows.get(), is(40000));
+    }
+
+    @Test
+    public void parse_row_fields() throws IOException {
+        Path tcp = write("  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid\n"
+                + "  65: B5061EAC:9BA2 FEA9FEA9:0050 01 00000000:00000000 00:00000000 00000000   506        0 "
+                + "113372115 1 ffff88812489a800 20 4 28 10 -1");
+        ProcNetTcpParser.Row row = ProcNetTcpParser.parse(tcp.toString(), 0x9BA2, r -> true);
+        assertThat(row.localPort, is(0x9BA2));
+        assertThat(row.isRemoteAddress(new int[]{0xFEA9FEA9}), is(true));
+        assertThat(row.remotePort, is(80));
+        assertThat(row.state, is(1));
+        assertThat(row.uid, is(506));
+    }
+
+    @Test
+    public void skip_rows_for_other_ports() throws IOException {
+        Path tcp = write("  65: B5061EAC:9BA2 FEA9FEA9:0050 01 00000000:00000000 00:00000000 00000000   506\n");
+        assertThat(ProcNetTcpParser.parse(tcp.toString(), 0x9BA3, r -> true), is(nullValue()));
+    }
+
+    @Test
+    public void skip_malformed_rows() throws IOException {
+        Path tcp = write("  65: B5061EAC:9BXX FEA9FEA9:0050 01 00000000:00000000 00:00000000 00000000   506\n"
+                + "  66: B5061EAC:9BA2 FEA9FE:0050 01 00000000:00000000 00:00000000 00000000   507\n"
+                + "  67: B5061EAC:9BA2 fea9fea9:0050 01 00000000:00000000 00:00000000 00000000   508\n");
+        ProcNetTcpParser.Row row = ProcNetTcpParser.parse(tcp.toString(), ProcNetTcpParser.ANY_PORT, r -> true);
+        assertThat(row.uid, is(508));
+    }
+
+    @Test
+    public void same_results_as_regex_scanner() throws IOException {
+        int callers = 200;
+        ProcNetTcpFileGenerator tcpGenerator = new ProcNetTcpFileGenerator(false, 2).addRandomSockets(5000);
+        ProcNetTcpFileGenerator tcp6Generator = new ProcNetTcpFileGenerator(true, 2).addRandomSockets(5000);
+        for (int i = 0; i < callers; i++) {
+            int port = ProcNetTcpFileGenerator.MIN_CALLER_PORT + i;
+            ProcNetTcpFileGenerator generator = i % 2 == 0 ? tcpGenerator : tcp6Generator;
+            if (i % 3 == 0) {
+                generator.addServerSocket(port, 1000 + i);
+            } else {
+                generator.addImdsSocket(port, 1000 + i);
+            }
+        }
+        String tcp = tcpGenerator.write(folder.newFile().toPath()).toString();
+        String tcp6 = tcp6Generator.write(folder.newFile().toPath()).toString();
+        UserIdService parser = new LinuxUserIdService(tcp, tcp6);
+        UserIdService regex = new RegexLinuxUserIdService(tcp, tcp6);
+
+        int found = 0;
+        for (int port = ProcNetTcpFileGenerator.MIN_CALLER_PORT - 10;
+             port < ProcNetTcpFileGenerator.MIN_CALLER_PORT + callers + 10; port++) {
+            for (boolean isNativeIMDSApi : new boolean[]{true, false}) {
+                OptionalInt expected = regex.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181",
+                        port, isNativeIMDSApi);
+                OptionalInt actual = parser.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181",
+                        port, isNativeIMDSApi);
+                assertThat(actual, is(expected));
+                found += actual.isPresent() ? 1 : 0;
+            }
+        }
+        assertThat(found, is(callers));
+    }
+
+    private Path write(String contents) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, contents.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ProcNetTcpSnapshotServiceTest {
+
+    private static final int LOCAL_SERVER_PORT = 9901;
+    private static final int CALLER_PORT = ProcNetTcpFileGenerator.MIN_CALLER_PORT;
+    private static final long LONG_WINDOW_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path tcp;
+    private Path tcp6;
+
+    @Before
+    public void setup() throws IOException {
+        tcp = folder.newFile("tcp").toPath();
+        tcp6 = folder.newFile("tcp6").toPath();
+    }
+
+    @Test
+    public void same_results_as_scanner() throws IOException {
+        ProcNetTcpFileGenerator tcpGenerator = new ProcNetTcpFileGenerator(false, 1).addRandomSockets(2000);
+        ProcNetTcpFileGenerator tcp6Generator = new ProcNetTcpFileGenerator(true, 1).addRandomSockets(2000);
+        for (int i = 0; i < 300; i++) {
+            ProcNetTcpFileGenerator generator = i % 2 == 0 ? tcpGenerator : tcp6Generator;
+            if (i % 3 == 0) {
+                generator.addServerSocket(CALLER_PORT + i, 1000 + i);
+            } else {
+                generator.addImdsSocket(CALLER_PORT + i, 1000 + i);
+            }
+        }
+        // Same port in both files, the first file wins
+        tcpGenerator.addImdsSocket(CALLER_PORT + 1000, 7);
+        tcp6Generator.addImdsSocket(CALLER_PORT + 1000, 8);
+        tcpGenerator.write(tcp);
+        tcp6Generator.write(tcp6);
+
+        UserIdService scanner = new LinuxUserIdService(tcp.toString(), tcp6.toString());
+        UserIdService snapshot = new ProcNetTcpSnapshotService(tcp.toString(), tcp6.toString(), LONG_WINDOW_MS);
+        for (int port = CALLER_PORT - 10; port <= CALLER_PORT + 1000; port++) {
+            for (boolean isNativeIMDSApi : new boolean[]{true, false}) {
+                assertThat(snapshot.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181", port,
+                        isNativeIMDSApi),
+                        is(scanner.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181", port,
+                                isNativeIMDSApi)));
+            }
+        }
+        assertThat(resolve(snapshot, CALLER_PORT + 1000).getAsInt(), is(7));
+    }
+
+    @Test
+    public void concurrent_requests_share_snapshot() throws Exception {
+        int callers = 64;
+        ProcNetTcpFileGenerator generator = new ProcNetTcpFileGenerator(false, 2).addRandomSockets(20000);
+        for (int i = 0; i < callers; i++) {
+            generator.addImdsSocket(CALLER_PORT + i, 1000 + i);
+        }
+        generator.write(tcp);
+        ProcNetTcpSnapshotService snapshot = new ProcNetTcpSnapshotService(tcp.toString(), tcp6.toString(),
+                LONG_WINDOW_MS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<OptionalInt>> uids = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                int port = CALLER_PORT + i;
+                uids.add(executor.submit(() -> {
+                    start.await();
+                    return resolve(snapshot, port);
+                }));
+            }
+            start.countDown();
+            for (int i = 0; i < callers; i++) {
+                assertThat(uids.get(i).get().getAsInt(), is(1000 + i));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(snapshot.getSnapshotCount(), is(1L));
+    }
+
+    @Test
+    public void miss_takes_fresh_snapshot() throws IOException {
+        ProcNetTcpSnapshotService snapshot = new ProcNetTcpSnapshotService(tcp.toString(), tcp6.toString(),
+                LONG_WINDOW_MS);
+        new ProcNetTcpFileGenerator(false, 3).addImdsSocket(CALLER_PORT, 1000).write(tcp);
+        assertThat(resolve(snapshot, CALLER_PORT).getAsInt(), is(1000));
+        assertThat(resolve(snapshot, CALLER_PORT).getAsInt(), is(1000));
+        assertThat(snapshot.getSnapshotCount(), is(1L));
+
+        // A connection opened after the snapshot
+        new ProcNetTcpFileGenerator(false, 3).addImdsSocket(CALLER_PORT, 1000).addImdsSocket(CALLER_PORT + 1, 1001)
+                .write(tcp);
+        assertThat(resolve(snapshot, CALLER_PORT + 1).getAsInt(), is(1001));
+        assertThat(snapshot.getSnapshotCount(), is(2L));
+
+        assertThat(resolve(snapshot, CALLER_PORT + 2).isPresent(), is(false));
+        assertThat(snapshot.getSnapshotCount(), is(3L));
+    }
+
+    @Test
+    public void missing_files() {
+        UserIdService snapshot = new ProcNetTcpSnapshotService(tcp + ".missing", tcp6 + ".missing",
+                LONG_WINDOW_MS);
+        assertThat(resolve(snapshot, CALLER_PORT).isPresent(), is(false));
+    }
+
+    @Test
+    public void non_localhost() throws IOException {
+        new ProcNetTcpFileGenerator(false, 4).addImdsSocket(CALLER_PORT, 1000).write(tcp);
+        UserIdService snapshot = new ProcNetTcpSnapshotService(tcp.toString(), tcp6.toString(), LONG_WINDOW_MS);
+        assertThat(snapshot.resolveSystemUID("172.30.6.181", LOCAL_SERVER_PORT, "172.30.6.181", CALLER_PORT,
+                true).isPresent(), is(false));
+    }
+
+    @Test
+    public void index_chains_rows_with_same_port() {
+        ProcNetTcpSnapshotService.SocketIndex.Builder builder = new ProcNetTcpSnapshotService.SocketIndex.Builder();
+        for (int port = 0; port < 1000; port++) {
+            builder.add(port, port, (byte) 1);
+        }
+        builder.add(5, 42, (byte) 2);
+        ProcNetTcpSnapshotService.SocketIndex index = builder.build();
+        assertThat(index.size(), is(1001));
+        assertThat(index.lookup(5, (byte) 1).getAsInt(), is(5));
+        assertThat(index.lookup(5, (byte) 2).getAsInt(), is(42));
+        assertThat(index.lookup(999, (byte) 1).getAsInt(), is(999));
+        assertThat(index.lookup(1000, (byte) 1).isPresent(), is(false));
+        assertThat(ProcNetTcpSnapshotService.SocketIndex.EMPTY.lookup(5, (byte) 1).isPresent(), is(false));
+    }
+
+    private static OptionalInt resolve(UserIdService userIdService, int port) {
+        return userIdService.resolveSystemUID("127.0.0.1", LOCAL_SERVER_PORT, "172.30.6.181", port, true);
+    }
+}
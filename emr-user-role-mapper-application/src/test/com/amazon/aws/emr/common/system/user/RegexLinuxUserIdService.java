@@ -0,0 +1,141 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import com.amazon.aws.emr.common.Constants;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.OptionalInt;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The regex based /proc/net/tpc(6) scanner that {@link LinuxUserIdService} used before {@link ProcNetTcpParser}.
+ * Kept to check the parser against, and to compare the two.
+ */
+@Slf4j
+public class RegexLinuxUserIdService implements UserIdService {
+
+    public static final int TCP_ESTABLISHED = 1;
+    /**
+     * Details on /proc/net/tpc(6) format: http://lkml.iu.edu/hypermail/linux/kernel/0409.1/2166.html
+     */
+    private static Pattern pattern = Pattern.compile("\\s*\\d+: ([0-9A-Fa-f]+):([0-9A-Fa-f]+) ([0-9A-Fa-f]+):([0-9A-Fa-f]+) ([0-9A-Fa-f]{2}) [0-9A-Fa-f]+:[0-9A-Fa-f]+ [0-9A-Fa-f]+:[0-9A-Fa-f]+ [0-9A-Fa-f]+\\s+([0-9]+).+");
+
+    private final String ipV4Path;
+    private final String ipV6Path;
+
+    public RegexLinuxUserIdService(String ipV4Path, String ipV6Path) {
+        this.ipV4Path = ipV4Path;
+        this.ipV6Path = ipV6Path;
+    }
+
+    /**
+     * Resolve linux user id via linux /proc/net/tcp(6)
+     *
+     * For intercepted IMDS call, a validation is performed to ensure that the target is indeed IMDS,
+     *  and the call is made locally.
+     *
+     * For non-IMDS call, only ensure that the call is made locally
+     *
+     * @param localAddr
+     * @param localPort
+     * @param remoteAddr
+     * @param remotePort
+     * @param isNativeIMDSApi
+     * @return
+     */
+    public OptionalInt resolveSystemUID(String localAddr, int localPort,
+                                        String remoteAddr, int remotePort,
+                                        boolean isNativeIMDSApi) {
+
+        if (!LinuxUserIdService.isLocalhost(localAddr)) {
+            log.debug("Local address is not localhost on the HTTP socket!");
+            return OptionalInt.empty();
+        }
+
+        OptionalInt uid;
+        try (BufferedReader br = new BufferedReader(new FileReader(ipV4Path))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                uid = getUID(line, localPort, remotePort, remoteAddr, isNativeIMDSApi);
+                if (uid.isPresent()) {
+                    return uid;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Exception reading {} file. ", ipV4Path, e);
+            // May be this succeeds with TCP6 socket!
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(ipV6Path))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                uid = getUID(line, localPort, remotePort, remoteAddr, isNativeIMDSApi);
+                if (uid.isPresent()) {
+                    return uid;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Exception reading {} file. ", ipV6Path, e);
+            // TODO: re-throw this
+        }
+
+        return OptionalInt.empty();
+    }
+
+    private OptionalInt getUID(String line, int reqLocalPort,
+                               int reqRemotePort, String procRemoteAddress,
+                               boolean isNativeIMDSApi) {
+        return getUID(
+                line,
+                procRemoteAddress,
+                reqLocalPort, reqRemotePort, isNativeIMDSApi);
+    }
+
+    private OptionalInt getUID(String line, String remoteAddr,
+                               int reqLocalPort, int reqRemotePort,
+                               boolean isNativeIMDSApi) {
+        Matcher matcher = pattern.matcher(line);
+        if (!matcher.matches()) {
+            return OptionalInt.empty();
+        }
+
+        int groupCount = matcher.groupCount();
+        if (groupCount <= 5) {
+            return OptionalInt.empty();
+        }
+
+        long procLocalPort = Long.parseLong(matcher.group(2), 16);
+        String procRemoteAddress = matcher.group(3);
+        long procRemotePort = Long.parseLong(matcher.group(4), 16);
+        long state = Long.parseLong(matcher.group(5), 16);
+        int uid = Integer.parseInt(matcher.group(6));
+
+        if (isNativeIMDSApi) {
+            if ((procRemoteAddress.equals(Constants.Network.IPV4_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER) ||
+                    procRemoteAddress.equals(Constants.Network.IPV6_IMDS_ADDR_IN_HEX_REVERSED_BYTE_ORDER))
+                    && procLocalPort == reqRemotePort
+                    && procRemotePort == 80
+                    && state == TCP_ESTABLISHED
+            ) {
+                return OptionalInt.of(uid);
+            }
+        } else {
+            // Socket established directly from caller process to the server for below use cases:
+            // 1/ impersonation request from EMR-FS
+            if ((procLocalPort == reqRemotePort && procRemotePort == Constants.JETTY_PORT)
+                    && (procRemoteAddress.equals(Constants.Network.IPV4_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER)
+                    || procRemoteAddress.equals(Constants.Network.IPV6_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER)
+                    || procRemoteAddress.equals(Constants.Network.IPV4_MAPPED_IPV6_LOCALHOST_ADDR_IN_HEX_REVERSED_BYTE_ORDER))) {
+                return OptionalInt.of(uid);
+            }
+        }
+
+        return OptionalInt.empty();
+    }
+}
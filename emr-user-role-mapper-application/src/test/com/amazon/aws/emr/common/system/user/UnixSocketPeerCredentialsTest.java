@@ -0,0 +1,84 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import com.sun.security.auth.module.UnixSystem;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.unixsocket.UnixSocketConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.OptionalInt;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.StringEndsWith.endsWith;
+import static org.mockito.Mockito.mock;
+
+public class UnixSocketPeerCredentialsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Server server;
+    private File unixSocket;
+
+    @Before
+    public void setup() throws Exception {
+        unixSocket = new File(folder.getRoot(), "urm.sock");
+        server = new Server();
+        UnixSocketConnector connector = new UnixSocketConnector(server);
+        connector.setUnixSocket(unixSocket.getAbsolutePath());
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                OptionalInt uid = UnixSocketPeerCredentials.getPeerUid(request);
+                response.getWriter().print(uid.isPresent() ? String.valueOf(uid.getAsInt()) : "none");
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void peer_uid_over_unix_socket() throws IOException {
+        try (UnixSocketChannel channel = UnixSocketChannel.open(new UnixSocketAddress(unixSocket))) {
+            channel.write(ByteBuffer.wrap("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            while (channel.read(buffer) > 0) {
+                response.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            assertThat(new String(response.toByteArray(), StandardCharsets.US_ASCII),
+                    endsWith("\r\n\r\n" + new UnixSystem().getUid()));
+        }
+    }
+
+    @Test
+    public void no_peer_uid_outside_jetty() {
+        assertThat(UnixSocketPeerCredentials.getPeerUid(mock(HttpServletRequest.class)).isPresent(), is(false));
+    }
+}
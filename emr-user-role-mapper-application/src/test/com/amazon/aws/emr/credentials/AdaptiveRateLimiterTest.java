@@ -0,0 +1,73 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveRateLimiterTest {
+
+  private final AtomicLong nanoTime = new AtomicLong();
+
+  private AdaptiveRateLimiter rateLimiter;
+
+  @Before
+  public void setup() {
+    rateLimiter = new AdaptiveRateLimiter(4, nanoTime::get);
+  }
+
+  @Test
+  public void calls_limited_to_rate() {
+    assertThat(acquired(10), is(4));
+    advanceMillis(500);
+    assertThat(acquired(10), is(2));
+    // Does not save up more than a second of calls
+    advanceMillis(10_000);
+    assertThat(acquired(10), is(4));
+  }
+
+  @Test
+  public void throttling_halves_rate() {
+    rateLimiter.onThrottled();
+    assertThat(rateLimiter.getCallsPerSecond(), is(2.0));
+    assertThat(acquired(10), is(2));
+    advanceMillis(1000);
+    assertThat(acquired(10), is(2));
+
+    rateLimiter.onThrottled();
+    rateLimiter.onThrottled();
+    assertThat(rateLimiter.getCallsPerSecond(), is(1.0));
+  }
+
+  @Test
+  public void rate_recovers_gradually() {
+    rateLimiter.onThrottled();
+    rateLimiter.onThrottled();
+    rateLimiter.onSuccess();
+    assertThat(rateLimiter.getCallsPerSecond(), is(2.0));
+    rateLimiter.onSuccess();
+    rateLimiter.onSuccess();
+    rateLimiter.onSuccess();
+    assertThat(rateLimiter.getCallsPerSecond(), is(4.0));
+  }
+
+  private int acquired(int attempts) {
+    int acquired = 0;
+    for (int i = 0; i < attempts; i++) {
+      if (rateLimiter.tryAcquire()) {
+        acquired++;
+      }
+    }
+    return acquired;
+  }
+
+  private void advanceMillis(long millis) {
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+}
@@ -0,0 +1,179 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazon.aws.emr.ApplicationConfiguration;
+import com.amazon.aws.emr.common.Constants;
+import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazon.aws.emr.mapping.MappingInvoker;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class CredentialsPrewarmerTest {
+
+  private static final String ROLE_ARN = "arn:aws:iam::123456789012:role/test-role";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Mock
+  ApplicationConfiguration applicationConfiguration;
+
+  @Mock
+  MappingInvoker mappingInvoker;
+
+  @Mock
+  PrincipalResolver principalResolver;
+
+  @Mock
+  MetadataCredentialsProvider metadataCredentialsProvider;
+
+  @InjectMocks
+  CredentialsPrewarmer credentialsPrewarmer;
+
+  Path hotPrincipals;
+
+  @Before
+  public void setup() {
+    hotPrincipals = folder.getRoot().toPath().resolve("hot-principals");
+    when(applicationConfiguration.getProperty(Constants.PREWARM_FILE, (String) null))
+        .thenReturn(hotPrincipals.toString());
+    when(mappingInvoker.whenMappingLoaded()).thenReturn(CompletableFuture.completedFuture(null));
+    when(mappingInvoker.map(anyInt(), anyString()))
+        .thenAnswer(invocation -> Optional.of(new AssumeRoleRequest()
+            .withRoleArn(ROLE_ARN)
+            .withRoleSessionName(invocation.getArgument(1))));
+    when(mappingInvoker.map(anyString()))
+        .thenAnswer(invocation -> Optional.of(new AssumeRoleRequest()
+            .withRoleArn(ROLE_ARN)
+            .withRoleSessionName(invocation.getArgument(0))));
+    when(metadataCredentialsProvider.getUserCredentialsResponseAsync(any()))
+        .thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+  }
+
+  @After
+  public void tearDown() {
+    credentialsPrewarmer.close();
+  }
+
+  @Test
+  public void prewarms_recent_callers_only() throws IOException {
+    long now = System.currentTimeMillis();
+    writeLines("# uid\tusername\trole\tlast-seen-millis",
+        "1001\tactive\t" + ROLE_ARN + "\t" + (now - TimeUnit.MINUTES.toMillis(5)),
+        "1002\tidle\t" + ROLE_ARN + "\t" + (now - TimeUnit.HOURS.toMillis(2)),
+        "1003\tbroken",
+        "not-a-uid\tbroken\t" + ROLE_ARN + "\t" + now);
+    when(principalResolver.getUsername(1001)).thenReturn(Optional.of("active"));
+    when(principalResolver.getUsername(1002)).thenReturn(Optional.of("idle"));
+
+    credentialsPrewarmer.init();
+
+    verify(metadataCredentialsProvider, timeout(5000)).getUserCredentialsResponseAsync(
+        new AssumeRoleRequest().withRoleArn(ROLE_ARN).withRoleSessionName("active"));
+    verify(mappingInvoker, never()).map(1002, "idle");
+  }
+
+  @Test
+  public void skips_uid_now_used_by_someone_else() throws Exception {
+    writeLines("1001\tformer\t" + ROLE_ARN + "\t" + System.currentTimeMillis());
+    when(principalResolver.getUsername(1001)).thenReturn(Optional.of("current"));
+
+    credentialsPrewarmer.init();
+
+    verify(principalResolver, timeout(5000)).getUsername(1001);
+    credentialsPrewarmer.close();
+    verify(mappingInvoker, never()).map(anyInt(), anyString());
+    verify(metadataCredentialsProvider, never()).getUserCredentialsResponseAsync(any());
+  }
+
+  @Test
+  public void recorded_callers_are_written_to_file() throws IOException {
+    long now = System.currentTimeMillis();
+    writeLines("1002\tidle\t" + ROLE_ARN + "\t" + (now - TimeUnit.HOURS.toMillis(2)));
+    credentialsPrewarmer.init();
+
+    credentialsPrewarmer.record(1001, "active", ROLE_ARN);
+    credentialsPrewarmer.write(now);
+
+    String written = new String(Files.readAllBytes(hotPrincipals), StandardCharsets.UTF_8);
+    assertThat(written, containsString("1001\tactive\t" + ROLE_ARN + "\t"));
+    assertThat(written, not(containsString("idle")));
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(hotPrincipals)), is("rw-------"));
+  }
+
+  @Test
+  public void prewarms_impersonated_users_by_name() throws IOException {
+    writeLines("-\timpersonated\t" + ROLE_ARN + "\t" + System.currentTimeMillis());
+
+    credentialsPrewarmer.init();
+
+    verify(metadataCredentialsProvider, timeout(5000)).getUserCredentialsResponseAsync(
+        new AssumeRoleRequest().withRoleArn(ROLE_ARN).withRoleSessionName("impersonated"));
+    verify(principalResolver, never()).getUsername(anyInt());
+    verify(mappingInvoker, never()).map(anyInt(), anyString());
+  }
+
+  @Test
+  public void users_are_recorded_once_per_role() throws IOException {
+    credentialsPrewarmer.init();
+
+    credentialsPrewarmer.recordImpersonated("impersonated", ROLE_ARN);
+    credentialsPrewarmer.recordImpersonated("impersonated", ROLE_ARN + "-other");
+    credentialsPrewarmer.record(1001, "active", ROLE_ARN);
+    // The uid is kept when the same user is also impersonated
+    credentialsPrewarmer.recordImpersonated("active", ROLE_ARN);
+    credentialsPrewarmer.write(System.currentTimeMillis());
+
+    String written = new String(Files.readAllBytes(hotPrincipals), StandardCharsets.UTF_8);
+    assertThat(written, containsString("-\timpersonated\t" + ROLE_ARN + "\t"));
+    assertThat(written, containsString("-\timpersonated\t" + ROLE_ARN + "-other\t"));
+    assertThat(written, containsString("1001\tactive\t" + ROLE_ARN + "\t"));
+    assertThat(written, not(containsString("-\tactive")));
+  }
+
+  @Test
+  public void does_nothing_when_not_configured() throws IOException {
+    when(applicationConfiguration.getProperty(Constants.PREWARM_FILE, (String) null)).thenReturn(null);
+    credentialsPrewarmer.init();
+
+    credentialsPrewarmer.record(1001, "active", ROLE_ARN);
+    credentialsPrewarmer.write(System.currentTimeMillis());
+
+    assertThat(Files.exists(hotPrincipals), is(false));
+  }
+
+  private void writeLines(String... lines) throws IOException {
+    Files.write(hotPrincipals, String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers AssumeRole calls on a local port, with credentials whose access key is the name of the server, after a
+ * delay that can be changed while it runs.
+ */
+class FakeStsServer implements AutoCloseable {
+
+  private static final String RESPONSE = String.join("\n",
+      "<AssumeRoleResponse xmlns=\"https://sts.amazonaws.com/doc/2011-06-15/\">",
+      "  <AssumeRoleResult>",
+      "    <Credentials>",
+      "      <AccessKeyId>%s</AccessKeyId>",
+      "      <SecretAccessKey>secret</SecretAccessKey>",
+      "      <SessionToken>token</SessionToken>",
+      "      <Expiration>2100-01-01T00:00:00Z</Expiration>",
+      "    </Credentials>",
+      "    <AssumedRoleUser>",
+      "      <Arn>arn:aws:sts::123456789012:assumed-role/test-role/test-session</Arn>",
+      "      <AssumedRoleId>AROATEST:test-session</AssumedRoleId>",
+      "    </AssumedRoleUser>",
+      "  </AssumeRoleResult>",
+      "  <ResponseMetadata>",
+      "    <RequestId>00000000-0000-0000-0000-000000000000</RequestId>",
+      "  </ResponseMetadata>",
+      "</AssumeRoleResponse>");
+
+  private final String name;
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicLong delayMs = new AtomicLong();
+  private final AtomicInteger calls = new AtomicInteger();
+
+  FakeStsServer(String name) throws IOException {
+    this.name = name;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  EndpointConfiguration getEndpoint() {
+    return new EndpointConfiguration("http://localhost:" + server.getAddress().getPort(), "us-west-2");
+  }
+
+  void setDelayMs(long delayMs) {
+    this.delayMs.set(delayMs);
+  }
+
+  int getCalls() {
+    return calls.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    calls.incrementAndGet();
+    try {
+      TimeUnit.MILLISECONDS.sleep(delayMs.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    byte[] response = String.format(RESPONSE, name).getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "text/xml");
+    exchange.sendResponseHeaders(200, response.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(response);
+    }
+  }
+}
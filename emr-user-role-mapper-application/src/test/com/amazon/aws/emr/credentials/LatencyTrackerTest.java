@@ -0,0 +1,46 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import java.util.OptionalLong;
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+  @Test
+  public void no_percentile_until_enough_samples() {
+    LatencyTracker latencyTracker = new LatencyTracker();
+    for (int i = 0; i < 19; i++) {
+      latencyTracker.record(100);
+    }
+    assertThat(latencyTracker.getP99Nanos(), is(OptionalLong.empty()));
+
+    latencyTracker.record(100);
+    assertThat(latencyTracker.getP99Nanos(), is(OptionalLong.of(100)));
+  }
+
+  @Test
+  public void percentile_ignores_rare_outliers() {
+    LatencyTracker latencyTracker = new LatencyTracker();
+    for (int i = 1; i <= 500; i++) {
+      latencyTracker.record(i == 250 ? 1_000_000 : i);
+    }
+    assertThat(latencyTracker.getP99Nanos(), is(OptionalLong.of(496)));
+  }
+
+  @Test
+  public void old_samples_are_forgotten() {
+    LatencyTracker latencyTracker = new LatencyTracker();
+    for (int i = 0; i < 512; i++) {
+      latencyTracker.record(1_000);
+    }
+    for (int i = 0; i < 1000; i++) {
+      latencyTracker.record(10);
+    }
+    assertThat(latencyTracker.getP99Nanos(), is(OptionalLong.of(10)));
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.amazon.aws.emr.ApplicationConfiguration;
+import com.amazon.aws.emr.common.Constants;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class STSClientImplTest {
+
+  private static final AssumeRoleRequest ASSUME_ROLE_REQUEST = new AssumeRoleRequest()
+      .withRoleArn("arn:aws:iam::123456789012:role/test-role")
+      .withRoleSessionName("test-session");
+
+  FakeStsServer primaryServer;
+
+  FakeStsServer secondaryServer;
+
+  ApplicationConfiguration applicationConfiguration;
+
+  STSClientImpl stsClient;
+
+  @BeforeClass
+  public static void setupCredentials() {
+    System.setProperty("aws.accessKeyId", "test-access-key");
+    System.setProperty("aws.secretKey", "test-secret-key");
+  }
+
+  @AfterClass
+  public static void clearCredentials() {
+    System.clearProperty("aws.accessKeyId");
+    System.clearProperty("aws.secretKey");
+  }
+
+  @Before
+  public void setup() throws Exception {
+    primaryServer = new FakeStsServer("primary");
+    secondaryServer = new FakeStsServer("secondary");
+    applicationConfiguration = mock(ApplicationConfiguration.class);
+    when(applicationConfiguration.getProperty(anyString(), anyInt()))
+        .thenAnswer(invocation -> invocation.getArgument(1));
+    when(applicationConfiguration.getProperty(anyString(), anyString()))
+        .thenAnswer(invocation -> invocation.getArgument(1));
+    stsClient = new STSClientImpl();
+    stsClient.applicationConfiguration = applicationConfiguration;
+    stsClient.rateLimiter = new AdaptiveRateLimiter(Constants.DEFAULT_STS_MAX_CALLS_PER_SECOND);
+  }
+
+  @After
+  public void tearDown() {
+    stsClient.close();
+    primaryServer.close();
+    secondaryServer.close();
+  }
+
+  @Test(timeout = 30_000)
+  public void assumes_role_on_primary_endpoint() throws Exception {
+    stsClient.init(primaryServer.getEndpoint(), null);
+
+    assertThat(accessKeyId(stsClient.assumeRole(ASSUME_ROLE_REQUEST)), is("primary"));
+    assertThat(accessKeyId(stsClient.assumeRoleAsync(ASSUME_ROLE_REQUEST).get()), is("primary"));
+  }
+
+  @Test(timeout = 30_000)
+  public void does_not_hedge_before_latency_is_known() throws Exception {
+    stsClient.init(primaryServer.getEndpoint(), secondaryServer.getEndpoint());
+    primaryServer.setDelayMs(300);
+
+    assertThat(accessKeyId(stsClient.assumeRoleAsync(ASSUME_ROLE_REQUEST).get()), is("primary"));
+    assertThat(secondaryServer.getCalls(), is(0));
+  }
+
+  @Test(timeout = 30_000)
+  public void hedges_to_secondary_when_primary_is_slower_than_usual() throws Exception {
+    stsClient.init(primaryServer.getEndpoint(), secondaryServer.getEndpoint());
+    // Recorded rather than measured, so that a slow warm-up call can't be hedged
+    for (int i = 0; i < 30; i++) {
+      stsClient.getPrimaryLatency().record(TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    primaryServer.setDelayMs(TimeUnit.SECONDS.toMillis(3));
+    assertThat(accessKeyId(stsClient.assumeRoleAsync(ASSUME_ROLE_REQUEST).get()), is("secondary"));
+  }
+
+  @Test(timeout = 30_000)
+  public void fails_over_to_secondary_when_primary_is_unreachable() throws Exception {
+    primaryServer.close();
+    stsClient.init(primaryServer.getEndpoint(), secondaryServer.getEndpoint());
+
+    assertThat(accessKeyId(stsClient.assumeRoleAsync(ASSUME_ROLE_REQUEST).get()), is("secondary"));
+  }
+
+  @Test(timeout = 30_000)
+  public void does_not_fail_over_when_primary_times_out() throws Exception {
+    when(applicationConfiguration.getProperty(Constants.STS_REQUEST_TIMEOUT_MS,
+        Constants.DEFAULT_STS_REQUEST_TIMEOUT_MS)).thenReturn(200);
+    stsClient.init(primaryServer.getEndpoint(), secondaryServer.getEndpoint());
+    primaryServer.setDelayMs(1000);
+
+    try {
+      stsClient.assumeRoleAsync(ASSUME_ROLE_REQUEST).get();
+      fail("Expected the call to time out");
+    } catch (ExecutionException e) {
+      assertThat(secondaryServer.getCalls(), is(0));
+    }
+  }
+
+  @Test(timeout = 30_000)
+  public void does_not_fail_over_beyond_the_rate_limit() throws Exception {
+    primaryServer.close();
+    stsClient.init(primaryServer.getEndpoint(), secondaryServer.getEndpoint());
+    AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(1, () -> 0L);
+    rateLimiter.tryAcquire();
+    stsClient.rateLimiter = rateLimiter;
+
+    try {
+      stsClient.assumeRoleAsync(ASSUME_ROLE_REQUEST).get();
+      fail("Expected the call to fail");
+    } catch (ExecutionException e) {
+      assertThat(secondaryServer.getCalls(), is(0));
+    }
+  }
+
+  private static String accessKeyId(AssumeRoleResult assumeRoleResult) {
+    return assumeRoleResult.getCredentials().getAccessKeyId();
+  }
+}
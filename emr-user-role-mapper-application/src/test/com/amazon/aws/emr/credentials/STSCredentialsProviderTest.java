@@ -8,17 +8,36 @@ import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.fail;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
+import com.amazon.aws.emr.common.Constants;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
 import com.amazonaws.services.securitytoken.model.Credentials;
 import com.amazonaws.util.EC2MetadataUtils;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Answers;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -36,6 +55,18 @@ public class STSCredentialsProviderTest {
 
   private static final long TWO_MIN_MS = 2 * 60 * 1000;
 
+  private static final long FIVE_MIN_MS = 5 * 60 * 1000;
+
+  private static final long SIX_MIN_MS = 6 * 60 * 1000;
+
+  private static final long TWELVE_MIN_MS = 12 * 60 * 1000;
+
+  private static final long SIXTEEN_MIN_MS = 16 * 60 * 1000;
+
+  private static final Gson GSON = new GsonBuilder()
+      .setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE)
+      .create();
+
   @Mock
   STSClient stsClient;
 
@@ -49,6 +80,9 @@ public class STSCredentialsProviderTest {
     mockStatic(STSCredentialsProvider.class);
     Mockito.when(STSCredentialsProvider.createInterceptorDateTimeFormat()).thenCallRealMethod();
     assumeRoleRequest = createTestAssumeRoleRequest();
+    // Calls the mocked assumeRole on the calling thread, like the default method
+    Mockito.when(stsClient.assumeRoleAsync(Mockito.any())).thenAnswer(Answers.CALLS_REAL_METHODS);    stsCredentialsProvider.stsRateLimiter =
+        new AdaptiveRateLimiter(Constants.DEFAULT_STS_MAX_CALLS_PER_SECOND);
   }
 
   @Test
@@ -92,16 +126,12 @@ public class STSCredentialsProviderTest {
         new AssumeRoleResult()
             .withCredentials(shortLivedTestCredentials));
     stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
-    /*
-     * Why 2?
-     * First call gets the credentials using sts as the cache is empty.
-     * Second call is made to STS as the retrieved credentials are expired.
-     */
-    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+    // Fetched credentials are handed out once, even if already expired
+    Mockito.verify(stsClient, Mockito.times(1)).assumeRole(assumeRoleRequest);
 
-    // Make the second call and there should no another Mock invocation
+    // Make the second call and there should be another Mock invocation, as the credentials are expired
     stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
-    Mockito.verify(stsClient, Mockito.times(3)).assumeRole(assumeRoleRequest);
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
 
     // Make second call, should invoke STS client again
     stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
@@ -115,17 +145,279 @@ public class STSCredentialsProviderTest {
         new AssumeRoleResult()
             .withCredentials(shortLivedTestCredentials));
     stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
-    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+    Mockito.verify(stsClient, Mockito.times(1)).assumeRole(assumeRoleRequest);
 
-    // Make the second call and there should no another Mock invocation
+    // Make the second call and there should be another Mock invocation, as the credentials are about to expire
     stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
-    Mockito.verify(stsClient, Mockito.times(3)).assumeRole(assumeRoleRequest);
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
 
     // Make second call, should invoke STS client again
     stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
     PowerMockito.verifyStatic(STSCredentialsProvider.class, Mockito.times(3));
   }
 
+  @Test
+  public void get_cached_credentials_response() {
+    Credentials longLivedCredentials = createTestCredentials(ONE_HR_MS);
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest)).thenReturn(
+        new AssumeRoleResult()
+            .withCredentials(longLivedCredentials));
+
+    byte[] response = stsCredentialsProvider.getUserCredentialsResponse(assumeRoleRequest).get();
+    EC2MetadataUtils.IAMSecurityCredential iamSecurityCredential = GSON.fromJson(
+        new String(response, StandardCharsets.UTF_8), EC2MetadataUtils.IAMSecurityCredential.class);
+    assertThat(iamSecurityCredential.accessKeyId, is("test-access"));
+    assertThat(iamSecurityCredential.token, is("test-session"));
+    assertThat(iamSecurityCredential.expiration, is(
+        STSCredentialsProvider.createInterceptorDateTimeFormat()
+            .format(longLivedCredentials.getExpiration())));
+    // Pretty-printed, like the controller always returned them
+    assertThat(new String(response, StandardCharsets.UTF_8), is(new GsonBuilder()
+        .setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE)
+        .setPrettyPrinting()
+        .create()
+        .toJson(iamSecurityCredential)));
+    // Served from the cache without serializing again
+    assertThat(stsCredentialsProvider.getUserCredentialsResponse(assumeRoleRequest).get(), sameInstance(response));
+    Mockito.verify(stsClient, Mockito.times(1)).assumeRole(assumeRoleRequest);
+  }
+
+  @Test
+  public void failed_assume_role_not_cached() {
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest))
+        .thenThrow(new AmazonClientException("STS is unavailable"))
+        .thenReturn(new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS)));
+    assertThat(stsCredentialsProvider.getUserCredentials(assumeRoleRequest).isPresent(), is(false));
+    assertThat(stsCredentialsProvider.getUserCredentials(assumeRoleRequest).isPresent(), is(true));
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+  }
+
+  @Test(timeout = 10_000)
+  public void expired_credentials_refreshed_once_by_concurrent_requests() throws Exception {
+    CountDownLatch refreshStarted = new CountDownLatch(1);
+    CountDownLatch stsResponded = new CountDownLatch(1);
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest))
+        .thenReturn(new AssumeRoleResult().withCredentials(createTestCredentials(-1)))
+        .thenAnswer(invocation -> {
+          refreshStarted.countDown();
+          stsResponded.await();
+          return new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS));
+        });
+    stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
+
+    ExecutorService requests = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Optional<EC2MetadataUtils.IAMSecurityCredential>>> responses = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        responses.add(requests.submit(() -> stsCredentialsProvider.getUserCredentials(assumeRoleRequest)));
+      }
+      refreshStarted.await();
+      stsResponded.countDown();
+      for (Future<Optional<EC2MetadataUtils.IAMSecurityCredential>> response : responses) {
+        assertThat(response.get().isPresent(), is(true));
+      }
+    } finally {
+      requests.shutdownNow();
+    }
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+  }
+
+  @Test(timeout = 10_000)
+  public void slow_sts_call_does_not_hold_up_other_roles() throws Exception {
+    CountDownLatch refreshStarted = new CountDownLatch(1);
+    CountDownLatch stsResponded = new CountDownLatch(1);
+    Mockito.when(stsClient.assumeRole(Mockito.any())).thenAnswer(invocation -> {
+      if (invocation.getArgument(0) == assumeRoleRequest) {
+        refreshStarted.countDown();
+        stsResponded.await();
+      }
+      return new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS));
+    });
+
+    ExecutorService requests = Executors.newSingleThreadExecutor();
+    try {
+      Future<Optional<EC2MetadataUtils.IAMSecurityCredential>> slow =
+          requests.submit(() -> stsCredentialsProvider.getUserCredentials(assumeRoleRequest));
+      refreshStarted.await();
+      // Enough roles that some share a cache segment with the slow one
+      for (int i = 0; i < 32; i++) {
+        AssumeRoleRequest other = new AssumeRoleRequest()
+            .withRoleArn("test-arn-" + i)
+            .withRoleSessionName("test-session");
+        assertThat(stsCredentialsProvider.getUserCredentials(other).isPresent(), is(true));
+      }
+      stsResponded.countDown();
+      assertThat(slow.get().isPresent(), is(true));
+    } finally {
+      requests.shutdownNow();
+    }
+  }
+
+  @Test
+  public void active_credentials_refreshed_ahead() {
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest)).thenReturn(
+        new AssumeRoleResult().withCredentials(createTestCredentials(TWELVE_MIN_MS)),
+        new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS)));
+    stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
+
+    // Past any refresh-ahead time of credentials that expire in 12 minutes
+    assertThat(stsCredentialsProvider.refreshAhead(System.currentTimeMillis() + FIVE_MIN_MS), is(1));
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+
+    stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
+    assertThat(stsCredentialsProvider.refreshAhead(System.currentTimeMillis() + FIVE_MIN_MS), is(0));
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+  }
+
+  @Test(timeout = 10_000)
+  public void slow_refresh_ahead_does_not_hold_up_requests() throws Exception {
+    CountDownLatch renewalStarted = new CountDownLatch(1);
+    CountDownLatch stsResponded = new CountDownLatch(1);
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest))
+        .thenReturn(new AssumeRoleResult().withCredentials(createTestCredentials(TWELVE_MIN_MS)))
+        .thenAnswer(invocation -> {
+          renewalStarted.countDown();
+          stsResponded.await();
+          return new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS));
+        });
+    Mockito.when(stsClient.assumeRole(Mockito.argThat(request -> request != assumeRoleRequest)))
+        .thenReturn(new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS)));
+    stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
+
+    ExecutorService refreshAhead = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> renewed =
+          refreshAhead.submit(() -> stsCredentialsProvider.refreshAhead(System.currentTimeMillis() + FIVE_MIN_MS));
+      renewalStarted.await();
+      // Enough roles that some share a cache segment with the one being renewed
+      for (int i = 0; i < 32; i++) {
+        AssumeRoleRequest other = new AssumeRoleRequest()
+            .withRoleArn("test-arn-" + i)
+            .withRoleSessionName("test-session");
+        assertThat(stsCredentialsProvider.getUserCredentials(other).isPresent(), is(true));
+      }
+      stsResponded.countDown();
+      assertThat(renewed.get(), is(1));
+    } finally {
+      refreshAhead.shutdownNow();
+    }
+  }
+
+  @Test
+  public void idle_credentials_not_refreshed_ahead() {
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest)).thenReturn(
+        new AssumeRoleResult().withCredentials(createTestCredentials(TWELVE_MIN_MS)));
+    stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
+
+    long notRequestedSince = System.currentTimeMillis()
+        + STSCredentialsProvider.ACTIVE_CREDENTIALS_WINDOW.toMillis() + ONE_HR_MS;
+    assertThat(stsCredentialsProvider.refreshAhead(notRequestedSince), is(0));
+    Mockito.verify(stsClient, Mockito.times(1)).assumeRole(assumeRoleRequest);
+  }
+
+  @Test
+  public void failed_refresh_ahead_keeps_credentials() {
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest))
+        .thenReturn(new AssumeRoleResult().withCredentials(createTestCredentials(SIXTEEN_MIN_MS)))
+        .thenThrow(new AmazonClientException("STS is unavailable"));
+    Optional<EC2MetadataUtils.IAMSecurityCredential> credentials =
+        stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
+
+    // Past the refresh-ahead time, while requests still find the credentials fresh
+    assertThat(stsCredentialsProvider.refreshAhead(System.currentTimeMillis() + SIX_MIN_MS), is(0));
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+    assertThat(stsCredentialsProvider.getUserCredentials(assumeRoleRequest), is(credentials));
+  }
+
+  @Test
+  public void concurrent_async_requests_share_one_sts_call() throws Exception {
+    CompletableFuture<AssumeRoleResult> assumeRoleResult = new CompletableFuture<>();
+    Mockito.doReturn(assumeRoleResult).when(stsClient).assumeRoleAsync(assumeRoleRequest);
+
+    CompletableFuture<Optional<byte[]>> first =
+        stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest).toCompletableFuture();
+    CompletableFuture<Optional<byte[]>> second =
+        stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest).toCompletableFuture();
+    assertThat(first.isDone(), is(false));
+    assumeRoleResult.complete(new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS)));
+
+    assertThat(second.get().get(), sameInstance(first.get().get()));
+    assertThat(stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest).toCompletableFuture()
+        .get().get(), sameInstance(first.get().get()));
+    Mockito.verify(stsClient, Mockito.times(1)).assumeRoleAsync(assumeRoleRequest);
+    Mockito.verify(stsClient, Mockito.never()).assumeRole(assumeRoleRequest);
+  }
+
+  @Test
+  public void rejected_async_sts_call_fails_request() throws Exception {
+    CompletableFuture<AssumeRoleResult> rejected = new CompletableFuture<>();
+    rejected.completeExceptionally(new RejectedExecutionException("Too many STS calls"));
+    CompletableFuture<AssumeRoleResult> assumeRoleResult = new CompletableFuture<>();
+    assumeRoleResult.complete(new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS)));
+    Mockito.doReturn(rejected, assumeRoleResult).when(stsClient).assumeRoleAsync(assumeRoleRequest);
+
+    try {
+      stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest).toCompletableFuture().get();
+      fail("Expected the request to be turned away");
+    } catch (ExecutionException expected) {
+      assertThat(expected.getCause() instanceof RejectedExecutionException, is(true));
+    }
+    assertThat(stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest).toCompletableFuture()
+        .get().isPresent(), is(true));
+  }
+
+  @Test
+  public void throttled_refresh_serves_previous_credentials() {
+    AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+    throttled.setErrorCode("Throttling");
+    Mockito.when(stsClient.assumeRole(assumeRoleRequest))
+        .thenReturn(new AssumeRoleResult().withCredentials(createTestCredentials(FIVE_MIN_MS)))
+        .thenThrow(throttled);
+    Optional<EC2MetadataUtils.IAMSecurityCredential> credentials =
+        stsCredentialsProvider.getUserCredentials(assumeRoleRequest);
+
+    // Due for a refresh, but valid for a few more minutes
+    assertThat(stsCredentialsProvider.getUserCredentials(assumeRoleRequest), is(credentials));
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRole(assumeRoleRequest);
+  }
+
+  @Test
+  public void due_credentials_served_while_refreshed_async() throws Exception {
+    CompletableFuture<AssumeRoleResult> refreshed = new CompletableFuture<>();
+    Mockito.doReturn(
+        CompletableFuture.completedFuture(new AssumeRoleResult().withCredentials(createTestCredentials(FIVE_MIN_MS))),
+        refreshed).when(stsClient).assumeRoleAsync(assumeRoleRequest);
+    byte[] previous = stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest)
+        .toCompletableFuture().get().get();
+
+    CompletableFuture<Optional<byte[]>> response =
+        stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest).toCompletableFuture();
+    assertThat(response.isDone(), is(true));
+    assertThat(response.get().get(), sameInstance(previous));
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRoleAsync(assumeRoleRequest);
+
+    refreshed.complete(new AssumeRoleResult().withCredentials(createTestCredentials(ONE_HR_MS)));
+    assertThat(stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest)
+        .toCompletableFuture().get().get() == previous, is(false));
+    Mockito.verify(stsClient, Mockito.times(2)).assumeRoleAsync(assumeRoleRequest);
+  }
+
+  @Test
+  public void throttled_refresh_without_previous_credentials_fails() throws Exception {
+    AmazonServiceException throttled = new AmazonServiceException("Rate exceeded");
+    throttled.setErrorCode("Throttling");
+    CompletableFuture<AssumeRoleResult> assumeRoleResult = new CompletableFuture<>();
+    assumeRoleResult.completeExceptionally(throttled);
+    Mockito.doReturn(assumeRoleResult).when(stsClient).assumeRoleAsync(assumeRoleRequest);
+
+    try {
+      stsCredentialsProvider.getUserCredentialsResponseAsync(assumeRoleRequest).toCompletableFuture().get();
+      fail("Expected the request to fail");
+    } catch (ExecutionException expected) {
+      assertThat(expected.getCause(), sameInstance(throttled));
+    }
+  }
+
   @Test
   public void random_refresh_time() {
     assertThat(stsCredentialsProvider.getRandomTimeInRange(), allOf(
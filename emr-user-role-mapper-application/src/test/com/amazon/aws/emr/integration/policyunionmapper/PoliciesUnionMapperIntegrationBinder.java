@@ -7,6 +7,8 @@ import com.amazon.aws.emr.ApplicationConfiguration;
 import com.amazon.aws.emr.common.system.PrincipalResolver;
 import com.amazon.aws.emr.common.system.impl.CommandBasedPrincipalResolver;
 import com.amazon.aws.emr.common.system.user.UserIdService;
+import com.amazon.aws.emr.credentials.AdaptiveRateLimiter;
+import com.amazon.aws.emr.credentials.CredentialsPrewarmer;
 import com.amazon.aws.emr.credentials.MetadataCredentialsProvider;
 import com.amazon.aws.emr.credentials.STSClient;
 import com.amazon.aws.emr.credentials.STSClientImpl;
@@ -26,8 +28,10 @@ public class PoliciesUnionMapperIntegrationBinder extends AbstractBinder {
   protected void configure() {
     bind(IntegrationTestsUserService.class).to(UserIdService.class);
     bind(MappingInvoker.class).to(MappingInvoker.class).in(Immediate.class);
+    bind(AdaptiveRateLimiter.class).to(AdaptiveRateLimiter.class).in(Singleton.class);
     bind(STSClientImpl.class).to(STSClient.class).in(Immediate.class);
     bind(STSCredentialsProvider.class).to(MetadataCredentialsProvider.class).in(Singleton.class);
+    bind(CredentialsPrewarmer.class).to(CredentialsPrewarmer.class).in(Immediate.class);
     bind(PoliciesUnionMapperImplApplicationConfig.class).to(ApplicationConfiguration.class)
         .in(Immediate.class);
     bind(CommandBasedPrincipalResolver.class).to(PrincipalResolver.class).in(Singleton.class);
@@ -0,0 +1,148 @@
+package com.amazon.aws.emr.mapping;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.OptionalInt;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({S3BasedUserMappingImplBase.class})
+@PowerMockIgnore({"javax.management.*", "javax.net.ssl.*"})
+public class DefaultUserRoleMapperImplTest {
+
+  DefaultUserRoleMapperImpl defaultUserRoleMapper;
+
+  @Mock
+  AmazonS3 s3Client;
+
+  @Mock
+  PrincipalResolver principalResolver;
+
+  private static final String TEST_BUCKET = "testBucket";
+  private static final String TEST_KEY = "testKey";
+  private static final String USER_ROLE_ARN = "arn:aws:iam::123456789:role/u1";
+  private static final String G1_ROLE_ARN = "arn:aws:iam::123456789:role/g1";
+  private static final String G2_ROLE_ARN = "arn:aws:iam::123456789:role/g2";
+  private static final String mappingJson = "{\n" +
+      "  \"PrincipalRoleMappings\": [\n" +
+      "    {\"username\": \"u1\", \"rolearn\": \"" + USER_ROLE_ARN + "\"},\n" +
+      "    {\"groupname\": \"g1\", \"rolearn\": \"" + G1_ROLE_ARN + "\"},\n" +
+      "    {\"groupname\": \"g2\", \"rolearn\": \"" + G2_ROLE_ARN + "\"}\n" +
+      "  ]\n" +
+      "}";
+
+  @BeforeClass
+  public static void setupRegion() {
+    // The mapper builds an S3 client when it is loaded
+    System.setProperty("aws.region", "us-west-2");
+  }
+
+  @AfterClass
+  public static void clearRegion() {
+    System.clearProperty("aws.region");
+  }
+
+  @Before
+  public void setUp() {
+    mockStatic(S3BasedUserMappingImplBase.class);
+    Mockito.when(S3BasedUserMappingImplBase.getS3Client())
+        .thenReturn(s3Client);
+    defaultUserRoleMapper = new DefaultUserRoleMapperImpl(TEST_BUCKET, TEST_KEY, principalResolver);
+  }
+
+  @Test
+  public void user_mapping_takes_precedence_over_groups() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    when(principalResolver.getGroupId(eq("g2"))).thenReturn(OptionalInt.of(102));
+    defaultUserRoleMapper.processFile(mappingJson);
+
+    assertThat(roleArn(defaultUserRoleMapper.getMapping("u1")), is(USER_ROLE_ARN));
+    verify(principalResolver, never()).getGroupIds(any());
+    verify(principalResolver, never()).getGroups(any());
+  }
+
+  @Test
+  public void groups_matched_by_id_in_the_order_of_the_groups() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    when(principalResolver.getGroupId(eq("g2"))).thenReturn(OptionalInt.of(102));
+    when(principalResolver.getGroupIds(eq("u2"))).thenReturn(Optional.of(new int[] {100, 102, 101}));
+    defaultUserRoleMapper.processFile(mappingJson);
+
+    assertThat(roleArn(defaultUserRoleMapper.getMapping("u2")), is(G2_ROLE_ARN));
+    verify(principalResolver, never()).getGroups(any());
+  }
+
+  @Test
+  public void user_in_no_mapped_group_by_id_has_no_mapping() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    when(principalResolver.getGroupId(eq("g2"))).thenReturn(OptionalInt.of(102));
+    when(principalResolver.getGroupIds(eq("u2"))).thenReturn(Optional.of(new int[] {100}));
+    defaultUserRoleMapper.processFile(mappingJson);
+
+    assertThat(defaultUserRoleMapper.getMapping("u2"), is(Optional.empty()));
+    verify(principalResolver, never()).getGroups(any());
+  }
+
+  @Test
+  public void groups_matched_by_name_when_a_group_id_is_not_found() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    when(principalResolver.getGroups(eq("u2"))).thenReturn(Optional.of(Arrays.asList("g3", "g2")));
+    defaultUserRoleMapper.processFile(mappingJson);
+
+    assertThat(roleArn(defaultUserRoleMapper.getMapping("u2")), is(G2_ROLE_ARN));
+    verify(principalResolver, never()).getGroupIds(any());
+  }
+
+  @Test
+  public void groups_matched_by_name_when_resolver_lists_no_group_ids() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    when(principalResolver.getGroupId(eq("g2"))).thenReturn(OptionalInt.of(102));
+    when(principalResolver.getGroups(eq("u2"))).thenReturn(Optional.of(Collections.singletonList("g1")));
+    defaultUserRoleMapper.processFile(mappingJson);
+
+    assertThat(roleArn(defaultUserRoleMapper.getMapping("u2")), is(G1_ROLE_ARN));
+    verify(principalResolver).getGroupIds(eq("u2"));
+  }
+
+  @Test
+  public void unchanged_mapping_resolves_group_ids_again_on_refresh() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    defaultUserRoleMapper.processFile(mappingJson);
+
+    // g2 is created after the mapping was loaded
+    when(principalResolver.getGroupId(eq("g2"))).thenReturn(OptionalInt.of(102));
+    when(principalResolver.getGroupIds(eq("u2"))).thenReturn(Optional.of(new int[] {102}));
+    long mappingVersion = defaultUserRoleMapper.getMappingVersion();
+    defaultUserRoleMapper.refresh();
+
+    assertThat(roleArn(defaultUserRoleMapper.getMapping("u2")), is(G2_ROLE_ARN));
+    verify(principalResolver, never()).getGroups(any());
+    assertThat(defaultUserRoleMapper.getMappingVersion(), is(mappingVersion));
+  }
+
+  private static String roleArn(Optional<AssumeRoleRequest> assumeRoleRequest) {
+    return assumeRoleRequest.get().getRoleArn();
+  }
+}
@@ -2,22 +2,40 @@ package com.amazon.aws.emr.mapping;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.hamcrest.collection.IsEmptyCollection.empty;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
 import com.amazon.aws.emr.common.Constants;
 import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.CountDownLatch;
+import com.google.gson.JsonParseException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
@@ -134,6 +152,32 @@ public class ManagedPolicyBasedUserRoleMapperImplTest {
             .getArn().equals(NO_MATCH_POLICY_ARN), is(true));
   }
 
+  @Test
+  public void users_with_no_mapping_share_no_match_session() {
+    managedPolicyBasedUserRoleMapper.init(noMatchModeConfig(Constants.NO_MATCH_MODE_SHARED));
+    Optional<AssumeRoleRequest> u2Request = managedPolicyBasedUserRoleMapper.getMapping("u2");
+    Optional<AssumeRoleRequest> u4Request = managedPolicyBasedUserRoleMapper.getMapping("u4");
+    assertThat(u2Request.get().getRoleSessionName(),
+        is(ManagedPolicyBasedUserRoleMapperImpl.SHARED_NO_MATCH_SESSION_NAME));
+    assertThat(u2Request.get().getPolicyArns().get(0).getArn(), is(NO_MATCH_POLICY_ARN));
+    // Equal requests share one entry of the credentials cache
+    assertThat(u2Request, is(u4Request));
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u1").get().getRoleSessionName(), is("u1"));
+  }
+
+  @Test
+  public void user_with_no_mapping_gets_no_credentials() {
+    managedPolicyBasedUserRoleMapper.init(noMatchModeConfig(Constants.NO_MATCH_MODE_NONE));
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u2").isPresent(), is(false));
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u1").isPresent(), is(true));
+  }
+
+  @Test
+  public void unknown_no_match_mode_uses_session_of_user() {
+    managedPolicyBasedUserRoleMapper.init(noMatchModeConfig("bogus"));
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u2").get().getRoleSessionName(), is("u2"));
+  }
+
   @Test
   public void policy_config_with_no_default_policy() {
       String policy = "{\n" +
@@ -187,4 +231,147 @@ public class ManagedPolicyBasedUserRoleMapperImplTest {
     assertThat(assumeRoleRequest.getPolicyArns().get(2).getArn(), is("arn:aws:s3:::Group-Common"));
   }
 
-}
\ No newline at end of file
+  @Test
+  public void groups_matched_by_id_when_resolver_lists_group_ids() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    when(principalResolver.getGroupId(eq("g2"))).thenReturn(OptionalInt.of(102));
+    when(principalResolver.getGroupIds(eq("u3"))).thenReturn(Optional.of(new int[] {100, 102, 101}));
+    managedPolicyBasedUserRoleMapper.processFile(mappingJson);
+
+    Optional<AssumeRoleRequest> optionalAssumeRoleRequest = managedPolicyBasedUserRoleMapper
+        .getMapping("u3");
+    AssumeRoleRequest assumeRoleRequest = optionalAssumeRoleRequest.get();
+    assertThat(assumeRoleRequest.getPolicyArns(), hasSize(4));
+    assertThat(assumeRoleRequest.getPolicyArns().get(0).getArn(), is("arn:aws:s3:::Group2-P1"));
+    assertThat(assumeRoleRequest.getPolicyArns().get(1).getArn(), is("arn:aws:s3:::Group-Common"));
+    assertThat(assumeRoleRequest.getPolicyArns().get(2).getArn(), is("arn:aws:s3:::Group1-P1"));
+    assertThat(assumeRoleRequest.getPolicyArns().get(3).getArn(), is("arn:aws:s3:::Group1-P2"));
+    verify(principalResolver, never()).getGroups(any());
+  }
+
+  @Test
+  public void groups_matched_by_name_when_a_group_id_is_not_found() {
+    when(principalResolver.getGroupId(eq("g1"))).thenReturn(OptionalInt.of(101));
+    when(principalResolver.getGroupIds(eq("u3"))).thenReturn(Optional.of(new int[] {101}));
+    when(principalResolver.getGroups(eq("u3"))).thenReturn(Optional.of(Arrays.asList("g1", "g2")));
+    managedPolicyBasedUserRoleMapper.processFile(mappingJson);
+
+    Optional<AssumeRoleRequest> optionalAssumeRoleRequest = managedPolicyBasedUserRoleMapper
+        .getMapping("u3");
+    assertThat(optionalAssumeRoleRequest.get().getPolicyArns(), hasSize(4));
+    verify(principalResolver, never()).getGroupIds(any());
+  }
+
+  @Test
+  public void unchanged_mapping_resolves_group_ids_again_on_refresh() {
+    when(principalResolver.getGroups(eq("u3"))).thenReturn(Optional.of(Collections.singletonList("g2")));
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u3").get().getPolicyArns(), hasSize(2));
+    verify(principalResolver, never()).getGroupIds(any());
+
+    // g2 is created after the mapping was loaded
+    when(principalResolver.getGroupId(eq("g2"))).thenReturn(OptionalInt.of(102));
+    when(principalResolver.getGroupIds(eq("u3"))).thenReturn(Optional.of(new int[] {102}));
+    long mappingVersion = managedPolicyBasedUserRoleMapper.getMappingVersion();
+    managedPolicyBasedUserRoleMapper.refresh();
+
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u3").get().getPolicyArns(), hasSize(2));
+    verify(principalResolver).getGroupIds(eq("u3"));
+    verify(principalResolver).getGroups(eq("u3"));
+    assertThat(managedPolicyBasedUserRoleMapper.getMappingVersion(), is(mappingVersion));
+  }
+
+  @Test
+  public void invalid_file_keeps_previous_mapping() {
+    when(principalResolver.getGroups(eq("u1"))).thenReturn(Optional.of(Collections.emptyList()));
+    try {
+      managedPolicyBasedUserRoleMapper.processFile("{\"PrincipalPolicyMappings\": [");
+      fail("Expected the mapping to be rejected");
+    } catch (JsonParseException expected) {
+    }
+    Optional<AssumeRoleRequest> optionalAssumeRoleRequest = managedPolicyBasedUserRoleMapper
+        .getMapping("u1");
+    assertThat(optionalAssumeRoleRequest.get().getPolicyArns().get(0).getArn(),
+        is("arn:aws:s3:::UserPolicy"));
+  }
+
+  @Test(timeout = 10_000)
+  public void mapping_served_while_refresh_in_progress() throws Exception {
+    when(principalResolver.getGroups(eq("u1"))).thenReturn(Optional.of(Collections.emptyList()));
+    CountDownLatch refreshStarted = new CountDownLatch(1);
+    CountDownLatch s3Responded = new CountDownLatch(1);
+    when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+      refreshStarted.countDown();
+      s3Responded.await();
+      throw new AmazonClientException("S3 is unavailable");
+    });
+    Thread refresh = new Thread(() -> {
+      try {
+        managedPolicyBasedUserRoleMapper.refresh();
+      } catch (AmazonClientException expected) {
+      }
+    });
+    refresh.start();
+    refreshStarted.await();
+
+    Optional<AssumeRoleRequest> optionalAssumeRoleRequest = managedPolicyBasedUserRoleMapper
+        .getMapping("u1");
+    s3Responded.countDown();
+    refresh.join();
+    assertThat(optionalAssumeRoleRequest.get().getPolicyArns().get(0).getArn(),
+        is("arn:aws:s3:::UserPolicy"));
+  }
+
+  @Test
+  public void streamed_mapping_with_no_match_policy_last() {
+    when(principalResolver.getGroups(eq("u2"))).thenReturn(Optional.of(Collections.emptyList()));
+    String policy = "{\"Comment\": {\"owner\": [\"team\"]}," +
+        "  \"PrincipalPolicyMappings\": [null," +
+        "    {\"username\": \"u2\", \"policies\": [\"arn:aws:s3:::UserPolicy\"]}]," +
+        "  \"NoMatchPolicyArn\": \"" + NO_MATCH_POLICY_ARN + "2\"}";
+    managedPolicyBasedUserRoleMapper.processStream(new StringReader(policy));
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u2").get().getPolicyArns().get(0).getArn(),
+        is("arn:aws:s3:::UserPolicy"));
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u1").get().getPolicyArns().get(0).getArn(),
+        is(NO_MATCH_POLICY_ARN + "2"));
+  }
+
+  @Test
+  public void mapping_without_mappings_keeps_previous_mapping() {
+    when(principalResolver.getGroups(eq("u1"))).thenReturn(Optional.of(Collections.emptyList()));
+    try {
+      managedPolicyBasedUserRoleMapper.processFile("{\"NoMatchPolicyArn\": \"\"}");
+      fail("Expected the mapping to be rejected");
+    } catch (JsonParseException expected) {
+    }
+    assertThat(managedPolicyBasedUserRoleMapper.getMapping("u1").get().getPolicyArns().get(0).getArn(),
+        is("arn:aws:s3:::UserPolicy"));
+  }
+
+  @Test
+  public void refresh_sends_etag_and_skips_unchanged_mapping() {
+    S3Object s3Object = new S3Object();
+    s3Object.setObjectContent(new ByteArrayInputStream(mappingJson.getBytes(StandardCharsets.UTF_8)));
+    ObjectMetadata objectMetadata = new ObjectMetadata();
+    objectMetadata.setHeader("ETag", "etag-1");
+    s3Object.setObjectMetadata(objectMetadata);
+    ArgumentCaptor<GetObjectRequest> getObjectRequests = ArgumentCaptor.forClass(GetObjectRequest.class);
+    when(s3Client.getObject(getObjectRequests.capture())).thenReturn(s3Object, (S3Object) null);
+
+    managedPolicyBasedUserRoleMapper.refresh();
+    long mappingVersion = managedPolicyBasedUserRoleMapper.getMappingVersion();
+    managedPolicyBasedUserRoleMapper.refresh();
+
+    assertThat(getObjectRequests.getAllValues().get(0).getNonmatchingETagConstraints(), is(empty()));
+    assertThat(getObjectRequests.getAllValues().get(1).getNonmatchingETagConstraints(),
+        is(Collections.singletonList("etag-1")));
+    assertThat(managedPolicyBasedUserRoleMapper.getMappingVersion(), is(mappingVersion));
+    verify(s3Client, never()).getObjectMetadata(TEST_BUCKET, TEST_KEY);
+  }
+
+  private static Map<String, String> noMatchModeConfig(String noMatchMode) {
+    Map<String, String> configMap = new HashMap<>();
+    configMap.put(Constants.ROLE_MAPPING_ROLE_ARN, MAPPING_ROLE_ARN);
+    configMap.put(Constants.ROLE_MAPPING_NO_MATCH_MODE, noMatchMode);
+    return configMap;
+  }
+}
@@ -1,13 +1,16 @@
 package com.amazon.aws.emr.mapping;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
 
 import com.amazon.aws.emr.ApplicationConfiguration;
 import com.amazon.aws.emr.common.Constants;
 import com.amazon.aws.emr.rolemapper.UserRoleMapperProvider;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.Assume;
@@ -16,6 +19,8 @@ import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @Slf4j
@@ -60,4 +65,51 @@ public class MappingInvokerTest {
     assertThat(actual.get(), is(assumeRoleRequest));
   }
 
+  @Test
+  public void source_identity_enabled_then_mapping_not_modified() {
+    AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest().withRoleArn("test-arn");
+    when(roleMapperProvider.getMapping(TEST_USER)).thenReturn(Optional.of(assumeRoleRequest));
+    when(applicationConfiguration.isSetSourceIdentityEnabled()).thenReturn(true);
+    Optional<AssumeRoleRequest> actual = mappingInvoker.map(TEST_USER);
+    assertThat(actual.get().getSourceIdentity(), is(TEST_USER));
+    assertThat(assumeRoleRequest.getSourceIdentity(), is(nullValue()));
+  }
+
+  @Test
+  public void uid_table_disabled_then_mapped_every_time() {
+    AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest().withRoleArn("test-arn");
+    when(roleMapperProvider.getMapping(TEST_USER)).thenReturn(Optional.of(assumeRoleRequest));
+    mappingInvoker.map(1000, TEST_USER);
+    mappingInvoker.map(1000, TEST_USER);
+    verify(roleMapperProvider, times(2)).getMapping(TEST_USER);
+  }
+
+  @Test
+  public void uid_table_enabled_then_repeat_caller_not_mapped_again() {
+    AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest().withRoleArn("test-arn");
+    when(roleMapperProvider.getMapping(TEST_USER)).thenReturn(Optional.of(assumeRoleRequest));
+    mappingInvoker.uidTable = new UidMappingTable(TimeUnit.HOURS.toNanos(1), 10, () -> 0, () -> 0);
+    mappingInvoker.map(1000, TEST_USER);
+    Optional<AssumeRoleRequest> actual = mappingInvoker.map(1000, TEST_USER);
+    assertThat(actual.get(), is(assumeRoleRequest));
+    verify(roleMapperProvider, times(1)).getMapping(TEST_USER);
+  }
+
+  @Test
+  public void refresh_delay_jittered_around_interval() {
+    long intervalMs = TimeUnit.MINUTES.toMillis(5);
+    assertThat(MappingInvoker.getRefreshDelayMs(intervalMs, 0, 0), is(TimeUnit.MINUTES.toMillis(4)));
+    assertThat(MappingInvoker.getRefreshDelayMs(intervalMs, 0, 0.5), is(intervalMs));
+    assertThat(MappingInvoker.getRefreshDelayMs(intervalMs, 0, 0.9999),
+        is(lessThanOrEqualTo(TimeUnit.MINUTES.toMillis(6))));
+  }
+
+  @Test
+  public void refresh_delay_backs_off_on_failures() {
+    long intervalMs = TimeUnit.MINUTES.toMillis(1);
+    assertThat(MappingInvoker.getRefreshDelayMs(intervalMs, 1, 0.5), is(2 * intervalMs));
+    assertThat(MappingInvoker.getRefreshDelayMs(intervalMs, 3, 0.5), is(8 * intervalMs));
+    assertThat(MappingInvoker.getRefreshDelayMs(intervalMs, 4, 0.5), is(16 * intervalMs));
+    assertThat(MappingInvoker.getRefreshDelayMs(intervalMs, 100, 0.5), is(16 * intervalMs));
+  }
 }
@@ -0,0 +1,212 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.mapping;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UidMappingTableTest {
+
+  private static final long TTL_NANOS = TimeUnit.HOURS.toNanos(1);
+
+  private final AtomicLong mappingVersion = new AtomicLong();
+  private final AtomicLong groupMembershipVersion = new AtomicLong();
+  private final Map<String, Integer> mapped = new HashMap<>();
+  private UidMappingTable uidMappingTable;
+
+  @Before
+  public void setup() {
+    uidMappingTable = new UidMappingTable(TTL_NANOS, 2, mappingVersion::get, groupMembershipVersion::get);
+  }
+
+  private Optional<AssumeRoleRequest> map(String username) {
+    mapped.merge(username, 1, Integer::sum);
+    if (username.startsWith("unmapped")) {
+      return Optional.empty();
+    }
+    return Optional.of(new AssumeRoleRequest()
+        .withRoleArn("arn:aws:iam::123456789012:role/" + username + "-" + mappingVersion.get())
+        .withRoleSessionName(username));
+  }
+
+  @Test
+  public void repeat_caller_not_mapped_again() {
+    Optional<AssumeRoleRequest> first = uidMappingTable.map(1000, "u1", this::map);
+    Optional<AssumeRoleRequest> second = uidMappingTable.map(1000, "u1", this::map);
+    assertThat(second.get(), is(sameInstance(first.get())));
+    assertThat(mapped.get("u1"), is(1));
+  }
+
+  @Test
+  public void expired_callers_make_room_when_full() {
+    uidMappingTable = new UidMappingTable(1, 2, mappingVersion::get, groupMembershipVersion::get);
+    uidMappingTable.map(1000, "u1", this::map);
+    uidMappingTable.map(1001, "u2", this::map);
+    assertThat(uidMappingTable.size(), is(2));
+
+    uidMappingTable.map(1002, "u3", this::map);
+    assertThat(uidMappingTable.size(), is(1));
+  }
+
+  @Test
+  public void full_table_starts_over_for_new_caller() {
+    uidMappingTable.map(1000, "u1", this::map);
+    uidMappingTable.map(1001, "u2", this::map);
+
+    uidMappingTable.map(1002, "u3", this::map);
+    uidMappingTable.map(1002, "u3", this::map);
+    assertThat(mapped.get("u3"), is(1));
+    assertThat(uidMappingTable.size(), is(1));
+  }
+
+  @Test
+  public void unmapped_caller_not_kept() {
+    assertThat(uidMappingTable.map(1000, "unmapped", this::map).isPresent(), is(false));
+    assertThat(uidMappingTable.map(1000, "unmapped", this::map).isPresent(), is(false));
+    assertThat(mapped.get("unmapped"), is(2));
+    assertThat(uidMappingTable.size(), is(0));
+  }
+
+  @Test
+  public void unmapped_caller_kept_with_unmapped_ttl() {
+    uidMappingTable = new UidMappingTable(TTL_NANOS, TTL_NANOS, 2, mappingVersion::get,
+        groupMembershipVersion::get);
+    assertThat(uidMappingTable.map(1000, "unmapped", this::map).isPresent(), is(false));
+    assertThat(uidMappingTable.map(1000, "unmapped", this::map).isPresent(), is(false));
+    assertThat(mapped.get("unmapped"), is(1));
+
+    groupMembershipVersion.incrementAndGet();
+    assertThat(uidMappingTable.map(1000, "unmapped", this::map).isPresent(), is(false));
+    assertThat(mapped.get("unmapped"), is(2));
+  }
+
+  @Test
+  public void unmapped_caller_dropped_on_refresh() {
+    uidMappingTable = new UidMappingTable(TTL_NANOS, TTL_NANOS, 2, mappingVersion::get,
+        groupMembershipVersion::get);
+    uidMappingTable.map(1000, "unmapped", this::map);
+    UidMappingTable.Generation previous = uidMappingTable.beforeRefresh();
+    mappingVersion.incrementAndGet();
+    uidMappingTable.rebuild(previous, this::map);
+    assertThat(mapped.get("unmapped"), is(1));
+    assertThat(uidMappingTable.size(), is(0));
+
+    uidMappingTable.map(1000, "unmapped", this::map);
+    assertThat(mapped.get("unmapped"), is(2));
+  }
+
+  @Test
+  public void mapped_caller_not_kept_without_ttl() {
+    uidMappingTable = new UidMappingTable(0, TTL_NANOS, 2, mappingVersion::get, groupMembershipVersion::get);
+    uidMappingTable.map(1000, "u1", this::map);
+    uidMappingTable.map(1000, "u1", this::map);
+    assertThat(mapped.get("u1"), is(2));
+    assertThat(uidMappingTable.size(), is(0));
+  }
+
+  @Test
+  public void other_username_for_uid_mapped_again() {
+    uidMappingTable.map(1000, "u1", this::map);
+    Optional<AssumeRoleRequest> renamed = uidMappingTable.map(1000, "u2", this::map);
+    assertThat(renamed.get().getRoleSessionName(), is("u2"));
+  }
+
+  @Test
+  public void mapping_change_drops_entries() {
+    uidMappingTable.map(1000, "u1", this::map);
+    mappingVersion.incrementAndGet();
+    Optional<AssumeRoleRequest> remapped = uidMappingTable.map(1000, "u1", this::map);
+    assertThat(remapped.get().getRoleArn(), is("arn:aws:iam::123456789012:role/u1-1"));
+    assertThat(mapped.get("u1"), is(2));
+  }
+
+  @Test
+  public void group_membership_change_drops_entries() {
+    uidMappingTable.map(1000, "u1", this::map);
+    groupMembershipVersion.incrementAndGet();
+    uidMappingTable.map(1000, "u1", this::map);
+    assertThat(mapped.get("u1"), is(2));
+  }
+
+  @Test
+  public void expired_entry_mapped_again() {
+    uidMappingTable = new UidMappingTable(1, 2, mappingVersion::get, groupMembershipVersion::get);
+    uidMappingTable.map(1000, "u1", this::map);
+    uidMappingTable.map(1000, "u1", this::map);
+    assertThat(mapped.get("u1"), is(2));
+    assertThat(uidMappingTable.size(), is(1));
+  }
+
+  @Test
+  public void size_bounded() {
+    for (int uid = 1000; uid < 1010; uid++) {
+      uidMappingTable.map(uid, "u" + uid, this::map);
+      assertThat(uidMappingTable.size(), lessThanOrEqualTo(2));
+    }
+  }
+
+  @Test
+  public void rebuild_after_refresh_maps_previous_callers() {
+    uidMappingTable.map(1000, "u1", this::map);
+    UidMappingTable.Generation previous = uidMappingTable.beforeRefresh();
+    mappingVersion.incrementAndGet();
+    uidMappingTable.rebuild(previous, this::map);
+    assertThat(mapped.get("u1"), is(2));
+
+    Optional<AssumeRoleRequest> rebuilt = uidMappingTable.map(1000, "u1", this::map);
+    assertThat(rebuilt.get().getRoleArn(), is("arn:aws:iam::123456789012:role/u1-1"));
+    assertThat(mapped.get("u1"), is(2));
+  }
+
+  @Test
+  public void rebuild_keeps_newer_generation_started_meanwhile() {
+    uidMappingTable.map(1000, "u1", this::map);
+    UidMappingTable.Generation previous = uidMappingTable.beforeRefresh();
+    mappingVersion.incrementAndGet();
+    uidMappingTable.rebuild(previous, username -> {
+      // Group membership changes and a request comes in while the callers are mapped again
+      groupMembershipVersion.incrementAndGet();
+      uidMappingTable.map(1001, "u2", this::map);
+      return map(username);
+    });
+
+    uidMappingTable.map(1001, "u2", this::map);
+    assertThat(mapped.get("u2"), is(1));
+  }
+
+  @Test
+  public void rebuild_merges_into_generation_started_meanwhile() {
+    uidMappingTable.map(1000, "u1", this::map);
+    UidMappingTable.Generation previous = uidMappingTable.beforeRefresh();
+    mappingVersion.incrementAndGet();
+    uidMappingTable.rebuild(previous, username -> {
+      uidMappingTable.map(1001, "u2", this::map);
+      return map(username);
+    });
+
+    uidMappingTable.map(1000, "u1", this::map);
+    uidMappingTable.map(1001, "u2", this::map);
+    assertThat(mapped.get("u1"), is(2));
+    assertThat(mapped.get("u2"), is(1));
+  }
+
+  @Test
+  public void rebuild_without_change_does_nothing() {
+    uidMappingTable.map(1000, "u1", this::map);
+    uidMappingTable.rebuild(uidMappingTable.beforeRefresh(), this::map);
+    assertThat(mapped.get("u1"), is(1));
+    assertThat(uidMappingTable.size(), is(1));
+  }
+}
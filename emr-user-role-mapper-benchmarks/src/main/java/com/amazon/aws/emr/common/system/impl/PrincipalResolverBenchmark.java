@@ -0,0 +1,98 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The caching of {@link AbstractPrincipalResolver#getGroups(String)}, with a resolver that answers from memory so
+ * that only the cache is measured.
+ * <ul>
+ * <li>hit: a few users that are always cached</li>
+ * <li>miss: more users than the cache holds, so that nearly every lookup loads</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class PrincipalResolverBenchmark {
+
+    private static final int HOT_USERS = 100;
+    // Well above the size of the group cache
+    private static final int COLD_USERS = 200_000;
+    private static final List<String> GROUPS = Arrays.asList("hadoop", "hdfsadmingroup", "users");
+
+    private InMemoryPrincipalResolver resolver;
+    private String[] hotUsers;
+    private String[] coldUsers;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup
+        public void setup() {
+            // Threads start at different offsets, so they rarely load the same user
+            next = ThreadLocalRandom.current().nextInt(COLD_USERS);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        resolver = new InMemoryPrincipalResolver();
+        hotUsers = new String[HOT_USERS];
+        for (int i = 0; i < HOT_USERS; i++) {
+            hotUsers[i] = "hot-user-" + i;
+            resolver.getGroups(hotUsers[i]);
+        }
+        coldUsers = new String[COLD_USERS];
+        for (int i = 0; i < COLD_USERS; i++) {
+            coldUsers[i] = "cold-user-" + i;
+        }
+    }
+
+    @Benchmark
+    public Optional<List<String>> hit(Cursor cursor) {
+        return resolver.getGroups(hotUsers[Math.floorMod(cursor.next++, HOT_USERS)]);
+    }
+
+    @Benchmark
+    public Optional<List<String>> miss(Cursor cursor) {
+        int next = cursor.next;
+        cursor.next = next + 7919;
+        return resolver.getGroups(coldUsers[Math.floorMod(next, COLD_USERS)]);
+    }
+
+    static class InMemoryPrincipalResolver extends AbstractPrincipalResolver {
+        @Override
+        protected Optional<String> getLinuxUsername(int userId) {
+            return Optional.of("user-" + userId);
+        }
+
+        @Override
+        protected List<String> getLinuxGroups(String username) {
+            return GROUPS;
+        }
+    }
+}
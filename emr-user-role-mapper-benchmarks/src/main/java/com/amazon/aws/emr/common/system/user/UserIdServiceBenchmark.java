@@ -0,0 +1,94 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.common.system.user;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UserIdService#resolveSystemUID} on synthetic /proc/net/tcp(6) files. The caller is the last socket in
+ * tcp6, which is the worst case for a scan.
+ * <ul>
+ * <li>regex: the regex based scanner used before {@link ProcNetTcpParser}</li>
+ * <li>proc: {@link LinuxUserIdService}</li>
+ * <li>snapshot: {@link ProcNetTcpSnapshotService} with no sharing window, i.e. the cost of one snapshot</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserIdServiceBenchmark {
+
+    private static final int CALLER_PORT = ProcNetTcpFileGenerator.MIN_CALLER_PORT;
+
+    @Param({"1000", "10000", "100000"})
+    int sockets;
+
+    @Param({"regex", "proc", "snapshot"})
+    String implementation;
+
+    private Path dir;
+    private UserIdService userIdService;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("proc-net-tcp");
+        // Split the sockets evenly between the two files, like a dual stack host
+        String tcp = new ProcNetTcpFileGenerator(false, sockets)
+                .addRandomSockets(sockets / 2)
+                .write(dir.resolve("tcp")).toString();
+        String tcp6 = new ProcNetTcpFileGenerator(true, sockets)
+                .addRandomSockets(sockets / 2)
+                .addImdsSocket(CALLER_PORT, 1000)
+                .write(dir.resolve("tcp6")).toString();
+        switch (implementation) {
+            case "regex":
+                userIdService = new RegexLinuxUserIdService(tcp, tcp6);
+                break;
+            case "proc":
+                userIdService = new LinuxUserIdService(tcp, tcp6);
+                break;
+            case "snapshot":
+                userIdService = new ProcNetTcpSnapshotService(tcp, tcp6, 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown implementation " + implementation);
+        }
+        if (!resolve().isPresent()) {
+            throw new IllegalStateException("Caller not found");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.delete(dir.resolve("tcp"));
+        Files.delete(dir.resolve("tcp6"));
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public OptionalInt resolve() {
+        return userIdService.resolveSystemUID("127.0.0.1", 9944, "172.30.6.181", CALLER_PORT, true);
+    }
+}
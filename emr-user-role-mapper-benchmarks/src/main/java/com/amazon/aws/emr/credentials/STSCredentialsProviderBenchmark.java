@@ -0,0 +1,73 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.credentials;
+
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.util.EC2MetadataUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache hits of {@link STSCredentialsProvider#getUserCredentials}, against a {@link STSClient} that answers with
+ * credentials expiring long after the benchmark is over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class STSCredentialsProviderBenchmark {
+
+    private static final int ROLES = 100;
+    private static final long ONE_DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    private STSCredentialsProvider stsCredentialsProvider;
+    private AssumeRoleRequest[] requests;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setup() {
+        stsCredentialsProvider = new STSCredentialsProvider();
+        stsCredentialsProvider.stsClient = request -> new AssumeRoleResult()
+                .withCredentials(new Credentials()
+                        .withAccessKeyId("access-" + request.getRoleArn())
+                        .withSecretAccessKey("secret")
+                        .withSessionToken("token")
+                        .withExpiration(new Date(System.currentTimeMillis() + ONE_DAY_MS)));
+        requests = new AssumeRoleRequest[ROLES];
+        for (int i = 0; i < ROLES; i++) {
+            // A fresh but equal request each time, as the mappers build one per call
+            requests[i] = new AssumeRoleRequest()
+                    .withRoleArn("arn:aws:iam::123456789012:role/role-" + i)
+                    .withRoleSessionName("user-" + i);
+            stsCredentialsProvider.getUserCredentials(requests[i].clone());
+        }
+    }
+
+    @Benchmark
+    public Optional<EC2MetadataUtils.IAMSecurityCredential> hit(Cursor cursor) {
+        return stsCredentialsProvider.getUserCredentials(requests[Math.floorMod(cursor.next++, ROLES)].clone());
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+// SPDX-License-Identifier: Apache-2.0
+
+package com.amazon.aws.emr.mapping;
+
+import com.amazon.aws.emr.common.Constants;
+import com.amazon.aws.emr.common.system.PrincipalResolver;
+import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code getMapping} of the S3 based mappers, with large mapping files and users in many groups.
+ * Half of the principals in a mapping file are users, and the other half are groups.
+ * <ul>
+ * <li>user: a user with a mapping of its own</li>
+ * <li>group: a user without a mapping, whose last group is mapped</li>
+ * <li>none: a user with no mapped user or group</li>
+ * <li>load: loading the whole mapping file</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// DefaultUserRoleMapperImpl builds an S3 client when loaded, which needs a region
+@Fork(value = 1, jvmArgsAppend = "-Daws.region=us-east-1")
+public class UserRoleMapperBenchmark {
+
+    private static final int GROUPS_PER_USER = 20;
+    private static final String MAPPED_USER = "user-0";
+    private static final String GROUP_MAPPED_USER = "unmapped-user-1";
+    private static final String UNMAPPED_USER = "unmapped-user-2";
+
+    @Param({"100", "10000"})
+    int mappings;
+
+    private String roleMappingsJson;
+    private String policyMappingsJson;
+    private DefaultUserRoleMapperImpl defaultMapper;
+    private ManagedPolicyBasedUserRoleMapperImpl managedPolicyMapper;
+
+    @Setup
+    public void setup() {
+        PrincipalResolver principalResolver = new StaticPrincipalResolver(mappings / 2);
+
+        roleMappingsJson = roleMappings(mappings);
+        policyMappingsJson = policyMappings(mappings);
+
+        defaultMapper = new DefaultUserRoleMapperImpl("bucket", "key", principalResolver);
+        defaultMapper.processFile(roleMappingsJson);
+
+        managedPolicyMapper = new ManagedPolicyBasedUserRoleMapperImpl("bucket", "key", principalResolver);
+        managedPolicyMapper.init(Collections.singletonMap(Constants.ROLE_MAPPING_ROLE_ARN,
+                "arn:aws:iam::123456789012:role/base"));
+        managedPolicyMapper.processFile(policyMappingsJson);
+    }
+
+    @Benchmark
+    public Optional<AssumeRoleRequest> defaultUser() {
+        return defaultMapper.getMapping(MAPPED_USER);
+    }
+
+    @Benchmark
+    public Optional<AssumeRoleRequest> defaultGroup() {
+        return defaultMapper.getMapping(GROUP_MAPPED_USER);
+    }
+
+    @Benchmark
+    public Optional<AssumeRoleRequest> defaultNone() {
+        return defaultMapper.getMapping(UNMAPPED_USER);
+    }
+
+    @Benchmark
+    public Optional<AssumeRoleRequest> managedPolicyUser() {
+        return managedPolicyMapper.getMapping(MAPPED_USER);
+    }
+
+    @Benchmark
+    public Optional<AssumeRoleRequest> managedPolicyGroup() {
+        return managedPolicyMapper.getMapping(GROUP_MAPPED_USER);
+    }
+
+    @Benchmark
+    public Optional<AssumeRoleRequest> managedPolicyNone() {
+        return managedPolicyMapper.getMapping(UNMAPPED_USER);
+    }
+
+    @Benchmark
+    public void defaultLoad() {
+        defaultMapper.processFile(roleMappingsJson);
+    }
+
+    @Benchmark
+    public void managedPolicyLoad() {
+        managedPolicyMapper.processFile(policyMappingsJson);
+    }
+
+    static String roleMappings(int mappings) {
+        StringBuilder json = new StringBuilder("{\"PrincipalRoleMappings\": [");
+        for (int i = 0; i < mappings; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append(i % 2 == 0 ? "{\"username\": \"user-" : "{\"groupname\": \"group-").append(i / 2)
+                    .append("\", \"rolearn\": \"arn:aws:iam::123456789012:role/role-").append(i).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    static String policyMappings(int mappings) {
+        StringBuilder json = new StringBuilder("{\"PrincipalPolicyMappings\": [");
+        for (int i = 0; i < mappings; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append(i % 2 == 0 ? "{\"username\": \"user-" : "{\"groupname\": \"group-").append(i / 2)
+                    .append("\", \"policies\": [\"arn:aws:iam::123456789012:policy/policy-").append(i)
+                    .append("\"]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Puts every user in {@value #GROUPS_PER_USER} unmapped groups, except for {@link #GROUP_MAPPED_USER} whose
+     * last group is mapped.
+     */
+    static class StaticPrincipalResolver implements PrincipalResolver {
+        private final Map<String, Optional<List<String>>> groups = new HashMap<>();
+        private final Optional<List<String>> unmappedGroups;
+
+        StaticPrincipalResolver(int mappedGroups) {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < GROUPS_PER_USER; i++) {
+                names.add("unmapped-group-" + i);
+            }
+            unmappedGroups = Optional.of(Collections.unmodifiableList(new ArrayList<>(names)));
+            names.set(GROUPS_PER_USER - 1, "group-" + (mappedGroups - 1));
+            groups.put(GROUP_MAPPED_USER, Optional.of(Collections.unmodifiableList(names)));
+        }
+
+        @Override
+        public Optional<String> getUsername(int uid) {
+            return Optional.of("user-" + uid);
+        }
+
+        @Override
+        public Optional<List<String>> getGroups(String username) {
+            return groups.getOrDefault(username, unmappedGroups);
+        }
+    }
+}
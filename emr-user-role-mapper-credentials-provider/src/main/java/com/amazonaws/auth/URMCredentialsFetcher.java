@@ -1,5 +1,7 @@
 package com.amazonaws.auth;
 
+import com.amazonaws.SdkClientException;
+import com.amazonaws.emr.urm.credentialsprovider.URMUnixSocketClient;
 import com.amazonaws.internal.EC2ResourceFetcher;
 import com.amazonaws.internal.InstanceMetadataServiceResourceFetcher;
 import com.amazonaws.retry.internal.CredentialsEndpointRetryParameters;
@@ -8,6 +10,7 @@ import com.google.common.annotations.VisibleForTesting;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.IOException;
 import java.net.URI;
 
 /**
@@ -29,17 +32,34 @@ public class URMCredentialsFetcher
     private String currentUser;
 
     private final EC2ResourceFetcher resourceFetcher;
+    private final URMUnixSocketClient unixSocketClient;
 
     public URMCredentialsFetcher(String user)
     {
-        this(user, InstanceMetadataServiceResourceFetcher.getInstance());
+        this(user, URMUnixSocketClient.fromSystemProperties());
+    }
+
+    /**
+     * @param user the user to get credentials for
+     * @param unixSocketClient client for the URM Unix domain socket, or null to call URM over TCP
+     */
+    public URMCredentialsFetcher(String user, URMUnixSocketClient unixSocketClient)
+    {
+        this(user, InstanceMetadataServiceResourceFetcher.getInstance(), unixSocketClient);
     }
 
     @VisibleForTesting
     URMCredentialsFetcher(String user, EC2ResourceFetcher ec2ResourceFetcher)
+    {
+        this(user, ec2ResourceFetcher, null);
+    }
+
+    @VisibleForTesting
+    URMCredentialsFetcher(String user, EC2ResourceFetcher ec2ResourceFetcher, URMUnixSocketClient unixSocketClient)
     {
         this.currentUser = user;
         this.resourceFetcher = ec2ResourceFetcher;
+        this.unixSocketClient = unixSocketClient;
         this.impersonationURI = URI.create(IMPERSONATION_PATH + user);
         setImpersonationUser(user);
     }
@@ -56,7 +76,20 @@ public class URMCredentialsFetcher
     protected String getCredentialsResponse()
     {
         if (LOG.isDebugEnabled()) {
-            LOG.debug("URMCredentialsFetcher: Calling URI: " + impersonationURI.toASCIIString());
+            LOG.debug("URMCredentialsFetcher: Calling URI: " + impersonationURI.toASCIIString()
+                    + (unixSocketClient == null ? "" : " over " + unixSocketClient));
+        }
+        if (unixSocketClient != null) {
+            try {
+                return unixSocketClient.get(impersonationURI.getRawPath());
+            }
+            catch (URMUnixSocketClient.ErrorResponseException e) {
+                throw new SdkClientException("Failed to get credentials from URM over " + unixSocketClient, e);
+            }
+            catch (IOException e) {
+                // URM also listens on TCP, where the call gets the timeouts and retry policy of the SDK
+                LOG.warn("Failed to get credentials from URM over " + unixSocketClient + ", calling it over TCP", e);
+            }
         }
         return resourceFetcher.readResource(impersonationURI, this);
     }
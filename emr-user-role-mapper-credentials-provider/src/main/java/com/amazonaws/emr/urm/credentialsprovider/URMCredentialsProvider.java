@@ -48,12 +48,13 @@ public class URMCredentialsProvider
 
     /**
      * This constructor takes a {@link Configuration} and gets the list of users that can impersonate other users.
-     * It will also use the {@link UserGroupInformation} to get the current user.
+     * It will also use the {@link UserGroupInformation} to get the current user. URM is called over the Unix domain
+     * socket set in {@link URMUnixSocketClient#UNIX_SOCKET_PATH_CONF}, if any.
      * @param configuration The configuration object that can be passed in to read from.
      */
     public URMCredentialsProvider(Configuration configuration)
     {
-        this(new URMCredentialsFetcher(getUgi().getShortUserName()),
+        this(new URMCredentialsFetcher(getUgi().getShortUserName(), getUnixSocketClient(configuration)),
                 getUsersAllowedToImpersonate(configuration),
                 getUgi().getShortUserName(),
                 getRealUser());
@@ -132,6 +133,13 @@ public class URMCredentialsProvider
         }
     }
 
+    @VisibleForTesting
+    static URMUnixSocketClient getUnixSocketClient(Configuration configuration)
+    {
+        return URMUnixSocketClient.create(configuration.get(URMUnixSocketClient.UNIX_SOCKET_PATH_CONF,
+                System.getProperty(URMUnixSocketClient.UNIX_SOCKET_PATH_CONF)));
+    }
+
     private static UserGroupInformation getUgi()
     {
         try {
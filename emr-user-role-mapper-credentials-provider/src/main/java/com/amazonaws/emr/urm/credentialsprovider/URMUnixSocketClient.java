@@ -0,0 +1,164 @@
+package com.amazonaws.emr.urm.credentialsprovider;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import jnr.unixsocket.UnixSocketOptions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal HTTP client for the Unix domain socket that URM listens on when "rolemapper.unix.socket.path" is set.
+ * URM identifies callers on that socket from the socket itself, instead of looking them up in the TCP tables.
+ * <p>
+ * Requests are sent as HTTP/1.0 so that the response is never chunked, and ends when the connection closes.
+ * Like the SDK calls to URM over TCP, each step of a request times out after a second, so that a stalled URM
+ * can't hold the caller.
+ */
+public class URMUnixSocketClient
+{
+    /**
+     * Hadoop configuration key or system property holding the path of the URM socket.
+     */
+    public static final String UNIX_SOCKET_PATH_CONF = "urm.unix.socket.path";
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    // The connect and read timeouts of the SDK calls to URM over TCP
+    private static final int DEFAULT_TIMEOUT_MILLIS = 1000;
+    // Credentials responses are well below this
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024;
+
+    private final File unixSocket;
+    private final int timeoutMillis;
+
+    public URMUnixSocketClient(String unixSocketPath)
+    {
+        this(unixSocketPath, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    URMUnixSocketClient(String unixSocketPath, int timeoutMillis)
+    {
+        this.unixSocket = new File(unixSocketPath);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param unixSocketPath the path of the URM socket, may be null
+     * @return a client for the socket, or null if no path is given
+     */
+    public static URMUnixSocketClient create(String unixSocketPath)
+    {
+        if (unixSocketPath == null || unixSocketPath.trim().isEmpty()) {
+            return null;
+        }
+        return new URMUnixSocketClient(unixSocketPath.trim());
+    }
+
+    /**
+     * @return a client for the socket set in the {@link #UNIX_SOCKET_PATH_CONF} system property, or null
+     */
+    public static URMUnixSocketClient fromSystemProperties()
+    {
+        return create(System.getProperty(UNIX_SOCKET_PATH_CONF));
+    }
+
+    /**
+     * Gets a resource from URM.
+     *
+     * @param path the path of the resource e.g. /latest/meta-data/iam/security-credentials/impersonation/hive
+     * @return the body of the response
+     * @throws ErrorResponseException if URM does not respond with 200 OK
+     * @throws IOException if URM cannot be reached, or does not respond in time
+     */
+    public String get(String path)
+            throws IOException
+    {
+        byte[] request = ("GET " + path + " HTTP/1.0\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        // Each blocking call is bounded by the socket timeouts, and the whole request by this deadline
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try (UnixSocketChannel channel = UnixSocketChannel.open()) {
+            channel.setOption(UnixSocketOptions.SO_SNDTIMEO, timeoutMillis);
+            channel.setOption(UnixSocketOptions.SO_RCVTIMEO, timeoutMillis);
+            channel.connect(new UnixSocketAddress(unixSocket));
+            ByteBuffer buffer = ByteBuffer.wrap(request);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+                checkDeadline(deadlineNanos, path);
+            }
+            buffer = ByteBuffer.allocate(4096);
+            while (channel.read(buffer) >= 0) {
+                response.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+                if (response.size() > MAX_RESPONSE_BYTES) {
+                    throw new IOException("Response from URM for " + path + " is larger than " + MAX_RESPONSE_BYTES
+                            + " bytes");
+                }
+                checkDeadline(deadlineNanos, path);
+            }
+        }
+        return parseResponse(response.toByteArray(), path);
+    }
+
+    private void checkDeadline(long deadlineNanos, String path)
+            throws SocketTimeoutException
+    {
+        if (System.nanoTime() - deadlineNanos > 0) {
+            throw new SocketTimeoutException("URM did not respond for " + path + " within " + timeoutMillis + " ms");
+        }
+    }
+
+    static String parseResponse(byte[] response, String path)
+            throws IOException
+    {
+        int headerEnd = indexOf(response, HEADER_END);
+        if (headerEnd < 0) {
+            throw new IOException("Incomplete response from URM for " + path);
+        }
+        String statusLine = new String(response, 0, Math.max(0, indexOf(response, new byte[] {'\r', '\n'})),
+                StandardCharsets.US_ASCII);
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[1].equals("200")) {
+            throw new ErrorResponseException("Unexpected response from URM for " + path + ": " + statusLine);
+        }
+        int bodyStart = headerEnd + HEADER_END.length;
+        return new String(response, bodyStart, response.length - bodyStart, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target)
+    {
+        for (int i = 0; i <= bytes.length - target.length; i++) {
+            int j = 0;
+            while (j < target.length && bytes[i + j] == target[j]) {
+                j++;
+            }
+            if (j == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "URMUnixSocketClient(" + unixSocket + ")";
+    }
+
+    /**
+     * Thrown when URM answered, but not with 200 OK.
+     */
+    public static class ErrorResponseException
+            extends IOException
+    {
+        ErrorResponseException(String message)
+        {
+            super(message);
+        }
+    }
+}
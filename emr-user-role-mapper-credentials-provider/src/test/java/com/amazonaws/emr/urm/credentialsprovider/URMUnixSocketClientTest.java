@@ -0,0 +1,132 @@
+package com.amazonaws.emr.urm.credentialsprovider;
+
+import jnr.unixsocket.UnixServerSocketChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class URMUnixSocketClientTest
+{
+    private static final String PATH = "/latest/meta-data/iam/security-credentials/impersonation/hive";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_get()
+            throws Exception
+    {
+        File socket = new File(folder.getRoot(), "urm.sock");
+        try (UnixServerSocketChannel server = UnixServerSocketChannel.open()) {
+            server.socket().bind(new UnixSocketAddress(socket));
+            CompletableFuture<String> request = CompletableFuture.supplyAsync(() -> serve(server,
+                    "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\n{\"Code\" : \"Success\"}"));
+
+            String response = new URMUnixSocketClient(socket.getAbsolutePath()).get(PATH);
+
+            assertEquals("{\"Code\" : \"Success\"}", response);
+            assertEquals("GET " + PATH + " HTTP/1.0\r\nHost: localhost\r\n\r\n", request.get());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void test_stalled_server()
+            throws Exception
+    {
+        File socket = new File(folder.getRoot(), "urm.sock");
+        try (UnixServerSocketChannel server = UnixServerSocketChannel.open()) {
+            server.socket().bind(new UnixSocketAddress(socket));
+            // Accepts the connection, and never answers
+            CompletableFuture<UnixSocketChannel> stalled = CompletableFuture.supplyAsync(() -> accept(server));
+            try {
+                new URMUnixSocketClient(socket.getAbsolutePath(), 200).get(PATH);
+                fail("Expected the request to time out");
+            }
+            catch (SocketTimeoutException expected) {
+                // Timed out
+            }
+            finally {
+                stalled.get().close();
+            }
+        }
+    }
+
+    @Test(expected = URMUnixSocketClient.ErrorResponseException.class)
+    public void test_error_status()
+            throws IOException
+    {
+        URMUnixSocketClient.parseResponse("HTTP/1.1 404 Not Found\r\n\r\n".getBytes(StandardCharsets.US_ASCII),
+                PATH);
+    }
+
+    @Test(expected = IOException.class)
+    public void test_incomplete_response()
+            throws IOException
+    {
+        URMUnixSocketClient.parseResponse("HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.US_ASCII), PATH);
+    }
+
+    @Test(expected = IOException.class)
+    public void test_no_server()
+            throws IOException
+    {
+        new URMUnixSocketClient(new File(folder.getRoot(), "missing.sock").getAbsolutePath()).get(PATH);
+    }
+
+    @Test
+    public void test_create()
+    {
+        assertNull(URMUnixSocketClient.create(null));
+        assertNull(URMUnixSocketClient.create(" "));
+        assertNotNull(URMUnixSocketClient.create("/var/run/urm.sock"));
+
+        Configuration configuration = new Configuration(false);
+        assertNull(URMCredentialsProvider.getUnixSocketClient(configuration));
+        configuration.set(URMUnixSocketClient.UNIX_SOCKET_PATH_CONF, "/var/run/urm.sock");
+        assertNotNull(URMCredentialsProvider.getUnixSocketClient(configuration));
+    }
+
+    private static UnixSocketChannel accept(UnixServerSocketChannel server)
+    {
+        try {
+            return server.accept();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Accepts a connection, answers it and returns the request.
+     */
+    private static String serve(UnixServerSocketChannel server, String response)
+    {
+        try (UnixSocketChannel channel = server.accept()) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            String request = "";
+            while (!request.endsWith("\r\n\r\n") && channel.read(buffer) > 0) {
+                request = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+            }
+            channel.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+            return request;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.amazonaws.emr.urm.hive.urmstoragebasedauthorizer;
 
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.emr.urm.credentialsprovider.URMUnixSocketClient;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.logging.Log;
@@ -19,10 +20,26 @@ public class URMCredentialsRetriever
     private static final String URM_ADDRESS_FOR_IMPERSONATION = "http://localhost:9944/latest/meta-data/iam/security-credentials/impersonation/";
     private static final Log LOG = LogFactory.getLog(URMCredentialsRetriever.class);
 
+    private final URMUnixSocketClient unixSocketClient;
+
+    URMCredentialsRetriever() {
+        this(URMUnixSocketClient.fromSystemProperties());
+    }
+
+    /**
+     * @param unixSocketClient client for the URM Unix domain socket, or null to call URM over TCP
+     */
+    URMCredentialsRetriever(URMUnixSocketClient unixSocketClient) {
+        this.unixSocketClient = unixSocketClient;
+    }
+
     AWSCredentials getCredentialsForUser(String userName) {
         try {
-            //Create http-client to get user mapped role credentials
             URI uri = URI.create(URM_ADDRESS_FOR_IMPERSONATION + userName);
+            if (unixSocketClient != null) {
+                return extractCredentialsFromResponse(unixSocketClient.get(uri.getRawPath()));
+            }
+            //Create http-client to get user mapped role credentials
             URLConnection connection = uri.toURL().openConnection();
             InputStream response = connection.getInputStream();
             try (BufferedReader rd = new BufferedReader(new InputStreamReader(response))) {